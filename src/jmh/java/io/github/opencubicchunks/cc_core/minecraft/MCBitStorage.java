@@ -0,0 +1,43 @@
+package io.github.opencubicchunks.cc_core.minecraft;
+
+/**
+ * Benchmark stand-in for the per-version {@code MCBitStorage} header, packing values the same way as vanilla's SimpleBitStorage.
+ * <p>
+ * The jmh source set is placed before the main output on the runtime classpath, so this class is used instead of the header.
+ */
+public class MCBitStorage {
+    private final long[] data;
+    private final int bits;
+    private final long mask;
+    private final int valuesPerLong;
+
+    public MCBitStorage(int bits, int size) {
+        this(bits, size, null);
+    }
+
+    public MCBitStorage(int bits, int size, long[] data) {
+        this.bits = bits;
+        this.mask = (1L << bits) - 1L;
+        this.valuesPerLong = Long.SIZE / bits;
+
+        int requiredLength = (size + this.valuesPerLong - 1) / this.valuesPerLong;
+        if (data == null) {
+            data = new long[requiredLength];
+        } else if (data.length != requiredLength) {
+            throw new IllegalArgumentException("Invalid length given for storage, got: " + data.length + " but expected: " + requiredLength);
+        }
+        this.data = data;
+    }
+
+    public int get(int i) {
+        int cellIndex = i / this.valuesPerLong;
+        int bitIndex = (i - cellIndex * this.valuesPerLong) * this.bits;
+        return (int) (this.data[cellIndex] >> bitIndex & this.mask);
+    }
+
+    public void set(int i, int j) {
+        int cellIndex = i / this.valuesPerLong;
+        int bitIndex = (i - cellIndex * this.valuesPerLong) * this.bits;
+        this.data[cellIndex] = this.data[cellIndex] & ~(this.mask << bitIndex) | ((long) j & this.mask) << bitIndex;
+    }
+}
@@ -0,0 +1,64 @@
+package io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree;
+
+import static io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerNode.WIDTH_BLOCKS;
+
+import java.util.BitSet;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import io.github.opencubicchunks.cc_core.utils.Coords;
+import io.github.opencubicchunks.cc_core.world.heightmap.HeightmapSource;
+import io.github.opencubicchunks.cc_core.world.heightmap.HeightmapStorage;
+
+/**
+ * {@link HeightmapSource} covering a single section column of a cube, with one bitset of opaque blocks per block column
+ */
+public class BenchmarkHeightmapSource implements HeightmapSource {
+    private final int globalSectionX;
+    private final int globalSectionZ;
+    private final int cubeY;
+
+    private final BitSet[] blocks = new BitSet[WIDTH_BLOCKS * WIDTH_BLOCKS];
+    @Nullable private SurfaceTrackerLeaf leaf;
+
+    public BenchmarkHeightmapSource(int globalSectionX, int globalSectionZ, int cubeY) {
+        this.globalSectionX = globalSectionX;
+        this.globalSectionZ = globalSectionZ;
+        this.cubeY = cubeY;
+        for (int i = 0; i < this.blocks.length; i++) {
+            this.blocks[i] = new BitSet(SurfaceTrackerNode.SCALE_0_NODE_HEIGHT);
+        }
+    }
+
+    /**
+     * Sets the block in the source only, the caller is responsible for notifying the leaf
+     */
+    public void setBlock(int x, int localY, int z, boolean isOpaque) {
+        this.blocks[SurfaceTrackerNode.index(x, z)].set(localY, isOpaque);
+    }
+
+    @Nullable public SurfaceTrackerLeaf getLeaf() {
+        return this.leaf;
+    }
+
+    @Override public void sectionLoaded(@Nonnull SurfaceTrackerLeaf surfaceTrackerLeaf, int localSectionX, int localSectionZ) {
+        this.leaf = surfaceTrackerLeaf;
+    }
+
+    @Override public void unloadSource(@Nonnull HeightmapStorage storage) {
+        if (this.leaf != null) {
+            this.leaf.sourceUnloaded(this.globalSectionX, this.globalSectionZ, storage);
+            this.leaf = null;
+        }
+    }
+
+    @Override public int getHighest(int x, int z, byte heightmapType) {
+        int highest = this.blocks[SurfaceTrackerNode.index(x, z)].length() - 1;
+        return highest < 0 ? Integer.MIN_VALUE : Coords.cubeToMinBlock(this.cubeY) + highest;
+    }
+
+    @Override public int getSourceY() {
+        return this.cubeY;
+    }
+}
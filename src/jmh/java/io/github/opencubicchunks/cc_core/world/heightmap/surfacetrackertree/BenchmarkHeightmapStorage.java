@@ -0,0 +1,39 @@
+package io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree;
+
+import java.io.File;
+
+import io.github.opencubicchunks.cc_core.world.heightmap.HeightmapStorage;
+import it.unimi.dsi.fastutil.objects.Object2ReferenceOpenHashMap;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * In-memory {@link HeightmapStorage} for a single section column, so that load/unload benchmarks don't measure disk I/O
+ */
+public class BenchmarkHeightmapStorage implements HeightmapStorage {
+    private final Object2ReferenceOpenHashMap<NodeKey, SurfaceTrackerNode> saved = new Object2ReferenceOpenHashMap<>();
+
+    @Override public void saveNode(int globalSectionX, int globalSectionZ, SurfaceTrackerNode node) {
+        this.saved.put(new NodeKey(node.getRawType(), node.getScale(), node.getScaledY()), node);
+    }
+
+    @Nullable @Override public SurfaceTrackerNode loadNode(int globalSectionX, int globalSectionZ, @Nullable SurfaceTrackerBranch parent, byte heightmapType, int scale,
+                                                           int scaledY) {
+        SurfaceTrackerNode node = this.saved.remove(new NodeKey(heightmapType, scale, scaledY));
+        if (node != null) {
+            node.setParent(parent);
+        }
+        return node;
+    }
+
+    @Override public File storageDirectory() {
+        throw new UnsupportedOperationException("In-memory storage has no directory");
+    }
+
+    @Override public void flush() {
+    }
+
+    @Override public void close() {
+    }
+
+    private record NodeKey(byte heightmapType, int scale, int scaledY) { }
+}
@@ -0,0 +1,23 @@
+package io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree;
+
+import io.github.opencubicchunks.cc_core.api.CubicConstants;
+
+public final class Benchmarks {
+    private static final String DIAMETER_PROPERTY = "cubicchunks.cubeDiameterInSections";
+
+    private Benchmarks() {
+        throw new Error();
+    }
+
+    /**
+     * Selects the cube diameter for this JVM. Must be called from the trial setup, before anything touches {@link CubicConstants}.
+     * Each JMH fork is a new JVM, so every {@code cubeDiameter} param gets its own constants.
+     */
+    public static void selectCubeDiameter(int diameterInSections) {
+        System.setProperty(DIAMETER_PROPERTY, String.valueOf(diameterInSections));
+        if (CubicConstants.DIAMETER_IN_SECTIONS != diameterInSections) {
+            throw new IllegalStateException("CubicConstants already initialized with diameter " + CubicConstants.DIAMETER_IN_SECTIONS
+                + ", can't benchmark diameter " + diameterInSections + ". Make sure the benchmark is forked.");
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree;
+
+import static io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerNode.WIDTH_BLOCKS;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks moving a node between its heights and the bit planes of a cached {@link InterleavedHeightmapStorage} region.
+ * <p>
+ * The {@code bitSet} benchmarks are the previous implementation, which moved one bit at a time through a {@link BitSet}, kept as a baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterleavedNodeCodecBenchmark {
+    private static final int ENTRIES_PER_FILE = 64 * 64 * WIDTH_BLOCKS * WIDTH_BLOCKS;
+
+    @Param({ "0", "3", "6" })
+    public int scale;
+
+    private Path storageDirectory;
+    private InterleavedHeightmapStorage storage;
+    private SurfaceTrackerNode node;
+    private BitSet bitSetRegion;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.storageDirectory = Files.createTempDirectory("heightmap-benchmark");
+        this.storage = new InterleavedHeightmapStorage(this.storageDirectory.toFile());
+        this.node = newNode();
+
+        int bitsForEntry = SurfaceTrackerNode.getBitsForScale(this.scale);
+        this.bitSetRegion = new BitSet(ENTRIES_PER_FILE * bitsForEntry);
+        Random random = new Random(0);
+        for (int z = 0; z < WIDTH_BLOCKS; z++) {
+            for (int x = 0; x < WIDTH_BLOCKS; x++) {
+                this.node.setRawHeight(x, z, random.nextInt(1 << bitsForEntry));
+            }
+        }
+        // create the region, so that the benchmarks don't measure reading or allocating it
+        this.storage.saveNode(0, 0, this.node);
+        bitSetSaveNode();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.storage.close();
+        try (Stream<Path> files = Files.walk(this.storageDirectory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public void saveNode() {
+        this.node.setDirty(0); // saving is skipped for nodes that don't require it
+        this.storage.saveNode(0, 0, this.node);
+    }
+
+    @Benchmark
+    public SurfaceTrackerNode loadNode() {
+        return this.storage.loadNode(0, 0, null, (byte) 0, this.scale, 0);
+    }
+
+    @Benchmark
+    public void bitSetSaveNode() {
+        int bitsForEntry = SurfaceTrackerNode.getBitsForScale(this.scale);
+        for (int blockZ = 0; blockZ < WIDTH_BLOCKS; blockZ++) {
+            for (int blockX = 0; blockX < WIDTH_BLOCKS; blockX++) {
+                int idx = blockX + blockZ * WIDTH_BLOCKS;
+                int rawHeight = this.node.getRawHeight(blockX, blockZ);
+                int height = rawHeight ^ (rawHeight >>> 1);
+                for (int bitIdx = 0; bitIdx < bitsForEntry; bitIdx++) {
+                    this.bitSetRegion.set(idx + bitIdx * ENTRIES_PER_FILE, ((height >>> bitIdx) & 0x1) != 0);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public SurfaceTrackerNode bitSetLoadNode() {
+        SurfaceTrackerNode loaded = newNode();
+        int bitsForEntry = SurfaceTrackerNode.getBitsForScale(this.scale);
+        for (int blockX = 0; blockX < WIDTH_BLOCKS; blockX++) {
+            for (int blockZ = 0; blockZ < WIDTH_BLOCKS; blockZ++) {
+                int idx = blockX + blockZ * WIDTH_BLOCKS;
+                int height = 0;
+                for (int bitIdx = 0; bitIdx < bitsForEntry; bitIdx++) {
+                    height |= (this.bitSetRegion.get(idx + bitIdx * ENTRIES_PER_FILE) ? 1 : 0) << bitIdx;
+                }
+                int binary = height;
+                while ((height >>>= 1) != 0) {
+                    binary ^= height;
+                }
+                loaded.setRawHeight(blockX, blockZ, binary);
+            }
+        }
+        return loaded;
+    }
+
+    private SurfaceTrackerNode newNode() {
+        if (this.scale == 0) {
+            return new SurfaceTrackerLeaf(0, null, (byte) 0);
+        }
+        return new SurfaceTrackerBranch(this.scale, 0, null, (byte) 0);
+    }
+}
@@ -0,0 +1,130 @@
+package io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree;
+
+import static io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerNode.SCALE_0_NODE_HEIGHT;
+import static io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerNode.WIDTH_BLOCKS;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks encoding and decoding a whole {@link InterleavedHeightmapStorage} region with each {@link RegionCodec}.
+ * <p>
+ * The region is written by the storage itself from smooth rolling terrain, so the codecs see the same gray coded bit planes they would in a real
+ * save. The compression ratio is printed during setup, as JMH only reports times.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegionCodecBenchmark {
+    private static final int REGION_WIDTH_IN_NODES = 64;
+    private static final int REGION_HEADER_BYTES = 12;
+
+    @Param({ "deflate", "store", "lz4" })
+    public String codecName;
+
+    @Param({ "0", "3" })
+    public int scale;
+
+    private RegionCodec codec;
+    private byte[] region;
+    private byte[] encoded;
+    private byte[] decoded;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.codec = switch (this.codecName) {
+            case "deflate" -> RegionCodecs.DEFLATE;
+            case "store" -> RegionCodecs.STORE;
+            case "lz4" -> RegionCodecs.LZ4;
+            default -> throw new IllegalArgumentException("Unknown codec " + this.codecName);
+        };
+        this.region = writeTerrainRegion(this.scale);
+        this.encoded = this.codec.encode(this.region, this.region.length);
+        this.decoded = new byte[this.region.length];
+
+        System.out.printf("%n%s at scale %d: %d -> %d bytes, ratio %.2f%n", this.codecName, this.scale, this.region.length, this.encoded.length,
+            (double) this.region.length / this.encoded.length);
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return this.codec.encode(this.region, this.region.length);
+    }
+
+    @Benchmark
+    public byte[] decode() throws IOException {
+        this.codec.decode(this.encoded, 0, this.encoded.length, this.decoded);
+        return this.decoded;
+    }
+
+    /**
+     * Saves a full region of nodes through an uncompressed storage and returns the stored bit planes
+     */
+    private static byte[] writeTerrainRegion(int scale) throws IOException {
+        Path directory = Files.createTempDirectory("heightmap-codec-benchmark");
+        try {
+            InterleavedHeightmapStorage storage = new InterleavedHeightmapStorage(directory.toFile(), InterleavedHeightmapStorage.DEFAULT_MAX_CACHE_BYTES,
+                Runnable::run, RegionCodecs.STORE);
+            for (int nodeZ = 0; nodeZ < REGION_WIDTH_IN_NODES; nodeZ++) {
+                for (int nodeX = 0; nodeX < REGION_WIDTH_IN_NODES; nodeX++) {
+                    storage.saveNode(nodeX, nodeZ, terrainNode(nodeX, nodeZ, scale));
+                }
+            }
+            storage.close();
+
+            try (Stream<Path> files = Files.list(directory)) {
+                List<Path> regionFiles = files.collect(Collectors.toList());
+                if (regionFiles.size() != 1) {
+                    throw new IllegalStateException("Expected a single region file, found " + regionFiles);
+                }
+                byte[] file = Files.readAllBytes(regionFiles.get(0));
+                return Arrays.copyOfRange(file, REGION_HEADER_BYTES, file.length);
+            }
+        } finally {
+            try (Stream<Path> files = Files.walk(directory)) {
+                for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    private static SurfaceTrackerNode terrainNode(int nodeX, int nodeZ, int scale) {
+        SurfaceTrackerNode node = scale == 0 ? new SurfaceTrackerLeaf(0, null, (byte) 0) : new SurfaceTrackerBranch(scale, 0, null, (byte) 0);
+        int maxRawHeight = (1 << SurfaceTrackerNode.getBitsForScale(scale)) - 1;
+        for (int z = 0; z < WIDTH_BLOCKS; z++) {
+            for (int x = 0; x < WIDTH_BLOCKS; x++) {
+                double blockX = nodeX * WIDTH_BLOCKS + x;
+                double blockZ = nodeZ * WIDTH_BLOCKS + z;
+                // rolling hills a few nodes across, taller than a scale 0 node so that some columns are empty and some are full
+                double terrain = Math.sin(blockX / 71.0) * Math.cos(blockZ / 53.0) + 0.3 * Math.sin((blockX + blockZ) / 17.0);
+                int height = (int) (terrain * SCALE_0_NODE_HEIGHT * 2);
+                node.setRawHeight(x, z, Math.max(0, Math.min(maxRawHeight, height + maxRawHeight / 2)));
+            }
+        }
+        return node;
+    }
+}
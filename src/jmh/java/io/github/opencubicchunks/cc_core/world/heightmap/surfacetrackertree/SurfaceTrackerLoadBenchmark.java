@@ -0,0 +1,67 @@
+package io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree;
+
+import static io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerNode.WIDTH_BLOCKS;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import io.github.opencubicchunks.cc_core.utils.Coords;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks loading and unloading a cube into an otherwise empty section column, saving and restoring its nodes through an in-memory storage
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SurfaceTrackerLoadBenchmark {
+    @Param({ "1", "2", "4", "8" })
+    public int cubeDiameter;
+
+    private BenchmarkHeightmapStorage storage;
+    private BenchmarkHeightmapSource source;
+    private SurfaceTrackerBranch root;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Benchmarks.selectCubeDiameter(this.cubeDiameter);
+
+        this.storage = new BenchmarkHeightmapStorage();
+        this.root = new SurfaceTrackerBranch(SurfaceTrackerNode.MAX_SCALE, 0, null, (byte) 0);
+        this.source = new BenchmarkHeightmapSource(0, 0, 0);
+        this.root.loadSource(0, 0, this.storage, this.source);
+
+        Random random = new Random(0);
+        for (int z = 0; z < WIDTH_BLOCKS; z++) {
+            for (int x = 0; x < WIDTH_BLOCKS; x++) {
+                int y = random.nextInt(SurfaceTrackerNode.SCALE_0_NODE_HEIGHT);
+                this.source.setBlock(x, y, z, true);
+                //noinspection ConstantConditions
+                this.source.getLeaf().onSetBlock(x, Coords.cubeToMinBlock(0) + y, z, heightmapType -> true);
+            }
+        }
+    }
+
+    /**
+     * Unloads the only loaded cube, which unloads and saves every node below the root, then loads it back, marking the ancestors dirty again
+     */
+    @Benchmark
+    public void sourceUnloadedThenLoadSource() {
+        this.source.unloadSource(this.storage);
+        this.root.loadSource(0, 0, this.storage, this.source);
+    }
+}
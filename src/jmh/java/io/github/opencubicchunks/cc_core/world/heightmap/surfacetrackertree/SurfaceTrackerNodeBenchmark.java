@@ -0,0 +1,141 @@
+package io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree;
+
+import static io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerNode.WIDTH_BLOCKS;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntPredicate;
+
+import io.github.opencubicchunks.cc_core.utils.Coords;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for block updates and height queries on a single section column with one full scale 1 branch of loaded cubes
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SurfaceTrackerNodeBenchmark {
+    private static final int CUBE_COUNT = SurfaceTrackerNode.NODE_COUNT;
+    private static final int COLUMN_COUNT = WIDTH_BLOCKS * WIDTH_BLOCKS;
+    // odd stride, so every column is visited once per 256 ops without the order being trivially predictable
+    private static final int COLUMN_STRIDE = 37;
+
+    private static final IntPredicate OPAQUE = heightmapType -> true;
+    private static final IntPredicate TRANSPARENT = heightmapType -> false;
+
+    @Param({ "1", "2", "4", "8" })
+    public int cubeDiameter;
+
+    private final int[] surfaceHeights = new int[COLUMN_COUNT];
+    private final SurfaceTrackerLeaf[] surfaceLeaves = new SurfaceTrackerLeaf[COLUMN_COUNT];
+    private final boolean[] placedAboveSurface = new boolean[COLUMN_COUNT];
+
+    private BenchmarkHeightmapSource[] sources;
+    private SurfaceTrackerBranch root;
+    private SurfaceTrackerBranch scale1Branch;
+    private int column;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Benchmarks.selectCubeDiameter(this.cubeDiameter);
+
+        BenchmarkHeightmapStorage storage = new BenchmarkHeightmapStorage();
+        this.root = new SurfaceTrackerBranch(SurfaceTrackerNode.MAX_SCALE, 0, null, (byte) 0);
+        this.sources = new BenchmarkHeightmapSource[CUBE_COUNT];
+        for (int cubeY = 0; cubeY < CUBE_COUNT; cubeY++) {
+            this.sources[cubeY] = new BenchmarkHeightmapSource(0, 0, cubeY);
+            this.root.loadSource(0, 0, storage, this.sources[cubeY]);
+        }
+        //noinspection ConstantConditions
+        this.scale1Branch = this.root.getLeaf(0).getParent();
+
+        // leave at least one free block at the top for onSetBlock to place into
+        Random random = new Random(0);
+        int maxHeight = CUBE_COUNT * SurfaceTrackerNode.SCALE_0_NODE_HEIGHT - 2;
+        for (int idx = 0; idx < COLUMN_COUNT; idx++) {
+            int height = random.nextInt(maxHeight);
+            this.surfaceHeights[idx] = height;
+            this.surfaceLeaves[idx] = this.root.getLeaf(Coords.blockToCube(height));
+            setBlock(idx & 0xF, height, idx >> 4, true);
+        }
+
+        // start every benchmark from a fully clean tree
+        for (int idx = 0; idx < COLUMN_COUNT; idx++) {
+            this.root.getHeight(idx & 0xF, idx >> 4);
+        }
+    }
+
+    /**
+     * Height query on a clean tree, only the root is touched
+     */
+    @Benchmark
+    public int getHeightClean() {
+        int idx = nextColumn();
+        return this.root.getHeight(idx & 0xF, idx >> 4);
+    }
+
+    /**
+     * Marks the surface column dirty up the whole parent chain, then recomputes it from the root down to the source
+     */
+    @Benchmark
+    public int getHeightDirty() {
+        int idx = nextColumn();
+        int x = idx & 0xF;
+        int z = idx >> 4;
+        this.surfaceLeaves[idx].markDirty(x, z);
+        return this.root.getHeight(x, z);
+    }
+
+    /**
+     * Recomputes a column of the scale 1 branch from its 16 clean leaves. The column is marked dirty first, otherwise the update returns the
+     * stored height without looking at the leaves.
+     */
+    @Benchmark
+    public int branchUpdateHeight() {
+        int idx = nextColumn();
+        this.scale1Branch.setDirty(idx);
+        return this.scale1Branch.updateHeight(idx & 0xF, idx >> 4, idx);
+    }
+
+    /**
+     * Alternately places and removes an opaque block just above the surface, then resolves the root height so that the next update of the column
+     * doesn't early-out on a dirty position
+     */
+    @Benchmark
+    public int onSetBlock() {
+        int idx = nextColumn();
+        int x = idx & 0xF;
+        int z = idx >> 4;
+        boolean place = !this.placedAboveSurface[idx];
+        this.placedAboveSurface[idx] = place;
+        setBlock(x, this.surfaceHeights[idx] + 1, z, place);
+        return this.root.getHeight(x, z);
+    }
+
+    private void setBlock(int x, int y, int z, boolean isOpaque) {
+        BenchmarkHeightmapSource source = this.sources[Coords.blockToCube(y)];
+        source.setBlock(x, Coords.blockToLocal(y), z, isOpaque);
+        //noinspection ConstantConditions
+        source.getLeaf().onSetBlock(x, y, z, isOpaque ? OPAQUE : TRANSPARENT);
+    }
+
+    private int nextColumn() {
+        this.column = (this.column + COLUMN_STRIDE) & (COLUMN_COUNT - 1);
+        return this.column;
+    }
+}
@@ -21,7 +21,17 @@ public class EarlyConfig {
     private static final String PROPERTY_NAME_DIAMETER_IN_SECTIONS = "CUBE_DIAMETER_IN_SECTIONS";
     private static final int DEFAULT_DIAMETER_IN_SECTIONS = 2; //Default
 
+    /**
+     * System property that overrides the config file, so that benchmarks and tests can select the cube diameter per JVM
+     */
+    private static final String SYSTEM_PROPERTY_DIAMETER_IN_SECTIONS = "cubicchunks.cubeDiameterInSections";
+
     public static int getDiameterInSections() {
+        String override = System.getProperty(SYSTEM_PROPERTY_DIAMETER_IN_SECTIONS);
+        if (override != null) {
+            return validateDiameter(Integer.parseInt(override));
+        }
+
         int diameter = EarlyConfig.DEFAULT_DIAMETER_IN_SECTIONS;
         try {
             Properties prop = new Properties();
@@ -32,18 +42,7 @@ public class EarlyConfig {
 
                     diameter = Integer.parseInt(EarlyConfig.getPropertyOrSetDefault(prop, PROPERTY_NAME_DIAMETER_IN_SECTIONS, String.valueOf(diameter)));
 
-                    boolean valid = false;
-                    for (int d : VALID_CUBE_DIAMETERS) {
-                        if (diameter == d) {
-                            valid = true;
-                            break;
-                        }
-
-                    }
-                    if (!valid) {
-                        throw new UnsupportedOperationException(PROPERTY_NAME_DIAMETER_IN_SECTIONS + " " + diameter + " is not supported. Please use one of " +
-                            Arrays.stream(VALID_CUBE_DIAMETERS).mapToObj(String::valueOf).collect(Collectors.joining(", ", "[", "]")) + ".");
-                    }
+                    validateDiameter(diameter);
                 }
                 prop.setProperty(PROPERTY_NAME_DIAMETER_IN_SECTIONS, String.valueOf(diameter));
                 try (OutputStream out = Files.newOutputStream(Paths.get(FILE_NAME))) {
@@ -60,6 +59,16 @@ public class EarlyConfig {
         return diameter;
     }
 
+    private static int validateDiameter(int diameter) {
+        for (int d : VALID_CUBE_DIAMETERS) {
+            if (diameter == d) {
+                return diameter;
+            }
+        }
+        throw new UnsupportedOperationException(PROPERTY_NAME_DIAMETER_IN_SECTIONS + " " + diameter + " is not supported. Please use one of " +
+            Arrays.stream(VALID_CUBE_DIAMETERS).mapToObj(String::valueOf).collect(Collectors.joining(", ", "[", "]")) + ".");
+    }
+
     private static void createDefaultEarlyConfigFile(String fileName, Properties prop) throws IOException {
         File file = new File(fileName);
 
@@ -100,4 +100,23 @@ public class Bits {
     public static int getMaxUnsigned(int size) {
         return (1 << size) - 1;
     }
+
+    /**
+     * Transposes a 64x64 bit matrix in place, where bit {@code c} of {@code rows[r]} is the element at row {@code r} and column {@code c}.
+     * <p>
+     * Afterwards bit {@code c} of {@code rows[r]} holds what was bit {@code r} of {@code rows[c]}. Swaps ever smaller blocks, so it takes
+     * 6 passes of 32 word operations instead of 4096 single bit moves (Hacker's Delight, 7-3).
+     */
+    public static void transpose64x64(long[] rows) {
+        assert rows.length == Long.SIZE;
+        long mask = 0x00000000FFFFFFFFL;
+        for (int blockSize = 32; blockSize != 0; blockSize >>>= 1, mask ^= mask << blockSize) {
+            // visit every row in the top half of each block pair, swapping its high columns with the low columns of its partner row
+            for (int row = 0; row < Long.SIZE; row = ((row | blockSize) + 1) & ~blockSize) {
+                long swap = ((rows[row] >>> blockSize) ^ rows[row | blockSize]) & mask;
+                rows[row] ^= swap << blockSize;
+                rows[row | blockSize] ^= swap;
+            }
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,297 @@
+package io.github.opencubicchunks.cc_core.utils;
+
+import static io.github.opencubicchunks.cc_core.utils.CubePosLongSet.hashPosition;
+import static io.github.opencubicchunks.cc_core.utils.CubePosLongSet.tableSizeFor;
+
+import java.util.Arrays;
+import java.util.function.LongFunction;
+
+import javax.annotation.Nullable;
+
+import io.github.opencubicchunks.cc_core.api.CubePos;
+
+/**
+ * A fast open-addressing hash map from cube positions packed with {@link CubePos#asLong(int, int, int)} to objects, hashed the same way as
+ * {@link CubePosLongSet}.
+ * <p>
+ * Null values can't be stored, {@code null} is returned for absent positions.
+ * <p>
+ * Not thread-safe.
+ *
+ * @param <V> the type of the values
+ */
+public class CubePosLong2ObjectMap<V> {
+    protected long[] keys; //0 marks an empty slot, the value of the position packed as 0 is stored in zeroValue instead
+    protected V[] values;
+    @Nullable protected V zeroValue = null;
+    protected int mask;
+    protected int resizeThreshold;
+
+    protected int size = 0; //the number of entries stored in the map
+
+    public CubePosLong2ObjectMap() {
+        this(CubePosLongSet.DEFAULT_TABLE_SIZE);
+    }
+
+    public CubePosLong2ObjectMap(int expectedSize) {
+        this.setTable(tableSizeFor(expectedSize));
+    }
+
+    /**
+     * Gets the value of the given packed position, or {@code null} if it's absent.
+     *
+     * @see java.util.Map#get(Object)
+     */
+    @Nullable
+    public V get(long pos) {
+        if (pos == 0L) {
+            return this.zeroValue;
+        }
+        int slot = this.findSlot(pos);
+        return slot < 0 ? null : this.values[slot];
+    }
+
+    @Nullable
+    public V get(int x, int y, int z) {
+        return this.get(CubePos.asLong(x, y, z));
+    }
+
+    public boolean containsKey(long pos) {
+        return this.get(pos) != null;
+    }
+
+    /**
+     * Sets the value of the given packed position.
+     *
+     * @return the previous value, or {@code null} if the position was absent
+     *
+     * @see java.util.Map#put(Object, Object)
+     */
+    @Nullable
+    public V put(long pos, V value) {
+        if (value == null) {
+            throw new NullPointerException("Null values aren't supported");
+        }
+        if (pos == 0L) {
+            V previous = this.zeroValue;
+            this.zeroValue = value;
+            if (previous == null) {
+                this.size++;
+            }
+            return previous;
+        }
+
+        int slot = hashPosition(pos) & this.mask;
+        for (long curr = this.keys[slot]; curr != 0L; curr = this.keys[slot]) {
+            if (curr == pos) {
+                V previous = this.values[slot];
+                this.values[slot] = value;
+                return previous;
+            }
+            slot = (slot + 1) & this.mask;
+        }
+        this.keys[slot] = pos;
+        this.values[slot] = value;
+        if (++this.size > this.resizeThreshold) {
+            this.resize();
+        }
+        return null;
+    }
+
+    /**
+     * Gets the value of the given packed position, creating it with the given function if it's absent.
+     *
+     * @see java.util.Map#computeIfAbsent(Object, java.util.function.Function)
+     */
+    public V computeIfAbsent(long pos, LongFunction<? extends V> mappingFunction) {
+        V value = this.get(pos);
+        if (value == null) {
+            value = mappingFunction.apply(pos);
+            this.put(pos, value);
+        }
+        return value;
+    }
+
+    /**
+     * Removes the given packed position from this map.
+     *
+     * @return the removed value, or {@code null} if the position was absent
+     *
+     * @see java.util.Map#remove(Object)
+     */
+    @Nullable
+    public V remove(long pos) {
+        if (pos == 0L) {
+            V previous = this.zeroValue;
+            if (previous != null) {
+                this.zeroValue = null;
+                this.size--;
+            }
+            return previous;
+        }
+
+        int slot = this.findSlot(pos);
+        if (slot < 0) {
+            return null;
+        }
+        V previous = this.values[slot];
+        this.size--;
+        this.shiftKeys(slot);
+        return previous;
+    }
+
+    @Nullable
+    public V remove(int x, int y, int z) {
+        return this.remove(CubePos.asLong(x, y, z));
+    }
+
+    /**
+     * Returns the slot of the given (non-zero) packed position, or -1 if it's absent
+     */
+    protected int findSlot(long pos) {
+        for (int slot = hashPosition(pos) & this.mask; ; slot = (slot + 1) & this.mask) {
+            long curr = this.keys[slot];
+            if (curr == pos) {
+                return slot;
+            } else if (curr == 0L) { //empty slot, abort search - there won't be anything else later on
+                return -1;
+            }
+        }
+    }
+
+    //adapted from it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap#shiftKeys(int)
+    protected void shiftKeys(int pos) {
+        long[] keys = this.keys;
+        V[] values = this.values;
+        for (; ; ) {
+            int last = pos;
+            pos = (pos + 1) & this.mask;
+            long curr;
+            for (; ; pos = (pos + 1) & this.mask) {
+                curr = keys[pos];
+                if (curr == 0L) { //curr points to an empty slot
+                    keys[last] = 0L;
+                    values[last] = null;
+                    return;
+                }
+                int slot = hashPosition(curr) & this.mask;
+                if (last <= pos ? last >= slot || slot > pos : last >= slot && slot > pos) {
+                    break;
+                }
+            }
+            keys[last] = curr;
+            values[last] = values[pos];
+        }
+    }
+
+    protected void resize() {
+        long[] oldKeys = this.keys;
+        V[] oldValues = this.values;
+        this.setTable(oldKeys.length << 1);
+
+        //iterate through every slot in the old table and copy it to the new one
+        for (int i = 0; i < oldKeys.length; i++) {
+            long pos = oldKeys[i];
+            if (pos == 0L) { //the slot is empty, so there's no reason to copy it
+                continue;
+            }
+            int slot = hashPosition(pos) & this.mask;
+            while (this.keys[slot] != 0L) {
+                slot = (slot + 1) & this.mask;
+            }
+            this.keys[slot] = pos;
+            this.values[slot] = oldValues[i];
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void setTable(int tableSize) {
+        this.keys = new long[tableSize];
+        this.values = (V[]) new Object[tableSize];
+        this.mask = tableSize - 1;
+        this.resizeThreshold = (tableSize >> 1) + (tableSize >> 2); //count * 0.75
+    }
+
+    /**
+     * Runs the given function on every entry in this map.
+     *
+     * @see java.util.Map#forEach(java.util.function.BiConsumer)
+     */
+    public void forEach(EntryConsumer<? super V> action) {
+        if (this.zeroValue != null) {
+            action.accept(0L, this.zeroValue);
+        }
+        for (int i = 0; i < this.keys.length; i++) {
+            if (this.keys[i] != 0L) {
+                action.accept(this.keys[i], this.values[i]);
+            }
+        }
+    }
+
+    /**
+     * Runs the given function on every entry in this map whose position is within the given box (inclusive). Small boxes are looked up position
+     * by position, others are found by going through the whole map with {@link CubePos#isLongInsideInclusive(long, int, int, int, int, int, int)}.
+     */
+    public void forEachInRange(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, EntryConsumer<? super V> action) {
+        if (minX > maxX || minY > maxY || minZ > maxZ) {
+            return;
+        }
+        double volume = ((double) maxX - minX + 1) * ((double) maxY - minY + 1) * ((double) maxZ - minZ + 1); //can be too big for a long
+        if (volume <= this.size) {
+            for (int x = minX; x <= maxX; x++) {
+                for (int z = minZ; z <= maxZ; z++) {
+                    for (int y = minY; y <= maxY; y++) {
+                        long pos = CubePos.asLong(x, y, z);
+                        V value = this.get(pos);
+                        if (value != null) {
+                            action.accept(pos, value);
+                        }
+                    }
+                }
+            }
+            return;
+        }
+        this.forEach((pos, value) -> {
+            if (CubePos.isLongInsideInclusive(pos, minX, minY, minZ, maxX, maxY, maxZ)) {
+                action.accept(pos, value);
+            }
+        });
+    }
+
+    /**
+     * Removes every entry from this map.
+     *
+     * @see java.util.Map#clear()
+     */
+    public void clear() {
+        if (this.isEmpty()) { //if the map is empty, there's nothing to clear
+            return;
+        }
+        Arrays.fill(this.keys, 0L);
+        Arrays.fill(this.values, null);
+        this.zeroValue = null;
+        this.size = 0;
+    }
+
+    /**
+     * @return the number of entries stored in this map
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return whether or not this map is empty (contains no entries)
+     */
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * A function which accepts a packed cube position and its value.
+     */
+    @FunctionalInterface
+    public interface EntryConsumer<V> {
+        void accept(long pos, V value);
+    }
+}
@@ -0,0 +1,267 @@
+package io.github.opencubicchunks.cc_core.utils;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+import io.github.opencubicchunks.cc_core.api.CubePos;
+
+/**
+ * A fast open-addressing hash set for cube positions packed with {@link CubePos#asLong(int, int, int)}.
+ * <p>
+ * The positions of each 2x2x2 cell of cubes are hashed to consecutive slots, so that lookups of positions close to each other touch few cache
+ * lines.
+ * <p>
+ * Not thread-safe.
+ */
+public class CubePosLongSet {
+    protected static final int DEFAULT_TABLE_SIZE = 16;
+
+    protected static final int CELL_AXIS_BITS = 1; //the number of bits per axis which select the slot inside of a cell rather than the cell
+    protected static final int CELL_AXIS_MASK = (1 << CELL_AXIS_BITS) - 1;
+    protected static final int CELL_BITS = CELL_AXIS_BITS * 3;
+
+    /**
+     * Hashes a packed position, keeping the positions of a cell in consecutive slots of any table of at least {@code 1 << CELL_BITS} slots
+     */
+    protected static int hashPosition(long pos) {
+        int x = CubePos.extractX(pos);
+        int y = CubePos.extractY(pos);
+        int z = CubePos.extractZ(pos);
+        long cellHash = (x >> CELL_AXIS_BITS) * 1403638657883916319L //some random prime numbers
+            + (y >> CELL_AXIS_BITS) * 4408464607732138253L
+            + (z >> CELL_AXIS_BITS) * 2587306874955016303L;
+        int cell = (int) (cellHash ^ (cellHash >>> 32));
+        return (cell << CELL_BITS) | ((x & CELL_AXIS_MASK) << (CELL_AXIS_BITS * 2)) | ((y & CELL_AXIS_MASK) << CELL_AXIS_BITS) | (z & CELL_AXIS_MASK);
+    }
+
+    protected static int tableSizeFor(int expectedSize) {
+        int tableSize = (int) Math.ceil(expectedSize * (1.0d / 0.75d)); //scale according to resize threshold
+        tableSize = 1 << (Integer.SIZE - Integer.numberOfLeadingZeros(tableSize - 1)); //round up to next power of two
+        return Math.max(tableSize, DEFAULT_TABLE_SIZE);
+    }
+
+    protected long[] keys; //0 marks an empty slot, the position packed as 0 is stored in containsZero instead
+    protected boolean containsZero = false;
+    protected int mask;
+    protected int resizeThreshold;
+
+    protected int size = 0; //the number of values stored in the set
+
+    public CubePosLongSet() {
+        this(DEFAULT_TABLE_SIZE);
+    }
+
+    public CubePosLongSet(int expectedSize) {
+        this.setTable(new long[tableSizeFor(expectedSize)]);
+    }
+
+    /**
+     * Adds the given packed position to this set.
+     *
+     * @return whether or not the position was added (i.e. was previously absent)
+     *
+     * @see java.util.Set#add(Object)
+     */
+    public boolean add(long pos) {
+        if (pos == 0L) {
+            if (this.containsZero) {
+                return false;
+            }
+            this.containsZero = true;
+            this.size++;
+            return true;
+        }
+
+        int slot = hashPosition(pos) & this.mask;
+        for (long curr = this.keys[slot]; curr != 0L; curr = this.keys[slot]) {
+            if (curr == pos) {
+                return false;
+            }
+            slot = (slot + 1) & this.mask;
+        }
+        this.keys[slot] = pos;
+        if (++this.size > this.resizeThreshold) {
+            this.resize();
+        }
+        return true;
+    }
+
+    public boolean add(int x, int y, int z) {
+        return this.add(CubePos.asLong(x, y, z));
+    }
+
+    /**
+     * Checks whether or not the given packed position is present in this set.
+     *
+     * @see java.util.Set#contains(Object)
+     */
+    public boolean contains(long pos) {
+        if (pos == 0L) {
+            return this.containsZero;
+        }
+
+        for (int slot = hashPosition(pos) & this.mask; ; slot = (slot + 1) & this.mask) {
+            long curr = this.keys[slot];
+            if (curr == pos) {
+                return true;
+            } else if (curr == 0L) { //empty slot, abort search - there won't be anything else later on
+                return false;
+            }
+        }
+    }
+
+    public boolean contains(int x, int y, int z) {
+        return this.contains(CubePos.asLong(x, y, z));
+    }
+
+    /**
+     * Removes the given packed position from this set.
+     *
+     * @return whether or not the position was removed (i.e. was previously present)
+     *
+     * @see java.util.Set#remove(Object)
+     */
+    public boolean remove(long pos) {
+        if (pos == 0L) {
+            if (!this.containsZero) {
+                return false;
+            }
+            this.containsZero = false;
+            this.size--;
+            return true;
+        }
+
+        for (int slot = hashPosition(pos) & this.mask; ; slot = (slot + 1) & this.mask) {
+            long curr = this.keys[slot];
+            if (curr == 0L) {
+                return false;
+            } else if (curr == pos) {
+                this.size--;
+                this.shiftKeys(slot);
+                return true;
+            }
+        }
+    }
+
+    public boolean remove(int x, int y, int z) {
+        return this.remove(CubePos.asLong(x, y, z));
+    }
+
+    //adapted from it.unimi.dsi.fastutil.longs.LongOpenHashSet#shiftKeys(int)
+    protected void shiftKeys(int pos) {
+        long[] keys = this.keys;
+        for (; ; ) {
+            int last = pos;
+            pos = (pos + 1) & this.mask;
+            long curr;
+            for (; ; pos = (pos + 1) & this.mask) {
+                curr = keys[pos];
+                if (curr == 0L) { //curr points to an empty slot
+                    keys[last] = 0L;
+                    return;
+                }
+                int slot = hashPosition(curr) & this.mask;
+                if (last <= pos ? last >= slot || slot > pos : last >= slot && slot > pos) {
+                    break;
+                }
+            }
+            keys[last] = curr;
+        }
+    }
+
+    protected void resize() {
+        long[] oldKeys = this.keys;
+        this.setTable(new long[oldKeys.length << 1]);
+
+        //iterate through every slot in the old table and copy it to the new one
+        for (long pos : oldKeys) {
+            if (pos == 0L) { //the slot is empty, so there's no reason to copy it
+                continue;
+            }
+            int slot = hashPosition(pos) & this.mask;
+            while (this.keys[slot] != 0L) {
+                slot = (slot + 1) & this.mask;
+            }
+            this.keys[slot] = pos;
+        }
+    }
+
+    protected void setTable(long[] keys) {
+        this.keys = keys;
+        this.mask = keys.length - 1;
+        this.resizeThreshold = (keys.length >> 1) + (keys.length >> 2); //count * 0.75
+    }
+
+    /**
+     * Runs the given function on every packed position in this set.
+     *
+     * @see java.util.Set#forEach(java.util.function.Consumer)
+     */
+    public void forEach(LongConsumer action) {
+        if (this.containsZero) {
+            action.accept(0L);
+        }
+        for (long pos : this.keys) {
+            if (pos != 0L) {
+                action.accept(pos);
+            }
+        }
+    }
+
+    /**
+     * Runs the given function on every packed position in this set within the given box (inclusive). Small boxes are looked up position by
+     * position, others are found by going through the whole set with {@link CubePos#isLongInsideInclusive(long, int, int, int, int, int, int)}.
+     */
+    public void forEachInRange(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, LongConsumer action) {
+        if (minX > maxX || minY > maxY || minZ > maxZ) {
+            return;
+        }
+        double volume = ((double) maxX - minX + 1) * ((double) maxY - minY + 1) * ((double) maxZ - minZ + 1); //can be too big for a long
+        if (volume <= this.size) {
+            for (int x = minX; x <= maxX; x++) {
+                for (int z = minZ; z <= maxZ; z++) {
+                    for (int y = minY; y <= maxY; y++) {
+                        long pos = CubePos.asLong(x, y, z);
+                        if (this.contains(pos)) {
+                            action.accept(pos);
+                        }
+                    }
+                }
+            }
+            return;
+        }
+        this.forEach(pos -> {
+            if (CubePos.isLongInsideInclusive(pos, minX, minY, minZ, maxX, maxY, maxZ)) {
+                action.accept(pos);
+            }
+        });
+    }
+
+    /**
+     * Removes every position from this set.
+     *
+     * @see java.util.Set#clear()
+     */
+    public void clear() {
+        if (this.isEmpty()) { //if the set is empty, there's nothing to clear
+            return;
+        }
+        Arrays.fill(this.keys, 0L);
+        this.containsZero = false;
+        this.size = 0;
+    }
+
+    /**
+     * @return the number of values stored in this set
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return whether or not this set is empty (contains no values)
+     */
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+}
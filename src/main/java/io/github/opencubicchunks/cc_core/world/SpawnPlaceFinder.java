@@ -1,5 +1,12 @@
 package io.github.opencubicchunks.cc_core.world;
 
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
 import java.util.function.Predicate;
 
 import javax.annotation.Nullable;
@@ -9,6 +16,7 @@ import io.github.opencubicchunks.cc_core.minecraft.MCBlockGetter;
 import io.github.opencubicchunks.cc_core.minecraft.MCBlockPos;
 import io.github.opencubicchunks.cc_core.minecraft.MCLevelHeightAccessor;
 import io.github.opencubicchunks.cc_core.utils.MathUtil;
+import io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerNode;
 
 public final class SpawnPlaceFinder {
 
@@ -18,93 +26,297 @@ public final class SpawnPlaceFinder {
         throw new Error();
     }
 
+    /**
+     * Finds the ground to spawn on from the heightmap of the column, without testing any block. Falls back to
+     * {@link #getTopBlockBisect(MCBlockGetter, MCBlockPos, boolean, Predicate, XYZPredicate)} when there is no heightmap, it can't answer range
+     * queries, or it has no block around pos because nothing is loaded there. Blocks in unloaded cubes count as free space.
+     *
+     * @param heightmap the heightmap of the column at pos (usually its root), of the type whose blocks can be spawned on
+     */
+    @Nullable
+    public static MCBlockPos getTopBlock(MCBlockGetter level, @Nullable SurfaceTrackerNode heightmap, MCBlockPos pos, boolean checkValid,
+                                         Predicate<MCBlockPos> isValidSpawnBlock, XYZPredicate isEmptyCollision) {
+        int groundY = findGroundY(level, heightmap, pos.getX(), pos.getY(), pos.getZ(), isEmptyCollision);
+        if (groundY == Integer.MIN_VALUE) {
+            return null;
+        }
+        return spawnAbove(pos.getX(), groundY, pos.getZ(), checkValid, isValidSpawnBlock);
+    }
+
+    /**
+     * Searches several candidate columns at once with
+     * {@link #getTopBlock(MCBlockGetter, SurfaceTrackerNode, MCBlockPos, boolean, Predicate, XYZPredicate)}, each on the executor. The result is
+     * the spawn of the first candidate in the list that has one, or null if none do. Candidates after it are cancelled as soon as it's found,
+     * and all of them when the returned future is cancelled. A candidate whose search fails only fails the result if all the ones before it have
+     * no spawn.
+     * <p>
+     * The predicates and heightmaps are used from the executor's threads, so they must be thread safe.
+     *
+     * @param heightmaps gets the heightmap of the column of a candidate, or null if it isn't loaded
+     */
+    public static CompletableFuture<MCBlockPos> getTopBlockAsync(MCBlockGetter level, List<MCBlockPos> candidates,
+                                                                 Function<MCBlockPos, SurfaceTrackerNode> heightmaps, boolean checkValid,
+                                                                 Predicate<MCBlockPos> isValidSpawnBlock, XYZPredicate isEmptyCollision, Executor executor) {
+        return searchInOrder(candidates.size(), (index, isCancelled) -> {
+            MCBlockPos candidate = candidates.get(index);
+            // stops probing blocks once the candidate isn't needed anymore
+            XYZPredicate cancellableEmptyCollision = (x, y, z) -> {
+                if (isCancelled.getAsBoolean()) {
+                    throw new CancellationException();
+                }
+                return isEmptyCollision.test(x, y, z);
+            };
+            return getTopBlock(level, heightmaps.apply(candidate), candidate, checkValid, isValidSpawnBlock, cancellableEmptyCollision);
+        }, executor);
+    }
+
+    /**
+     * Runs the search of each candidate on the executor. The result is the first non-null result in candidate order, or null if there is none.
+     * A failed search only fails the result if it's the one deciding it, i.e. all the candidates before it found nothing. Candidates after the
+     * deciding one are cancelled, and all of them when the returned future is cancelled. A search can also throw
+     * {@link CancellationException} once it sees it's cancelled. A candidate the executor rejects counts as a failed search.
+     */
+    static <T> CompletableFuture<T> searchInOrder(int candidates, CandidateSearch<T> search, Executor executor) {
+        SpawnSearch<T> state = new SpawnSearch<>(candidates);
+        if (candidates == 0) {
+            state.result.complete(null);
+        }
+        for (int i = 0; i < candidates; i++) {
+            int index = i;
+            Runnable task = () -> {
+                if (state.isCancelled(index)) {
+                    state.complete(index, null, null);
+                    return;
+                }
+                try {
+                    state.complete(index, search.search(index, () -> state.isCancelled(index)), null);
+                } catch (CancellationException e) {
+                    state.complete(index, null, null);
+                } catch (Throwable t) {
+                    state.complete(index, null, t);
+                }
+            };
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                // same as a failed search, it only fails the result if no candidate before it has a spawn
+                state.complete(index, null, e);
+            }
+        }
+        return state.result;
+    }
+
     @Nullable
     public static MCBlockPos getTopBlockBisect(MCBlockGetter level, MCBlockPos pos, boolean checkValid, Predicate<MCBlockPos> isValidSpawnBlock,
                                                Predicate<MCBlockPos> isEmptyCollision) {
-        MCBlockPos minPos, maxPos;
-        if (findNonEmpty(pos, isEmptyCollision) == null) {
-            CubicChunksBase.LOGGER.debug("Starting bisect with empty space at init {}", pos);
-            maxPos = pos;
-            minPos = findMinPos(level, pos, isEmptyCollision);
+        return getTopBlockBisect(level, pos, checkValid, isValidSpawnBlock, (x, y, z) -> isEmptyCollision.test(new MCBlockPos(x, y, z)));
+    }
+
+    /**
+     * Same as {@link #getTopBlockBisect(MCBlockGetter, MCBlockPos, boolean, Predicate, Predicate)}, with blocks tested by their coordinates so
+     * that probing doesn't allocate a position per block (the predicate can reuse a mutable one).
+     */
+    @Nullable
+    public static MCBlockPos getTopBlockBisect(MCBlockGetter level, MCBlockPos pos, boolean checkValid, Predicate<MCBlockPos> isValidSpawnBlock,
+                                               XYZPredicate isEmptyCollision) {
+        int groundY = bisectGroundY(level, pos.getX(), pos.getY(), pos.getZ(), isEmptyCollision);
+        if (groundY == Integer.MIN_VALUE) {
+            return null;
+        }
+        return spawnAbove(pos.getX(), groundY, pos.getZ(), checkValid, isValidSpawnBlock);
+    }
+
+    /**
+     * Returns the y of the ground to spawn on at the given position, found in the heightmap if it can answer, otherwise by bisection, or
+     * {@link Integer#MIN_VALUE} if there is none
+     */
+    static int findGroundY(MCLevelHeightAccessor level, @Nullable SurfaceTrackerNode heightmap, int x, int y, int z, XYZPredicate isEmptyCollision) {
+        if (heightmap != null) {
+            try {
+                int groundY = findHeightmapGroundY(heightmap, x, y, z);
+                if (groundY != Integer.MIN_VALUE) {
+                    return groundY;
+                }
+                CubicChunksBase.LOGGER.debug("No ground in heightmap at {} {} {}, falling back to bisect", x, y, z);
+            } catch (UnsupportedOperationException e) {
+                CubicChunksBase.LOGGER.debug("Heightmap at {} {} {} doesn't support range queries, falling back to bisect", x, y, z);
+            }
+        }
+        return bisectGroundY(level, x, y, z, isEmptyCollision);
+    }
+
+    /**
+     * Returns the y of the ground to spawn on at the given position found by testing blocks, or {@link Integer#MIN_VALUE} if there is none
+     */
+    static int bisectGroundY(MCLevelHeightAccessor level, int x, int y, int z, XYZPredicate isEmptyCollision) {
+        int minY, maxY;
+        if (!hasNonEmpty(x, y, z, isEmptyCollision)) {
+            CubicChunksBase.LOGGER.debug("Starting bisect with empty space at init {} {} {}", x, y, z);
+            maxY = y;
+            minY = findMinY(level, x, y, z, isEmptyCollision);
         } else {
-            CubicChunksBase.LOGGER.debug("Starting bisect without empty space at init {}", pos);
-            minPos = pos;
-            maxPos = findMaxPos(level, pos, isEmptyCollision);
+            CubicChunksBase.LOGGER.debug("Starting bisect without empty space at init {} {} {}", x, y, z);
+            minY = y;
+            maxY = findMaxY(level, x, y, z, isEmptyCollision);
         }
-        CubicChunksBase.LOGGER.debug("Found minPos {} and maxPos {}", minPos, maxPos);
-        if (minPos == null || maxPos == null) {
-            CubicChunksBase.LOGGER.error("No suitable spawn found, using original input {} (min={}, max={})", pos, minPos, maxPos);
-            return null;
+        CubicChunksBase.LOGGER.debug("Found minY {} and maxY {}", minY, maxY);
+        if (minY == Integer.MIN_VALUE || maxY == Integer.MIN_VALUE) {
+            CubicChunksBase.LOGGER.error("No suitable spawn found, using original input {} {} {} (minY={}, maxY={})", x, y, z, minY, maxY);
+            return Integer.MIN_VALUE;
+        }
+        assert !hasNonEmpty(x, maxY, z, isEmptyCollision) && hasNonEmpty(x, minY, z, isEmptyCollision);
+        return bisect(x, minY - MIN_FREE_SPACE_SPAWN, maxY + MIN_FREE_SPACE_SPAWN, z, isEmptyCollision);
+    }
+
+    /**
+     * Returns the highest block in the heightmap with enough free space above it, starting from the free space above y, or
+     * {@link Integer#MIN_VALUE} if there is no block at or below it
+     */
+    private static int findHeightmapGroundY(SurfaceTrackerNode heightmap, int x, int y, int z) {
+        int groundY = heightmap.getHeightBelow(x, z, y + MIN_FREE_SPACE_SPAWN - 1);
+        if (groundY == Integer.MIN_VALUE) {
+            return Integer.MIN_VALUE;
+        }
+        // go up until there's enough free space above
+        while (true) {
+            int above = heightmap.getHeightInRange(x, z, groundY + 1, groundY + MIN_FREE_SPACE_SPAWN);
+            if (above == Integer.MIN_VALUE) {
+                return groundY;
+            }
+            groundY = above;
         }
-        assert findNonEmpty(maxPos, isEmptyCollision) == null && findNonEmpty(minPos, isEmptyCollision) != null;
-        MCBlockPos groundPos = bisect(minPos.below(MIN_FREE_SPACE_SPAWN), maxPos.above(MIN_FREE_SPACE_SPAWN), isEmptyCollision);
+    }
+
+    @Nullable
+    private static MCBlockPos spawnAbove(int x, int groundY, int z, boolean checkValid, Predicate<MCBlockPos> isValidSpawnBlock) {
+        MCBlockPos groundPos = new MCBlockPos(x, groundY, z);
         if (checkValid && !isValidSpawnBlock.test(groundPos)) {
             return null;
         }
         return groundPos.above();
     }
 
-    private static MCBlockPos bisect(MCBlockPos min, MCBlockPos max, Predicate<MCBlockPos> isEmptyCollision) {
-        while (min.getY() < max.getY() - 1) {
-            CubicChunksBase.LOGGER.debug("Bisect step with min={}, max={}", min, max);
-            MCBlockPos middle = middleY(min, max);
-            if (findNonEmpty(middle, isEmptyCollision) != null) {
+    private static int bisect(int x, int minY, int maxY, int z, XYZPredicate isEmptyCollision) {
+        boolean debug = CubicChunksBase.LOGGER.isDebugEnabled();
+        while (minY < maxY - 1) {
+            if (debug) {
+                CubicChunksBase.LOGGER.debug("Bisect step with minY={}, maxY={}", minY, maxY);
+            }
+            int middleY = (int) ((minY + (long) maxY) >> 1);
+            if (hasNonEmpty(x, middleY, z, isEmptyCollision)) {
                 // middle has solid space, so it can be used as new minimum
-                min = middle;
+                minY = middleY;
             } else {
                 // middle is empty, so can be used as new maximum
-                max = middle;
+                maxY = middleY;
             }
         }
         // now max should contain the all-empty part, but min should still have filled part.
-        return min;
+        return minY;
     }
 
-    private static MCBlockPos middleY(MCBlockPos min, MCBlockPos max) {
-        return new MCBlockPos(min.getX(), (int) ((min.getY() + (long) max.getY()) >> 1), min.getZ());
-    }
-
-    @Nullable
-    private static MCBlockPos findMinPos(MCBlockGetter level, MCBlockPos pos, Predicate<MCBlockPos> isEmptyCollision) {
+    private static int findMinY(MCLevelHeightAccessor level, int x, int y, int z, XYZPredicate isEmptyCollision) {
         // go down twice as much each time until we hit filled space
         double dy = 16;
-        while (findNonEmpty(inWorldUp(level, pos, -dy), isEmptyCollision) == null) {
+        while (!hasNonEmpty(x, inWorldUp(level, y, -dy), z, isEmptyCollision)) {
             if (dy > Integer.MAX_VALUE) {
-                CubicChunksBase.LOGGER.debug("Error finding spawn point: can't find solid start height at {}", pos);
-                return null;
+                CubicChunksBase.LOGGER.debug("Error finding spawn point: can't find solid start height at {} {} {}", x, y, z);
+                return Integer.MIN_VALUE;
             }
             dy *= 2;
         }
-        return inWorldUp(level, pos, -dy);
+        return inWorldUp(level, y, -dy);
     }
 
-    @Nullable
-    private static MCBlockPos findMaxPos(MCBlockGetter level, MCBlockPos pos, Predicate<MCBlockPos> isEmptyCollision) {
+    private static int findMaxY(MCLevelHeightAccessor level, int x, int y, int z, XYZPredicate isEmptyCollision) {
         // go up twice as much each time until we hit empty space
         double dy = 16;
-        while (findNonEmpty(inWorldUp(level, pos, dy), isEmptyCollision) != null) {
+        while (hasNonEmpty(x, inWorldUp(level, y, dy), z, isEmptyCollision)) {
             if (dy > Integer.MAX_VALUE) {
-                CubicChunksBase.LOGGER.debug("Error finding spawn point: can't find non-solid end height at {}", pos);
-                return null;
+                CubicChunksBase.LOGGER.debug("Error finding spawn point: can't find non-solid end height at {} {} {}", x, y, z);
+                return Integer.MIN_VALUE;
             }
             dy *= 2;
         }
-        return inWorldUp(level, pos, dy);
+        return inWorldUp(level, y, dy);
     }
 
-    @Nullable
-    private static MCBlockPos findNonEmpty(MCBlockPos pos, Predicate<MCBlockPos> isEmptyCollision) {
-        for (int i = 0; i < MIN_FREE_SPACE_SPAWN; i++, pos = pos.above()) {
-            if (!isEmptyCollision.test(pos)) {
-                return pos;
+    private static boolean hasNonEmpty(int x, int y, int z, XYZPredicate isEmptyCollision) {
+        for (int i = 0; i < MIN_FREE_SPACE_SPAWN; i++) {
+            if (!isEmptyCollision.test(x, y + i, z)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int inWorldUp(MCLevelHeightAccessor level, int originalY, double up) {
+        int y = (int) (originalY + up);
+        return MathUtil.clamp(y, level.getMinBuildHeight(), level.getMaxBuildHeight());
+    }
+
+    /**
+     * The search of one candidate of {@link #searchInOrder(int, CandidateSearch, Executor)}
+     */
+    @FunctionalInterface
+    interface CandidateSearch<T> {
+        /**
+         * @param isCancelled whether or not the result of this candidate isn't needed anymore
+         * @return the result of the candidate, or null if it has none
+         */
+        @Nullable T search(int index, BooleanSupplier isCancelled);
+    }
+
+    /**
+     * Results of the candidates of {@link #searchInOrder(int, CandidateSearch, Executor)}
+     */
+    private static final class SpawnSearch<T> {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        private final Object[] results;
+        private final Throwable[] failures;
+        private final boolean[] done;
+        private int firstPending = 0;
+        /** The first candidate known to have a result or a failure, the ones after it don't need to be searched */
+        private volatile int firstFound = Integer.MAX_VALUE;
+
+        SpawnSearch(int candidates) {
+            this.results = new Object[candidates];
+            this.failures = new Throwable[candidates];
+            this.done = new boolean[candidates];
+        }
+
+        boolean isCancelled(int index) {
+            return index > this.firstFound || this.result.isDone();
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized void complete(int index, @Nullable T value, @Nullable Throwable failure) {
+            this.results[index] = value;
+            this.failures[index] = failure;
+            this.done[index] = true;
+            if ((value != null || failure != null) && index < this.firstFound) {
+                this.firstFound = index;
+            }
+            // the result is known once every candidate before the first result or failure is done
+            while (this.firstPending < this.done.length && this.done[this.firstPending]) {
+                if (this.failures[this.firstPending] != null) {
+                    this.result.completeExceptionally(this.failures[this.firstPending]);
+                    return;
+                }
+                if (this.results[this.firstPending] != null) {
+                    this.result.complete((T) this.results[this.firstPending]);
+                    return;
+                }
+                this.firstPending++;
+            }
+            if (this.firstPending == this.done.length) {
+                this.result.complete(null);
             }
         }
-        return null;
     }
 
-    private static MCBlockPos inWorldUp(MCLevelHeightAccessor level, MCBlockPos original, double up) {
-        int y = (int) (original.getY() + up);
-        y = MathUtil.clamp(y, level.getMinBuildHeight(), level.getMaxBuildHeight());
-        return new MCBlockPos(original.getX(), y, original.getZ());
+    @FunctionalInterface
+    public interface XYZPredicate {
+        boolean test(int x, int y, int z);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,21 @@
+package io.github.opencubicchunks.cc_core.world.heightmap;
+
+/**
+ * Receives the height changes of a heightmap node, see
+ * {@link io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerNode#addChangeListener(HeightChangeListener)}.
+ * <p>
+ * Changes are delivered in batches by the thread dispatching them, without holding any lock of the tree, so listeners may read heights.
+ */
+@FunctionalInterface
+public interface HeightChangeListener {
+    /**
+     * The heights of some columns changed since the last batch
+     *
+     * @param heightmapType the type of the heightmap that changed
+     * @param count the number of changed columns, the arrays may be longer
+     * @param positions the index of each column, {@code x + z * 16}
+     * @param oldHeights the height of each column in the last batch it was in, or when the listener was added
+     * @param newHeights the current height of each column
+     */
+    void onHeightsChanged(byte heightmapType, int count, int[] positions, int[] oldHeights, int[] newHeights);
+}
@@ -14,5 +14,31 @@ public interface HeightmapSource {
 
     int getHighest(int x, int z, byte heightmapType);
 
+    /**
+     * Whether or not this source implements {@link #getHighestBelow(int, int, int, byte)} and {@link #getSurfaceBottom(int, int, int, byte)},
+     * which the range queries of {@link io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerNode} need.
+     */
+    default boolean supportsRangeQueries() {
+        return false;
+    }
+
+    /**
+     * Returns the highest block at or below maxY (global) in this source, or {@link Integer#MIN_VALUE} if there is none.
+     *
+     * @throws UnsupportedOperationException if this source doesn't {@link #supportsRangeQueries() support range queries}
+     */
+    default int getHighestBelow(int x, int z, int maxY, byte heightmapType) {
+        throw new UnsupportedOperationException("Heightmap source " + this + " doesn't support range queries");
+    }
+
+    /**
+     * Returns the lowest block (global) of the run of blocks in the heightmap that contains y, stopping at the bottom of this source.
+     *
+     * @throws UnsupportedOperationException if this source doesn't {@link #supportsRangeQueries() support range queries}
+     */
+    default int getSurfaceBottom(int x, int z, int y, byte heightmapType) {
+        throw new UnsupportedOperationException("Heightmap source " + this + " doesn't support range queries");
+    }
+
     int getSourceY();
 }
@@ -3,6 +3,8 @@ package io.github.opencubicchunks.cc_core.world.heightmap;
 import java.io.Closeable;
 import java.io.File;
 import java.io.Flushable;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 import io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerBranch;
 import io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerNode;
@@ -11,7 +13,55 @@ import org.jetbrains.annotations.Nullable;
 
 public interface HeightmapStorage extends Closeable, Flushable {
     void saveNode(int globalSectionX, int globalSectionZ, @NotNull SurfaceTrackerNode surfaceTrackerSection);
+    /**
+     * Loads a stored node. The returned node doesn't {@link SurfaceTrackerNode#requiresSave() require saving} until it's modified.
+     */
     @Nullable SurfaceTrackerNode loadNode(int globalSectionX, int globalSectionZ, @Nullable SurfaceTrackerBranch parent, byte heightmapType, int scale, int scaledY);
 
+    /**
+     * Loads the nodes at {@code firstScaledY}, {@code firstScaledY + 1}, ... into the null slots of {@code nodes}, for example all children of a
+     * branch at once. Slots of nodes that aren't stored stay null, slots that already hold a node are skipped.
+     */
+    default void loadNodes(int globalSectionX, int globalSectionZ, @Nullable SurfaceTrackerBranch parent, byte heightmapType, int scale, int firstScaledY,
+                           @Nullable SurfaceTrackerNode[] nodes) {
+        for (int i = 0; i < nodes.length; i++) {
+            if (nodes[i] == null) {
+                nodes[i] = loadNode(globalSectionX, globalSectionZ, parent, heightmapType, scale, firstScaledY + i);
+            }
+        }
+    }
+
+    /**
+     * Saves the non-null nodes, which all have the given section position, for example all children of a branch being unloaded
+     */
+    default void saveNodes(int globalSectionX, int globalSectionZ, @Nullable SurfaceTrackerNode[] nodes) {
+        for (SurfaceTrackerNode node : nodes) {
+            if (node != null) {
+                saveNode(globalSectionX, globalSectionZ, node);
+            }
+        }
+    }
+
+    /**
+     * Starts writing everything saved so far to disk, without waiting for the writes to finish.
+     * <p>
+     * The returned future completes once all of it has been written, or exceptionally if any write failed.
+     * Storages that can't write in the background flush on the calling thread and return a completed future.
+     */
+    default CompletableFuture<Void> flushAsync() {
+        try {
+            flush();
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Sets the listener that receives this storage's IO events, replacing the previous one. Storages that don't report events ignore it.
+     */
+    default void setListener(HeightmapStorageListener listener) {
+    }
+
     File storageDirectory();
 }
@@ -0,0 +1,71 @@
+package io.github.opencubicchunks.cc_core.world.heightmap;
+
+/**
+ * Receives events from a {@link HeightmapStorage}, to find out how much time is spent in heightmap IO. See {@link HeightmapStorageStats} for
+ * an implementation that counts them.
+ * <p>
+ * Methods may be called from any thread, including the storage's IO threads and while the storage holds locks, so they must be cheap and must not
+ * call back into the storage.
+ */
+public interface HeightmapStorageListener {
+    HeightmapStorageListener NONE = new HeightmapStorageListener() {
+    };
+
+    /**
+     * A node was looked up
+     *
+     * @param regionCached whether the node's region was already in memory. If not, it was read from disk if it exists.
+     * @param found whether the node was stored. A cached region that doesn't have the node is a negative cache hit.
+     */
+    default void onLoadNode(boolean regionCached, boolean found) {
+    }
+
+    /**
+     * A region file was read
+     *
+     * @param fileBytes size of the file
+     * @param decodeNanos time spent decompressing and decoding it, not including reading the file
+     */
+    default void onRegionRead(long fileBytes, long decodeNanos) {
+    }
+
+    /**
+     * A region file was written
+     *
+     * @param fileBytes size of the file
+     * @param encodeNanos time spent encoding and compressing it, not including writing the file
+     */
+    default void onRegionWritten(long fileBytes, long encodeNanos) {
+    }
+
+    /**
+     * Records of modified nodes were appended to a region's journal
+     *
+     * @param bytes size of the appended records
+     */
+    default void onJournalAppended(long bytes) {
+    }
+
+    /**
+     * A region was dropped from the cache to stay within its memory budget
+     *
+     * @param dirty whether it had changes that had to be written
+     */
+    default void onRegionEvicted(boolean dirty) {
+    }
+
+    /**
+     * A flush finished
+     *
+     * @param nanos time from starting the flush until everything was written
+     * @param succeeded false if any write failed
+     */
+    default void onFlush(long nanos, boolean succeeded) {
+    }
+
+    /**
+     * The memory used by cached regions changed
+     */
+    default void onCacheSizeChanged(long cacheBytes) {
+    }
+}
@@ -0,0 +1,211 @@
+package io.github.opencubicchunks.cc_core.world.heightmap;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the events of a {@link HeightmapStorage}. Counters only ever grow, take the difference of two readings to get a rate.
+ */
+public class HeightmapStorageStats implements HeightmapStorageListener {
+    private final LongAdder nodeLoadHits = new LongAdder();
+    private final LongAdder nodeLoadMisses = new LongAdder();
+    private final LongAdder negativeCacheHits = new LongAdder();
+    private final LongAdder regionReads = new LongAdder();
+    private final LongAdder regionWrites = new LongAdder();
+    private final LongAdder regionEvictions = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder journalAppends = new LongAdder();
+    private final LongAdder journalBytesWritten = new LongAdder();
+    private final LongAdder failedFlushes = new LongAdder();
+    private volatile long cacheBytes = 0;
+
+    private final TimingHistogram decodeTime = new TimingHistogram();
+    private final TimingHistogram encodeTime = new TimingHistogram();
+    private final TimingHistogram flushTime = new TimingHistogram();
+
+    @Override public void onLoadNode(boolean regionCached, boolean found) {
+        if (!regionCached) {
+            nodeLoadMisses.increment();
+        } else if (found) {
+            nodeLoadHits.increment();
+        } else {
+            negativeCacheHits.increment();
+        }
+    }
+
+    @Override public void onRegionRead(long fileBytes, long decodeNanos) {
+        regionReads.increment();
+        bytesRead.add(fileBytes);
+        decodeTime.record(decodeNanos);
+    }
+
+    @Override public void onRegionWritten(long fileBytes, long encodeNanos) {
+        regionWrites.increment();
+        bytesWritten.add(fileBytes);
+        encodeTime.record(encodeNanos);
+    }
+
+    @Override public void onJournalAppended(long bytes) {
+        journalAppends.increment();
+        journalBytesWritten.add(bytes);
+    }
+
+    @Override public void onRegionEvicted(boolean dirty) {
+        regionEvictions.increment();
+    }
+
+    @Override public void onFlush(long nanos, boolean succeeded) {
+        if (!succeeded) {
+            failedFlushes.increment();
+        }
+        flushTime.record(nanos);
+    }
+
+    @Override public void onCacheSizeChanged(long cacheBytes) {
+        this.cacheBytes = cacheBytes;
+    }
+
+    /**
+     * Nodes loaded from a region that was already in memory
+     */
+    public long nodeLoadHits() {
+        return nodeLoadHits.sum();
+    }
+
+    /**
+     * Node loads that had to read their region, or find out that it doesn't exist
+     */
+    public long nodeLoadMisses() {
+        return nodeLoadMisses.sum();
+    }
+
+    /**
+     * Node loads answered from memory with no node
+     */
+    public long negativeCacheHits() {
+        return negativeCacheHits.sum();
+    }
+
+    public long regionReads() {
+        return regionReads.sum();
+    }
+
+    public long regionWrites() {
+        return regionWrites.sum();
+    }
+
+    public long regionEvictions() {
+        return regionEvictions.sum();
+    }
+
+    public long bytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long bytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public long journalAppends() {
+        return journalAppends.sum();
+    }
+
+    public long journalBytesWritten() {
+        return journalBytesWritten.sum();
+    }
+
+    public long failedFlushes() {
+        return failedFlushes.sum();
+    }
+
+    /**
+     * The latest reported memory used by cached regions
+     */
+    public long cacheBytes() {
+        return cacheBytes;
+    }
+
+    public TimingHistogram decodeTime() {
+        return decodeTime;
+    }
+
+    public TimingHistogram encodeTime() {
+        return encodeTime;
+    }
+
+    public TimingHistogram flushTime() {
+        return flushTime;
+    }
+
+    @Override public String toString() {
+        return String.format("HeightmapStorageStats{loads: %d hits, %d misses, %d negative hits; regions: %d read (%d bytes), %d written (%d bytes), "
+                + "%d evicted; journal: %d appends (%d bytes); cache: %d bytes; decode: %s; encode: %s; flush: %s, %d failed}",
+            nodeLoadHits(), nodeLoadMisses(), negativeCacheHits(), regionReads(), bytesRead(), regionWrites(), bytesWritten(), regionEvictions(),
+            journalAppends(), journalBytesWritten(), cacheBytes(), decodeTime, encodeTime, flushTime, failedFlushes());
+    }
+
+    /**
+     * Histogram of durations in power of two buckets: bucket {@code i} counts durations of {@code [2^(i-1), 2^i)} nanoseconds, bucket 0 counts
+     * durations of 0.
+     */
+    public static class TimingHistogram {
+        private static final int BUCKETS = Long.SIZE;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder totalNanos = new LongAdder();
+
+        public void record(long nanos) {
+            long clamped = Math.max(nanos, 0);
+            counts.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(clamped));
+            totalNanos.add(clamped);
+        }
+
+        public long count() {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += counts.get(i);
+            }
+            return count;
+        }
+
+        public long totalNanos() {
+            return totalNanos.sum();
+        }
+
+        /**
+         * Number of durations in the bucket, see the class javadoc for the bucket ranges
+         */
+        public long bucketCount(int bucket) {
+            return counts.get(bucket);
+        }
+
+        /**
+         * Returns an upper bound of the given quantile, accurate to a factor of 2
+         *
+         * @param quantile between 0 and 1, for example 0.99 for the 99th percentile
+         */
+        public long quantileUpperBoundNanos(double quantile) {
+            long count = count();
+            if (count == 0) {
+                return 0;
+            }
+            long target = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= Math.max(target, 1)) {
+                    // (1 << 63) - 1 wraps around to Long.MAX_VALUE
+                    return i == 0 ? 0 : (1L << i) - 1;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        @Override public String toString() {
+            long count = count();
+            return String.format("%d, mean %dns, p50 < %dns, p99 < %dns", count, count == 0 ? 0 : totalNanos() / count,
+                quantileUpperBoundNanos(0.5), quantileUpperBoundNanos(0.99));
+        }
+    }
+}
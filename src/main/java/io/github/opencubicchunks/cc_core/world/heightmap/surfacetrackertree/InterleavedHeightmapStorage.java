@@ -2,42 +2,153 @@ package io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree;
 
 import static io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerNode.WIDTH_BLOCKS;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.BitSet;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
-import java.util.Optional;
-import java.util.zip.DeflaterOutputStream;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.zip.InflaterInputStream;
 
+import io.github.opencubicchunks.cc_core.utils.Bits;
+import io.github.opencubicchunks.cc_core.utils.ExecutorUtils;
 import io.github.opencubicchunks.cc_core.utils.MathUtil;
 import io.github.opencubicchunks.cc_core.world.heightmap.HeightmapStorage;
+import io.github.opencubicchunks.cc_core.world.heightmap.HeightmapStorageListener;
+import it.unimi.dsi.fastutil.objects.Object2ReferenceLinkedOpenHashMap;
 import it.unimi.dsi.fastutil.objects.Object2ReferenceOpenHashMap;
 import it.unimi.dsi.fastutil.objects.ObjectIterator;
 import org.jetbrains.annotations.Nullable;
 
+/**
+ * Heightmap storage that keeps regions as gray coded bit planes, which compress well, in compressed region files.
+ * <p>
+ * Region files start with a header: {@code int} magic, {@code byte} format version, {@code byte} {@link RegionCodec} id, {@code short}
+ * generation and the {@code int} length of the decoded data, all little endian, followed by the encoded data. Older files have no header and are
+ * deflated. The magic can't be mistaken for the start of a deflate stream, whose first byte always has 8 in its low nibble.
+ * Region files are replaced atomically: they're written to a temporary file which is then renamed over the old one, so a crash leaves either the
+ * old or the new region.
+ * <p>
+ * The decoded data starts with two {@code int} bitmaps with a bit for each bit plane: the planes that are stored, and of the rest, the planes that
+ * are all ones. The others are all zeros. The stored planes follow in order, as little endian words. Planes that aren't stored aren't allocated
+ * in memory either until a node is saved that makes them differ, which is most of the high planes of higher scale regions.
+ * <p>
+ * With journaling enabled, a flush appends the nodes saved since the last flush to the region's {@link RegionJournal} instead of rewriting the
+ * region. Once the journal would grow past half the size of the region in memory, the region is rewritten in the background instead, which
+ * replaces the journal. Closing the storage rewrites every region with a journal. Journals are replayed when regions are read, whether journaling
+ * is enabled or not.
+ * <p>
+ * Safe to use from multiple threads. Nodes of different regions are saved and loaded in parallel; the locks shared by all regions are only held
+ * for cache bookkeeping, never while reading, encoding or writing a region. Closing must not overlap with other calls.
+ * <p>
+ * Cache hits, region IO and its timings are reported to the listener set with {@link #setListener(HeightmapStorageListener)}.
+ */
 public class InterleavedHeightmapStorage implements HeightmapStorage {
-    private static final int REGION_WIDTH_IN_NODES = 64;
+    /**
+     * Default upper bound for the memory used by cached regions, in bytes
+     */
+    public static final long DEFAULT_MAX_CACHE_BYTES = 256L * 1024 * 1024;
+
+    static final int REGION_WIDTH_IN_NODES = 64;
+    static final int NODES_PER_REGION = REGION_WIDTH_IN_NODES * REGION_WIDTH_IN_NODES;
+
     private static final int NODE_POSITION_SHIFT = MathUtil.log2(REGION_WIDTH_IN_NODES);
     private static final int NODE_POSITION_MASK = (1 << NODE_POSITION_SHIFT) - 1;
 
     private static final int ENTRIES_PER_FILE = REGION_WIDTH_IN_NODES * REGION_WIDTH_IN_NODES * WIDTH_BLOCKS * WIDTH_BLOCKS;
-
-    private final Object2ReferenceOpenHashMap<NodeRegionPosition, Optional<BitSet>> fileCache = new Object2ReferenceOpenHashMap<>(64);
+    // each bit plane of a region is ENTRIES_PER_FILE bits, in which every node owns a word aligned run of WIDTH_BLOCKS * WIDTH_BLOCKS bits
+    private static final int WORDS_PER_PLANE = ENTRIES_PER_FILE / Long.SIZE;
+    private static final int WORDS_PER_NODE_PLANE = WIDTH_BLOCKS * WIDTH_BLOCKS / Long.SIZE;
+
+    private static final int REGION_MAGIC = 0x52484343; // "CCHR"
+    private static final byte REGION_FORMAT_VERSION = 2;
+    // all planes stored back to back, trimmed like java.util.BitSet#toByteArray()
+    private static final byte DENSE_REGION_FORMAT_VERSION = 1;
+    private static final int REGION_HEADER_BYTES = 12;
+    private static final int PLANE_BITMAPS_BYTES = Integer.BYTES * 2;
+    private static final int GENERATION_MASK = 0xFFFF;
+
+    /**
+     * Shared by all planes that are all ones, must never be modified
+     */
+    private static final long[] ONES_PLANE = filledPlane(-1L);
+
+    // rough cost of remembering that a region doesn't exist on disk
+    private static final long MISSING_REGION_BYTES = 64;
+
+    /**
+     * Cached regions in access order, the least recently used region is first. Its lock guards the cache bookkeeping: the order,
+     * {@link #cacheBytes} and {@link CachedRegion#pins}. It's never acquired while holding the lock of a region.
+     */
+    private final Object2ReferenceLinkedOpenHashMap<NodeRegionPosition, CachedRegion> fileCache = new Object2ReferenceLinkedOpenHashMap<>(64);
+    private final long maxCacheBytes;
+    private long cacheBytes = 0;
+
+    /**
+     * The latest write of each region that isn't known to be on disk yet, including failed writes until they're retried. Locked on itself, may be
+     * locked while holding the cache lock or the lock of a region.
+     */
+    private final Object2ReferenceOpenHashMap<NodeRegionPosition, PendingWrite> pendingWrites = new Object2ReferenceOpenHashMap<>();
+    private final Executor ioExecutor;
+    private final RegionCodec codec;
+    private final boolean journaled;
+    private volatile HeightmapStorageListener listener = HeightmapStorageListener.NONE;
 
     private final File storageFolder;
-    private boolean isClosed = false;
+    private volatile boolean isClosed = false;
 
     public InterleavedHeightmapStorage(File storageFolder) {
+        this(storageFolder, DEFAULT_MAX_CACHE_BYTES);
+    }
+
+    public InterleavedHeightmapStorage(File storageFolder, long maxCacheBytes) {
+        this(storageFolder, maxCacheBytes, ExecutorUtils.SERIALIZER);
+    }
+
+    /**
+     * @param maxCacheBytes approximate upper bound for the memory used by cached regions. Once it's exceeded the least recently used regions are
+     *                      evicted, modified regions are written to disk first. The most recently used region and regions in use by
+     *                      another thread are never evicted.
+     * @param ioExecutor executor that compresses and writes regions for {@link #flushAsync()} and eviction
+     */
+    public InterleavedHeightmapStorage(File storageFolder, long maxCacheBytes, Executor ioExecutor) {
+        this(storageFolder, maxCacheBytes, ioExecutor, RegionCodecs.DEFLATE);
+    }
+
+    /**
+     * @param codec codec used when writing regions. Regions written with any codec can be read.
+     */
+    public InterleavedHeightmapStorage(File storageFolder, long maxCacheBytes, Executor ioExecutor, RegionCodec codec) {
+        this(storageFolder, maxCacheBytes, ioExecutor, codec, false);
+    }
+
+    /**
+     * @param journaled whether flushes append modified nodes to a journal rather than rewriting their regions, which makes frequent flushes cheap
+     */
+    public InterleavedHeightmapStorage(File storageFolder, long maxCacheBytes, Executor ioExecutor, RegionCodec codec, boolean journaled) {
+        if (maxCacheBytes < 0) {
+            throw new IllegalArgumentException("Negative cache size " + maxCacheBytes);
+        }
         this.storageFolder = storageFolder;
+        this.maxCacheBytes = maxCacheBytes;
+        this.ioExecutor = ioExecutor;
+        this.codec = codec;
+        this.journaled = journaled;
         try {
             Files.createDirectories(storageFolder.toPath());
         } catch (IOException cause) {
@@ -47,14 +158,22 @@ public class InterleavedHeightmapStorage implements HeightmapStorage {
 
     private String getRegionName(NodeRegionPosition nodeRegionPosition) {
         return String.format("%d.%d.%d.%d.%d.str",
-            nodeRegionPosition.regionX,
-            nodeRegionPosition.regionZ,
-            nodeRegionPosition.scaledY,
-            nodeRegionPosition.scale,
-            nodeRegionPosition.heightmapType
+            nodeRegionPosition.regionX(),
+            nodeRegionPosition.regionZ(),
+            nodeRegionPosition.scaledY(),
+            nodeRegionPosition.scale(),
+            nodeRegionPosition.heightmapType()
         );
     }
 
+    private Path getRegionPath(NodeRegionPosition nodeRegionPosition) {
+        return this.storageFolder.toPath().resolve(getRegionName(nodeRegionPosition));
+    }
+
+    private Path getJournalPath(NodeRegionPosition nodeRegionPosition) {
+        return this.storageFolder.toPath().resolve(getRegionName(nodeRegionPosition) + ".journal");
+    }
+
     @Override public void saveNode(int globalSectionX, int globalSectionZ, SurfaceTrackerNode node) {
         if (isClosed) {
             throw new IllegalStateException("Heightmap storage already closed!");
@@ -67,30 +186,25 @@ public class InterleavedHeightmapStorage implements HeightmapStorage {
         int regionPosX = globalSectionX >> NODE_POSITION_SHIFT;
         int regionPosZ = globalSectionZ >> NODE_POSITION_SHIFT;
 
+        NodeRegionPosition nodeRegionPosition = new NodeRegionPosition(regionPosX, regionPosZ, node.getScale(), node.getScaledY(), node.getRawType());
+        CachedRegion region = acquireRegion(nodeRegionPosition);
         try {
-            NodeRegionPosition nodeRegionPosition = new NodeRegionPosition(regionPosX, regionPosZ, node.getScale(), node.getScaledY(), node.getRawType());
-            Optional<BitSet> cacheOptional = fileCache.get(nodeRegionPosition);
-
-            BitSet bits;
-            if (cacheOptional == null || cacheOptional.isEmpty()) {
-                ByteBuffer data;
-                Path filePath = storageFolder.toPath().resolve(getRegionName(nodeRegionPosition));
-                if (Files.exists(filePath)) {
-                    data = ByteBuffer.wrap(Files.readAllBytes(filePath));
-                    bits = BitSet.valueOf(data.position(0));
-                } else {
-                    bits = new BitSet(ENTRIES_PER_FILE * SurfaceTrackerNode.getBitsForScale(node.getScale()));
+            synchronized (region) {
+                ensureLoaded(nodeRegionPosition, region);
+                if (region.planes == null) {
+                    region.planes = new long[SurfaceTrackerNode.getBitsForScale(node.getScale())][];
                 }
-                fileCache.put(nodeRegionPosition, Optional.of(bits));
-            } else {
-                bits = cacheOptional.get();
-            }
 
-            writeNode(globalSectionX, globalSectionZ, node, bits);
+                writeNode(globalSectionX, globalSectionZ, node, region.planes);
+                region.markDirty(nodeIndex(globalSectionX, globalSectionZ));
+                region.sizeBytes = region.estimateBytes();
+            }
             // clear after writing so that if it fails we attempt to write again
             node.clearRequiresSave();
         } catch (IOException e) {
             throw new UncheckedIOException(e);
+        } finally {
+            releaseRegion(region);
         }
     }
 
@@ -102,125 +216,695 @@ public class InterleavedHeightmapStorage implements HeightmapStorage {
         int regionPosX = globalSectionX >> NODE_POSITION_SHIFT;
         int regionPosZ = globalSectionZ >> NODE_POSITION_SHIFT;
 
+        NodeRegionPosition nodeRegionPosition = new NodeRegionPosition(regionPosX, regionPosZ, scale, scaledY, heightmapType);
+        CachedRegion region = acquireRegion(nodeRegionPosition);
         try {
-            NodeRegionPosition nodeRegionPosition = new NodeRegionPosition(regionPosX, regionPosZ, scale, scaledY, heightmapType);
-            Optional<BitSet> cacheOptional = fileCache.get(nodeRegionPosition);
-
-            BitSet bits;
-            if (cacheOptional == null) {
-                ByteBuffer data;
-                Path filePath = storageFolder.toPath().resolve(getRegionName(nodeRegionPosition));
-                if (Files.exists(filePath)) {
-                    try (InputStream inputStream = new InflaterInputStream(new FileInputStream(filePath.toFile()))) {
-                        data = ByteBuffer.wrap(inputStream.readAllBytes());
-                    }
-                } else {
-                    fileCache.put(nodeRegionPosition, Optional.empty());
+            synchronized (region) {
+                boolean regionCached = region.loaded;
+                ensureLoaded(nodeRegionPosition, region);
+                listener.onLoadNode(regionCached, region.planes != null);
+                if (region.planes == null) {
                     return null;
                 }
-                bits = BitSet.valueOf(data.position(0));
-                fileCache.put(nodeRegionPosition, Optional.of(bits));
-            } else {
-                if (cacheOptional.isEmpty()) {
-                    return null;
-                }
-                bits = cacheOptional.get();
+
+                SurfaceTrackerNode node = newNode(parent, heightmapType, scale, scaledY);
+                readNode(globalSectionX, globalSectionZ, node, region.planes);
+
+                return node;
             }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            releaseRegion(region);
+        }
+    }
+
+    /**
+     * Loads all children of a branch with a single round of cache bookkeeping. Every child is in a different region, since the scaledY is part of
+     * the region, so each region is still read and locked separately.
+     */
+    @Override public void loadNodes(int globalSectionX, int globalSectionZ, @Nullable SurfaceTrackerBranch parent, byte heightmapType, int scale,
+                                    int firstScaledY, @Nullable SurfaceTrackerNode[] nodes) {
+        if (isClosed) {
+            throw new IllegalStateException("Heightmap storage already closed!");
+        }
+
+        int regionPosX = globalSectionX >> NODE_POSITION_SHIFT;
+        int regionPosZ = globalSectionZ >> NODE_POSITION_SHIFT;
 
-            SurfaceTrackerNode node;
-            if (scale == 0) {
-                node = new SurfaceTrackerLeaf(scaledY, parent, heightmapType);
-            } else {
-                node = new SurfaceTrackerBranch(scale, scaledY, parent, heightmapType);
+        NodeRegionPosition[] positions = new NodeRegionPosition[nodes.length];
+        CachedRegion[] regions = new CachedRegion[nodes.length];
+        synchronized (fileCache) {
+            for (int i = 0; i < nodes.length; i++) {
+                if (nodes[i] == null) {
+                    positions[i] = new NodeRegionPosition(regionPosX, regionPosZ, scale, firstScaledY + i, heightmapType);
+                    regions[i] = pinRegion(positions[i]);
+                }
             }
+        }
+        try {
+            for (int i = 0; i < nodes.length; i++) {
+                CachedRegion region = regions[i];
+                if (region == null) {
+                    continue;
+                }
+                synchronized (region) {
+                    boolean regionCached = region.loaded;
+                    ensureLoaded(positions[i], region);
+                    listener.onLoadNode(regionCached, region.planes != null);
+                    if (region.planes != null) {
+                        SurfaceTrackerNode node = newNode(parent, heightmapType, scale, firstScaledY + i);
+                        readNode(globalSectionX, globalSectionZ, node, region.planes);
+                        nodes[i] = node;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            releaseRegions(regions);
+        }
+    }
 
-            readNode(globalSectionX, globalSectionZ, node, bits);
+    @Override public void saveNodes(int globalSectionX, int globalSectionZ, @Nullable SurfaceTrackerNode[] nodes) {
+        if (isClosed) {
+            throw new IllegalStateException("Heightmap storage already closed!");
+        }
+
+        int regionPosX = globalSectionX >> NODE_POSITION_SHIFT;
+        int regionPosZ = globalSectionZ >> NODE_POSITION_SHIFT;
 
-            return node;
+        NodeRegionPosition[] positions = new NodeRegionPosition[nodes.length];
+        CachedRegion[] regions = new CachedRegion[nodes.length];
+        synchronized (fileCache) {
+            for (int i = 0; i < nodes.length; i++) {
+                SurfaceTrackerNode node = nodes[i];
+                if (node != null && node.requiresSave()) {
+                    positions[i] = new NodeRegionPosition(regionPosX, regionPosZ, node.getScale(), node.getScaledY(), node.getRawType());
+                    regions[i] = pinRegion(positions[i]);
+                }
+            }
+        }
+        try {
+            for (int i = 0; i < nodes.length; i++) {
+                CachedRegion region = regions[i];
+                if (region == null) {
+                    continue;
+                }
+                SurfaceTrackerNode node = nodes[i];
+                assert node != null;
+                synchronized (region) {
+                    ensureLoaded(positions[i], region);
+                    if (region.planes == null) {
+                        region.planes = new long[SurfaceTrackerNode.getBitsForScale(node.getScale())][];
+                    }
+
+                    writeNode(globalSectionX, globalSectionZ, node, region.planes);
+                    region.markDirty(nodeIndex(globalSectionX, globalSectionZ));
+                    region.sizeBytes = region.estimateBytes();
+                }
+                node.clearRequiresSave();
+            }
         } catch (IOException e) {
             throw new UncheckedIOException(e);
+        } finally {
+            releaseRegions(regions);
         }
     }
 
-    private void writeNode(int globalSectionX, int globalSectionZ, SurfaceTrackerNode node, BitSet data) {
-        int localNodeX = globalSectionX & NODE_POSITION_MASK;
-        int localNodeZ = globalSectionZ & NODE_POSITION_MASK;
+    private static SurfaceTrackerNode newNode(@Nullable SurfaceTrackerBranch parent, byte heightmapType, int scale, int scaledY) {
+        if (scale == 0) {
+            return new SurfaceTrackerLeaf(scaledY, parent, heightmapType);
+        }
+        return new SurfaceTrackerBranch(scale, scaledY, parent, heightmapType);
+    }
 
-        int chunkIdx = localNodeX + localNodeZ * REGION_WIDTH_IN_NODES;
+    /**
+     * Returns the cache entry of the region, creating an unloaded entry if there is none, and marks it as the most recently used region.
+     * The entry is pinned, so it can't be evicted until {@link #releaseRegion(CachedRegion)} is called.
+     */
+    private CachedRegion acquireRegion(NodeRegionPosition nodeRegionPosition) {
+        synchronized (fileCache) {
+            return pinRegion(nodeRegionPosition);
+        }
+    }
 
-        int bitsForEntry = SurfaceTrackerNode.getBitsForScale(node.getScale());
+    /**
+     * {@link #acquireRegion(NodeRegionPosition)} for callers already holding the cache lock
+     */
+    private CachedRegion pinRegion(NodeRegionPosition nodeRegionPosition) {
+        CachedRegion region = fileCache.getAndMoveToLast(nodeRegionPosition);
+        if (region == null) {
+            region = new CachedRegion();
+            fileCache.putAndMoveToLast(nodeRegionPosition, region);
+        }
+        region.pins++;
+        return region;
+    }
 
-        for (int blockZ = 0; blockZ < WIDTH_BLOCKS; blockZ++) {
-            for (int blockX = 0; blockX < WIDTH_BLOCKS; blockX++) {
-                int idx = chunkIdx * (WIDTH_BLOCKS * WIDTH_BLOCKS) + (blockX + blockZ * WIDTH_BLOCKS);
-                int height = bin2gray(node.getRawHeight(blockX, blockZ));
-                for (int bitIdx = 0; bitIdx < bitsForEntry; bitIdx++) {
-                    int offset = bitIdx * (REGION_WIDTH_IN_NODES * REGION_WIDTH_IN_NODES) * (WIDTH_BLOCKS * WIDTH_BLOCKS);
-                    int bit = (height >>> bitIdx) & 0x1;
+    private void releaseRegion(CachedRegion region) {
+        synchronized (fileCache) {
+            long previousCacheBytes = cacheBytes;
+            unpinRegion(region);
+            evictToBudget();
+            reportCacheSize(previousCacheBytes);
+        }
+    }
 
-                    if (bit != 0) {
-                        data.set(idx + offset);
-                    }
+    /**
+     * Releases the non-null regions
+     */
+    private void releaseRegions(@Nullable CachedRegion[] regions) {
+        synchronized (fileCache) {
+            long previousCacheBytes = cacheBytes;
+            for (CachedRegion region : regions) {
+                if (region != null) {
+                    unpinRegion(region);
                 }
             }
+            evictToBudget();
+            reportCacheSize(previousCacheBytes);
         }
     }
 
-    private void readNode(int globalSectionX, int globalSectionZ, SurfaceTrackerNode node, BitSet data) {
-        int localNodeX = globalSectionX & NODE_POSITION_MASK;
-        int localNodeZ = globalSectionZ & NODE_POSITION_MASK;
+    private void unpinRegion(CachedRegion region) {
+        region.pins--;
+        long size = region.sizeBytes;
+        cacheBytes += size - region.accountedBytes;
+        region.accountedBytes = size;
+    }
 
-        int chunkIdx = localNodeX + localNodeZ * REGION_WIDTH_IN_NODES;
+    /**
+     * Must hold the cache lock, so that sizes are reported in the order they changed
+     */
+    private void reportCacheSize(long previousCacheBytes) {
+        if (cacheBytes != previousCacheBytes) {
+            listener.onCacheSizeChanged(cacheBytes);
+        }
+    }
 
-        int bitsForEntry = SurfaceTrackerNode.getBitsForScale(node.getScale());
+    /**
+     * Reads the region if that hasn't been done yet. The caller must hold the region's lock, so only users of the same region wait for the read.
+     */
+    private void ensureLoaded(NodeRegionPosition nodeRegionPosition, CachedRegion region) throws IOException {
+        if (region.loaded) {
+            return;
+        }
+
+        PendingWrite pendingWrite;
+        long[][] pendingPlanes;
+        synchronized (pendingWrites) {
+            pendingWrite = pendingWrites.get(nodeRegionPosition);
+            // the file may not have been written yet, and the snapshot can't be modified while it's being written
+            pendingPlanes = pendingWrite == null || pendingWrite.planes == null ? null : copyPlanes(pendingWrite.planes);
+        }
+        if (pendingPlanes != null) {
+            region.planes = pendingPlanes;
+            region.generation = pendingWrite.generation;
+            region.journalBytes = 0;
+        } else if (pendingWrite != null) {
+            assert pendingWrite.journalRecords != null;
+            // the journal is only complete once the append is done
+            try {
+                pendingWrite.future.join();
+            } catch (CompletionException | CancellationException ignored) {
+            }
+            readRegionFiles(nodeRegionPosition, region);
+            if (pendingWrite.future.isCompletedExceptionally()) {
+                // the append is retried by the next flush, until then the records only exist in memory
+                int bitsForEntry = SurfaceTrackerNode.getBitsForScale(nodeRegionPosition.scale());
+                region.planes = RegionJournal.applyRecords(pendingWrite.journalRecords, 0, pendingWrite.journalRecords.length, bitsForEntry,
+                    region.planes, new int[1]);
+            }
+        } else {
+            readRegionFiles(nodeRegionPosition, region);
+        }
+        region.loaded = true;
+        region.sizeBytes = region.estimateBytes();
+    }
+
+    /**
+     * Reads the region file and replays its journal, must hold the region's lock
+     */
+    private void readRegionFiles(NodeRegionPosition nodeRegionPosition, CachedRegion region) throws IOException {
+        Path filePath = getRegionPath(nodeRegionPosition);
+        region.planes = null;
+        region.generation = 0;
+        if (Files.exists(filePath)) {
+            byte[] file = Files.readAllBytes(filePath);
+            long startTime = System.nanoTime();
+            region.planes = readRegion(filePath, file, nodeRegionPosition.scale());
+            region.generation = regionGeneration(file);
+            listener.onRegionRead(file.length, System.nanoTime() - startTime);
+        }
+
+        Path journalPath = getJournalPath(nodeRegionPosition);
+        region.journalBytes = 0;
+        if (Files.exists(journalPath)) {
+            int bitsForEntry = SurfaceTrackerNode.getBitsForScale(nodeRegionPosition.scale());
+            region.planes = RegionJournal.replay(journalPath, region.generation, bitsForEntry, region.planes);
+            region.journalBytes = Files.exists(journalPath) ? Files.size(journalPath) : 0;
+        }
+    }
 
-        for (int blockX = 0; blockX < WIDTH_BLOCKS; blockX++) {
-            for (int blockZ = 0; blockZ < WIDTH_BLOCKS; blockZ++) {
-                int idx = chunkIdx * (WIDTH_BLOCKS * WIDTH_BLOCKS) + (blockX + blockZ * WIDTH_BLOCKS);
+    /**
+     * Evicts the least recently used regions until the cache fits in its budget, keeping the most recently used one and pinned ones.
+     * Must hold the cache lock. Modified regions are written in the background, they are no longer modified once evicted so no snapshot is needed.
+     */
+    private void evictToBudget() {
+        if (cacheBytes <= maxCacheBytes || fileCache.isEmpty()) {
+            return;
+        }
+        NodeRegionPosition mostRecent = fileCache.lastKey();
+        for (ObjectIterator<Map.Entry<NodeRegionPosition, CachedRegion>> iterator = fileCache.entrySet().iterator();
+             cacheBytes > maxCacheBytes && iterator.hasNext();) {
+            Map.Entry<NodeRegionPosition, CachedRegion> entry = iterator.next();
+            CachedRegion region = entry.getValue();
+            if (region.pins > 0 || entry.getKey().equals(mostRecent)) {
+                continue;
+            }
+            iterator.remove();
+            cacheBytes -= region.accountedBytes;
+            listener.onRegionEvicted(region.dirty);
+            // unpinned, so no other thread is using it and the cache lock orders this after their changes
+            if (region.dirty) {
+                assert region.planes != null;
+                scheduleRegionWrite(entry.getKey(), region, region.planes);
+            }
+        }
+    }
+
+    private static int regionGeneration(byte[] file) {
+        ByteBuffer header = ByteBuffer.wrap(file).order(ByteOrder.LITTLE_ENDIAN);
+        if (file.length < REGION_HEADER_BYTES || header.getInt(0) != REGION_MAGIC) {
+            return 0;
+        }
+        return header.getShort(6) & GENERATION_MASK;
+    }
+
+    /**
+     * Decodes a region file, in the current format or one of the older dense formats
+     */
+    private static long[][] readRegion(Path filePath, byte[] file, int scale) throws IOException {
+        int bitsForEntry = SurfaceTrackerNode.getBitsForScale(scale);
+
+        ByteBuffer header = ByteBuffer.wrap(file).order(ByteOrder.LITTLE_ENDIAN);
+        if (file.length < REGION_HEADER_BYTES || header.getInt(0) != REGION_MAGIC) {
+            byte[] data;
+            try (InputStream inputStream = new InflaterInputStream(new ByteArrayInputStream(file))) {
+                data = inputStream.readAllBytes();
+            }
+            return readDenseRegion(filePath, data, data.length, bitsForEntry);
+        }
+
+        byte version = header.get(4);
+        if (version != REGION_FORMAT_VERSION && version != DENSE_REGION_FORMAT_VERSION) {
+            throw new IOException("Heightmap region " + filePath + " has unknown format version " + version);
+        }
+        RegionCodec regionCodec = RegionCodecs.byId(header.get(5));
+        if (regionCodec == null) {
+            throw new IOException("Heightmap region " + filePath + " uses unknown codec " + header.get(5));
+        }
+        int length = header.getInt(8);
+        int maxLength = version == REGION_FORMAT_VERSION
+            ? PLANE_BITMAPS_BYTES + bitsForEntry * WORDS_PER_PLANE * Long.BYTES
+            : bitsForEntry * WORDS_PER_PLANE * Long.BYTES;
+        checkRegionLength(filePath, length, maxLength);
+        byte[] data = new byte[length];
+        regionCodec.decode(file, REGION_HEADER_BYTES, file.length - REGION_HEADER_BYTES, data);
+        if (version == DENSE_REGION_FORMAT_VERSION) {
+            return readDenseRegion(filePath, data, length, bitsForEntry);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        int storedPlanes = buffer.getInt(0);
+        int onesPlanes = buffer.getInt(Integer.BYTES);
+        int allPlanes = bitsForEntry == Integer.SIZE ? -1 : (1 << bitsForEntry) - 1;
+        if ((storedPlanes & onesPlanes) != 0 || ((storedPlanes | onesPlanes) & ~allPlanes) != 0
+            || length != PLANE_BITMAPS_BYTES + Integer.bitCount(storedPlanes) * WORDS_PER_PLANE * Long.BYTES) {
+            throw new IOException("Heightmap region " + filePath + " has invalid bit planes. Was the cube diameter changed?");
+        }
 
-                int height = 0;
-                for (int bitIdx = 0; bitIdx < bitsForEntry; bitIdx++) {
-                    int offset = bitIdx * (REGION_WIDTH_IN_NODES * REGION_WIDTH_IN_NODES) * (WIDTH_BLOCKS * WIDTH_BLOCKS);
-                    height |= (data.get(idx + offset) ? 1 : 0) << bitIdx;
+        long[][] planes = new long[bitsForEntry][];
+        buffer.position(PLANE_BITMAPS_BYTES);
+        for (int bitIdx = 0; bitIdx < bitsForEntry; bitIdx++) {
+            if ((storedPlanes & (1 << bitIdx)) != 0) {
+                planes[bitIdx] = new long[WORDS_PER_PLANE];
+                buffer.asLongBuffer().get(planes[bitIdx]);
+                buffer.position(buffer.position() + WORDS_PER_PLANE * Long.BYTES);
+            } else if ((onesPlanes & (1 << bitIdx)) != 0) {
+                planes[bitIdx] = ONES_PLANE;
+            }
+        }
+        return planes;
+    }
+
+    /**
+     * Reads the little endian bytes of all bit planes, with trailing zero bytes omitted (the format of {@link java.util.BitSet#toByteArray()}).
+     * Constant planes aren't kept.
+     */
+    private static long[][] readDenseRegion(Path filePath, byte[] data, int length, int bitsForEntry) throws IOException {
+        checkRegionLength(filePath, length, bitsForEntry * WORDS_PER_PLANE * Long.BYTES);
+        long[] words = new long[WORDS_PER_PLANE * bitsForEntry];
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        int fullWords = length / Long.BYTES;
+        buffer.asLongBuffer().get(words, 0, fullWords);
+        for (int byteIdx = fullWords * Long.BYTES; byteIdx < length; byteIdx++) {
+            words[fullWords] |= (data[byteIdx] & 0xFFL) << ((byteIdx - fullWords * Long.BYTES) * Byte.SIZE);
+        }
+
+        long[][] planes = new long[bitsForEntry][];
+        for (int bitIdx = 0; bitIdx < bitsForEntry; bitIdx++) {
+            long[] plane = Arrays.copyOfRange(words, bitIdx * WORDS_PER_PLANE, (bitIdx + 1) * WORDS_PER_PLANE);
+            long constant = constantValue(plane);
+            planes[bitIdx] = constant == 0 ? null : constant == -1L ? ONES_PLANE : plane;
+        }
+        return planes;
+    }
+
+    private static void checkRegionLength(Path filePath, int length, int maxLength) throws IOException {
+        if (length < 0 || length > maxLength) {
+            throw new IOException("Heightmap region " + filePath + " has " + length + " bytes, expected at most " + maxLength
+                + ". Was the cube diameter changed?");
+        }
+    }
+
+    /**
+     * Rewrites the whole region, which also replaces its journal. The planes must not be modified afterwards. Must hold the region's lock, or own
+     * it by having evicted it.
+     */
+    private void scheduleRegionWrite(NodeRegionPosition nodeRegionPosition, CachedRegion region, long[][] planes) {
+        region.generation = (region.generation + 1) & GENERATION_MASK;
+        region.journalBytes = 0;
+        region.clearDirty();
+        scheduleWrite(nodeRegionPosition, planes, null, region.generation);
+    }
+
+    /**
+     * Appends the nodes saved since the last flush to the region's journal. Must hold the region's lock.
+     */
+    private void scheduleJournalAppend(NodeRegionPosition nodeRegionPosition, CachedRegion region) {
+        assert region.planes != null;
+        byte[] records = RegionJournal.encodeRecords(region.planes, region.dirtyNodes);
+        region.journalBytes = region.journalBytes == 0 ? RegionJournal.fileBytes(records.length) : region.journalBytes + records.length;
+        region.clearDirty();
+        scheduleWrite(nodeRegionPosition, null, records, region.generation);
+    }
+
+    /**
+     * Whether the region was modified since it was loaded or last flushed, but only in few enough nodes that appending them to its journal is
+     * cheaper than rewriting it. Must hold the region's lock.
+     */
+    private boolean shouldAppendToJournal(NodeRegionPosition nodeRegionPosition, CachedRegion region) {
+        assert region.planes != null;
+        long appendBytes = (long) region.dirtyNodeCount() * RegionJournal.recordBytes(region.planes.length);
+        long journalBytes = region.journalBytes == 0 ? RegionJournal.fileBytes(appendBytes) : region.journalBytes + appendBytes;
+        if (!journaled || journalBytes > region.sizeBytes / 2) {
+            return false;
+        }
+        synchronized (pendingWrites) {
+            // records are only appended on top of files that are known to be written, so a failed write never has to be merged into a later one
+            reapCompletedWrites();
+            return !pendingWrites.containsKey(nodeRegionPosition);
+        }
+    }
+
+    /**
+     * Writes the region or appends to its journal on {@link #ioExecutor}, exactly one of {@code planes} and {@code journalRecords} is non-null.
+     * Writes to the same region are chained, so an older snapshot can never overwrite a newer one.
+     */
+    private void scheduleWrite(NodeRegionPosition nodeRegionPosition, @Nullable long[][] planes, @Nullable byte[] journalRecords, int generation) {
+        Runnable write = () -> {
+            try {
+                if (planes != null) {
+                    writeRegion(nodeRegionPosition, planes, generation);
+                } else {
+                    assert journalRecords != null;
+                    RegionJournal.append(getJournalPath(nodeRegionPosition), generation, journalRecords);
+                    listener.onJournalAppended(journalRecords.length);
                 }
-                node.setRawHeight(blockX, blockZ, gray2bin(height));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+        synchronized (pendingWrites) {
+            reapCompletedWrites();
+            PendingWrite previous = pendingWrites.get(nodeRegionPosition);
+            CompletableFuture<Void> future = previous == null
+                ? CompletableFuture.runAsync(write, ioExecutor)
+                : previous.future.exceptionally(t -> null).thenRunAsync(write, ioExecutor);
+            pendingWrites.put(nodeRegionPosition, new PendingWrite(planes, journalRecords, generation, future));
+        }
+    }
+
+    /**
+     * Forgets successful writes. Failed writes are kept, their snapshot is the newest copy of the region that isn't on disk, so it's used if the
+     * region is loaded again and the next flush retries it. Must hold the lock of {@link #pendingWrites}.
+     */
+    private void reapCompletedWrites() {
+        this.pendingWrites.values().removeIf(pendingWrite -> pendingWrite.future.isDone() && !pendingWrite.future.isCompletedExceptionally());
+    }
+
+    private void writeRegion(NodeRegionPosition nodeRegionPosition, long[][] planes, int generation) throws IOException {
+        long startTime = System.nanoTime();
+        int storedPlanes = 0;
+        int onesPlanes = 0;
+        for (int bitIdx = 0; bitIdx < planes.length; bitIdx++) {
+            long[] plane = planes[bitIdx];
+            // planes can become constant again after they were allocated, so check the contents as well
+            long constant = plane == null ? 0 : plane == ONES_PLANE ? -1L : constantValue(plane);
+            if (constant == -1L) {
+                onesPlanes |= 1 << bitIdx;
+            } else if (constant != 0) {
+                storedPlanes |= 1 << bitIdx;
+            }
+        }
+
+        int length = PLANE_BITMAPS_BYTES + Integer.bitCount(storedPlanes) * WORDS_PER_PLANE * Long.BYTES;
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(storedPlanes).putInt(onesPlanes);
+        for (int bitIdx = 0; bitIdx < planes.length; bitIdx++) {
+            if ((storedPlanes & (1 << bitIdx)) != 0) {
+                buffer.asLongBuffer().put(planes[bitIdx]);
+                buffer.position(buffer.position() + WORDS_PER_PLANE * Long.BYTES);
+            }
+        }
+
+        byte[] encoded = codec.encode(buffer.array(), length);
+
+        ByteBuffer header = ByteBuffer.allocate(REGION_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(REGION_MAGIC).put(REGION_FORMAT_VERSION).put(codec.id()).putShort((short) generation).putInt(length).flip();
+        long encodeNanos = System.nanoTime() - startTime;
+
+        Path filePath = getRegionPath(nodeRegionPosition);
+        Path tempPath = filePath.resolveSibling(filePath.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer[] buffers = { header, ByteBuffer.wrap(encoded) };
+            while (buffers[1].hasRemaining()) {
+                channel.write(buffers);
+            }
+            // the data has to be on disk before the rename is, or a crash could leave an empty region behind
+            channel.force(false);
+        }
+        try {
+            Files.move(tempPath, filePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempPath, filePath, StandardCopyOption.REPLACE_EXISTING);
+        }
+        // the new region includes everything in the journal. If this doesn't happen the journal's generation no longer matches and it's ignored
+        Files.deleteIfExists(getJournalPath(nodeRegionPosition));
+        listener.onRegionWritten(REGION_HEADER_BYTES + encoded.length, encodeNanos);
+    }
+
+    /**
+     * Returns 0 or -1 if every word of the plane is that value, otherwise 1
+     */
+    private static long constantValue(long[] plane) {
+        long first = plane[0];
+        if (first != 0 && first != -1L) {
+            return 1;
+        }
+        for (long word : plane) {
+            if (word != first) {
+                return 1;
+            }
+        }
+        return first;
+    }
+
+    private static long[] filledPlane(long word) {
+        long[] plane = new long[WORDS_PER_PLANE];
+        Arrays.fill(plane, word);
+        return plane;
+    }
+
+    /**
+     * Copies the planes that can be modified, constant planes are shared
+     */
+    private static long[][] copyPlanes(long[][] planes) {
+        long[][] copy = planes.clone();
+        for (int bitIdx = 0; bitIdx < copy.length; bitIdx++) {
+            if (copy[bitIdx] != null && copy[bitIdx] != ONES_PLANE) {
+                copy[bitIdx] = copy[bitIdx].clone();
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Writes the node's heights into its slice of every bit plane. Each group of 64 columns is gray coded and transposed, so that every plane
+     * receives a whole word at once. Constant planes are only allocated once the node doesn't match them.
+     */
+    private static void writeNode(int globalSectionX, int globalSectionZ, SurfaceTrackerNode node, long[][] planes) {
+        int bitsForEntry = SurfaceTrackerNode.getBitsForScale(node.getScale());
+        int nodeWordIdx = nodeIndex(globalSectionX, globalSectionZ) * WORDS_PER_NODE_PLANE;
+
+        long[] rows = new long[Long.SIZE];
+        for (int group = 0; group < WORDS_PER_NODE_PLANE; group++) {
+            for (int i = 0; i < Long.SIZE; i++) {
+                int idx = group * Long.SIZE + i;
+                rows[i] = bin2gray(node.getRawHeight(idx & (WIDTH_BLOCKS - 1), idx / WIDTH_BLOCKS));
+            }
+            Bits.transpose64x64(rows);
+            // every word is replaced, which also clears bits left over from an older version of this node
+            for (int bitIdx = 0; bitIdx < bitsForEntry; bitIdx++) {
+                setPlaneWord(planes, bitIdx, nodeWordIdx + group, rows[bitIdx]);
+            }
+        }
+    }
+
+    /**
+     * Sets a word of a plane, allocating the plane if it was constant and the word doesn't match
+     */
+    static void setPlaneWord(long[][] planes, int bitIdx, int wordIdx, long word) {
+        long[] plane = planes[bitIdx];
+        if (plane == null) {
+            if (word == 0) {
+                return;
+            }
+            plane = new long[WORDS_PER_PLANE];
+            planes[bitIdx] = plane;
+        } else if (plane == ONES_PLANE) {
+            if (word == -1L) {
+                return;
+            }
+            plane = filledPlane(-1L);
+            planes[bitIdx] = plane;
+        }
+        plane[wordIdx] = word;
+    }
+
+    private static void readNode(int globalSectionX, int globalSectionZ, SurfaceTrackerNode node, long[][] planes) {
+        int bitsForEntry = SurfaceTrackerNode.getBitsForScale(node.getScale());
+        int nodeWordIdx = nodeIndex(globalSectionX, globalSectionZ) * WORDS_PER_NODE_PLANE;
+
+        long[] rows = new long[Long.SIZE];
+        for (int group = 0; group < WORDS_PER_NODE_PLANE; group++) {
+            for (int bitIdx = 0; bitIdx < bitsForEntry; bitIdx++) {
+                long[] plane = planes[bitIdx];
+                rows[bitIdx] = plane == null ? 0 : plane[nodeWordIdx + group];
+            }
+            Arrays.fill(rows, bitsForEntry, Long.SIZE, 0L);
+            Bits.transpose64x64(rows);
+            for (int i = 0; i < Long.SIZE; i++) {
+                int idx = group * Long.SIZE + i;
+                node.setRawHeight(idx & (WIDTH_BLOCKS - 1), idx / WIDTH_BLOCKS, gray2bin((int) rows[i]));
             }
         }
+        // the node matches what's stored, it only needs saving once it's modified
+        node.clearRequiresSave();
     }
 
+    private static int nodeIndex(int globalSectionX, int globalSectionZ) {
+        return (globalSectionX & NODE_POSITION_MASK) + (globalSectionZ & NODE_POSITION_MASK) * REGION_WIDTH_IN_NODES;
+    }
+
+    /**
+     * Writes all modified regions to disk, waiting for the writes to finish. Written regions stay cached, the cache is bounded by its memory budget
+     * instead.
+     */
     @Override public void flush() throws IOException {
         if (isClosed) {
             return;
         }
 
-        IOException suppressed = null;
-        for (ObjectIterator<Map.Entry<NodeRegionPosition, Optional<BitSet>>> iterator = this.fileCache.entrySet().iterator(); iterator.hasNext();) {
-            Map.Entry<NodeRegionPosition, Optional<BitSet>> entry = iterator.next();
-            NodeRegionPosition nodeRegionPosition = entry.getKey();
-            Optional<BitSet> value = entry.getValue();
+        awaitFlush(flushAsync(false));
+    }
 
-            if (value.isEmpty()) {
-                continue;
+    private static void awaitFlush(CompletableFuture<Void> flush) throws IOException {
+        try {
+            flush.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException cause) {
+                throw cause.getCause();
             }
+            throw e;
+        }
+    }
 
-            BitSet bitSet = value.get();
-            try {
-                try (OutputStream outputStream = new DeflaterOutputStream(new FileOutputStream(
-                    this.storageFolder.toPath().resolve(getRegionName(nodeRegionPosition)).toFile()))) {
-                    outputStream.write(bitSet.toByteArray());
-                    iterator.remove(); // successfully wrote the data, it should be removed from the cache
-                }
-            } catch (IOException e) { // add any exceptions to a single exception to throw after iteration
-                if (suppressed == null) {
-                    suppressed = e;
-                } else {
-                    suppressed.addSuppressed(e);
+    /**
+     * Snapshots all modified regions and compresses and writes them on the storage's executor, or appends their modified nodes to their journals.
+     * The returned future also waits for writes started earlier, for example by eviction, and retries failed ones.
+     */
+    @Override public CompletableFuture<Void> flushAsync() {
+        if (isClosed) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return flushAsync(false);
+    }
+
+    /**
+     * @param compact whether to rewrite all regions that have a journal, rather than appending to it
+     */
+    private CompletableFuture<Void> flushAsync(boolean compact) {
+        long startTime = System.nanoTime();
+        List<NodeRegionPosition> positions;
+        List<CachedRegion> regions;
+        synchronized (fileCache) {
+            positions = new ArrayList<>(fileCache.size());
+            regions = new ArrayList<>(fileCache.size());
+            for (Map.Entry<NodeRegionPosition, CachedRegion> entry : fileCache.entrySet()) {
+                entry.getValue().pins++;
+                positions.add(entry.getKey());
+                regions.add(entry.getValue());
+            }
+        }
+        try {
+            for (int i = 0; i < regions.size(); i++) {
+                CachedRegion region = regions.get(i);
+                synchronized (region) {
+                    if (!region.dirty && !(compact && region.journalBytes > 0)) {
+                        continue;
+                    }
+                    assert region.planes != null;
+                    // scheduled while holding the region's lock, so that snapshots of a region are scheduled in the order they were taken
+                    if (!compact && shouldAppendToJournal(positions.get(i), region)) {
+                        scheduleJournalAppend(positions.get(i), region);
+                    } else {
+                        // the cached planes keep being modified while the snapshot is written
+                        scheduleRegionWrite(positions.get(i), region, copyPlanes(region.planes));
+                    }
                 }
             }
+        } finally {
+            releaseRegions(regions.toArray(new CachedRegion[0]));
         }
 
-        if (suppressed != null) {
-            throw suppressed;
+        synchronized (pendingWrites) {
+            reapCompletedWrites();
+            List<NodeRegionPosition> failed = new ArrayList<>();
+            for (Map.Entry<NodeRegionPosition, PendingWrite> entry : this.pendingWrites.entrySet()) {
+                if (entry.getValue().future.isCompletedExceptionally()) {
+                    failed.add(entry.getKey());
+                }
+            }
+            for (NodeRegionPosition nodeRegionPosition : failed) {
+                PendingWrite pendingWrite = this.pendingWrites.get(nodeRegionPosition);
+                scheduleWrite(nodeRegionPosition, pendingWrite.planes, pendingWrite.journalRecords, pendingWrite.generation);
+            }
+            CompletableFuture<Void> allWrites = CompletableFuture.allOf(this.pendingWrites.values().stream().map(PendingWrite::future)
+                .toArray(CompletableFuture[]::new));
+            return allWrites.whenComplete((result, throwable) -> listener.onFlush(System.nanoTime() - startTime, throwable == null));
         }
     }
 
@@ -229,8 +913,19 @@ public class InterleavedHeightmapStorage implements HeightmapStorage {
             return;
         }
 
+        // leave complete region files behind, rather than journals that have to be replayed
+        awaitFlush(flushAsync(true));
         isClosed = true;
-        flush();
+        synchronized (fileCache) {
+            long previousCacheBytes = cacheBytes;
+            this.fileCache.clear();
+            this.cacheBytes = 0;
+            reportCacheSize(previousCacheBytes);
+        }
+    }
+
+    @Override public void setListener(HeightmapStorageListener listener) {
+        this.listener = listener;
     }
 
     @Override public File storageDirectory() {
@@ -241,13 +936,76 @@ public class InterleavedHeightmapStorage implements HeightmapStorage {
         return n ^ (n >>> 1);
     }
 
-    private static int gray2bin(int n1) {
-        int n2 = n1;
-        while ((n1 >>>= 1) != 0) {
-            n2 ^= n1;
-        }
-        return n2;
+    private static int gray2bin(int gray) {
+        // prefix xor over the higher bits, in log2(32) steps
+        int n = gray;
+        n ^= n >>> 1;
+        n ^= n >>> 2;
+        n ^= n >>> 4;
+        n ^= n >>> 8;
+        n ^= n >>> 16;
+        return n;
     }
 
-    private record NodeRegionPosition(int regionX, int regionZ, int scale, int scaledY, int heightmapType) { }
-}
\ No newline at end of file
+    /**
+     * Either a snapshot of the whole region, or records appended to its journal
+     */
+    private record PendingWrite(@Nullable long[][] planes, @Nullable byte[] journalRecords, int generation, CompletableFuture<Void> future) {
+    }
+
+    private static final class CachedRegion {
+        // guarded by the region's own lock
+        boolean loaded = false;
+        /**
+         * Null if the region doesn't exist on disk and nothing has been saved to it. Otherwise a plane for each bit, which is null if all zeros,
+         * {@link #ONES_PLANE} if all ones, or {@link #WORDS_PER_PLANE} words.
+         */
+        @Nullable long[][] planes;
+        boolean dirty = false;
+        /** Nodes saved since the region was loaded or flushed, one bit per node */
+        final long[] dirtyNodes = new long[NODES_PER_REGION / Long.SIZE];
+        /** Generation of the region file, changed by every rewrite */
+        int generation = 0;
+        /** Size of the region's journal on disk, including appends that haven't finished yet */
+        long journalBytes = 0;
+        /** Updated under the region's lock, read under the cache lock */
+        volatile long sizeBytes = MISSING_REGION_BYTES;
+
+        // guarded by the cache lock
+        /** Number of threads using the region, pinned regions aren't evicted */
+        int pins = 0;
+        /** The size this region currently contributes to {@link #cacheBytes} */
+        long accountedBytes = 0;
+
+        void markDirty(int nodeIdx) {
+            dirty = true;
+            dirtyNodes[nodeIdx >>> 6] |= 1L << nodeIdx;
+        }
+
+        void clearDirty() {
+            dirty = false;
+            Arrays.fill(dirtyNodes, 0);
+        }
+
+        int dirtyNodeCount() {
+            int count = 0;
+            for (long word : dirtyNodes) {
+                count += Long.bitCount(word);
+            }
+            return count;
+        }
+
+        long estimateBytes() {
+            if (planes == null) {
+                return MISSING_REGION_BYTES;
+            }
+            long bytes = MISSING_REGION_BYTES;
+            for (long[] plane : planes) {
+                if (plane != null && plane != ONES_PLANE) {
+                    bytes += (long) WORDS_PER_PLANE * Long.BYTES;
+                }
+            }
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Pure Java compressor and decompressor for the LZ4 block format, using a single pass greedy match search.
+ * <p>
+ * Sequences are a token (literal length in the high nibble, match length - 4 in the low nibble), extra literal length bytes, the literals, a
+ * little endian 16 bit match offset and extra match length bytes. The last sequence only has literals.
+ */
+final class Lz4RegionCodec implements RegionCodec {
+    private static final int MIN_MATCH = 4;
+    // the format requires the last 5 bytes to be literals, and the last match to start at least 12 bytes before the end
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_FIND_LIMIT = 12;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int RUN_MASK = 0xF;
+
+    private static final int HASH_BITS = 16;
+    // skip ahead faster the longer no match was found, so incompressible data is passed over quickly
+    private static final int SKIP_STRENGTH = 6;
+
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final byte id;
+
+    Lz4RegionCodec(byte id) {
+        this.id = id;
+    }
+
+    @Override public byte id() {
+        return this.id;
+    }
+
+    @Override public byte[] encode(byte[] data, int length) {
+        byte[] encoded = new byte[length + length / 255 + 16];
+        // position + 1 of the last occurrence of each hashed 4 byte sequence, 0 if there was none
+        int[] table = new int[1 << HASH_BITS];
+
+        int matchLimit = length - LAST_LITERALS;
+        int inputLimit = length - MATCH_FIND_LIMIT;
+        int anchor = 0;
+        int inputPos = 0;
+        int outputPos = 0;
+        while (inputPos < inputLimit) {
+            int sequence = (int) INT.get(data, inputPos);
+            int hash = (sequence * -1640531535) >>> (Integer.SIZE - HASH_BITS);
+            int reference = table[hash] - 1;
+            table[hash] = inputPos + 1;
+
+            if (reference < 0 || inputPos - reference > MAX_OFFSET || (int) INT.get(data, reference) != sequence) {
+                inputPos += 1 + ((inputPos - anchor) >>> SKIP_STRENGTH);
+                continue;
+            }
+
+            int matchLength = MIN_MATCH + commonLength(data, reference + MIN_MATCH, inputPos + MIN_MATCH, matchLimit);
+            outputPos = writeSequence(data, anchor, inputPos - anchor, inputPos - reference, matchLength, encoded, outputPos);
+            inputPos += matchLength;
+            anchor = inputPos;
+        }
+
+        // the remaining bytes are literals
+        int literalLength = length - anchor;
+        int token = outputPos++;
+        outputPos = writeTokenLength(encoded, token, outputPos, literalLength, 4);
+        System.arraycopy(data, anchor, encoded, outputPos, literalLength);
+        outputPos += literalLength;
+        return Arrays.copyOf(encoded, outputPos);
+    }
+
+    /**
+     * Returns how many bytes at {@code second} repeat the bytes at {@code first}, stopping at {@code limit}. {@code first} is before {@code second}.
+     */
+    private static int commonLength(byte[] data, int first, int second, int limit) {
+        int start = second;
+        while (second + Long.BYTES <= limit) {
+            long difference = (long) LONG.get(data, first) ^ (long) LONG.get(data, second);
+            if (difference != 0) {
+                return second - start + Long.numberOfTrailingZeros(difference) / Byte.SIZE;
+            }
+            first += Long.BYTES;
+            second += Long.BYTES;
+        }
+        while (second < limit && data[first] == data[second]) {
+            first++;
+            second++;
+        }
+        return second - start;
+    }
+
+    private static int writeSequence(byte[] data, int literalStart, int literalLength, int offset, int matchLength, byte[] encoded, int outputPos) {
+        int token = outputPos++;
+        outputPos = writeTokenLength(encoded, token, outputPos, literalLength, 4);
+        System.arraycopy(data, literalStart, encoded, outputPos, literalLength);
+        outputPos += literalLength;
+
+        encoded[outputPos++] = (byte) offset;
+        encoded[outputPos++] = (byte) (offset >>> 8);
+        return writeTokenLength(encoded, token, outputPos, matchLength - MIN_MATCH, 0);
+    }
+
+    /**
+     * Stores a length in the nibble of the token at {@code shift}, followed by extra length bytes if it doesn't fit
+     */
+    private static int writeTokenLength(byte[] encoded, int token, int outputPos, int length, int shift) {
+        if (length < RUN_MASK) {
+            encoded[token] |= (byte) (length << shift);
+            return outputPos;
+        }
+        encoded[token] |= (byte) (RUN_MASK << shift);
+        length -= RUN_MASK;
+        while (length >= 0xFF) {
+            encoded[outputPos++] = (byte) 0xFF;
+            length -= 0xFF;
+        }
+        encoded[outputPos++] = (byte) length;
+        return outputPos;
+    }
+
+    @Override public void decode(byte[] encoded, int offset, int length, byte[] decoded) throws IOException {
+        int end = offset + length;
+        int inputPos = offset;
+        int outputPos = 0;
+        try {
+            while (true) {
+                int token = encoded[inputPos++] & 0xFF;
+
+                int literalLength = token >>> 4;
+                if (literalLength == RUN_MASK) {
+                    int extra;
+                    do {
+                        extra = encoded[inputPos++] & 0xFF;
+                        literalLength += extra;
+                    } while (extra == 0xFF);
+                }
+                if (inputPos + literalLength > end || outputPos + literalLength > decoded.length) {
+                    throw new IOException("Corrupt LZ4 data, literals past the end");
+                }
+                System.arraycopy(encoded, inputPos, decoded, outputPos, literalLength);
+                inputPos += literalLength;
+                outputPos += literalLength;
+                if (inputPos == end) {
+                    break;
+                }
+
+                int matchOffset = (encoded[inputPos++] & 0xFF) | (encoded[inputPos++] & 0xFF) << 8;
+                int matchLength = token & RUN_MASK;
+                if (matchLength == RUN_MASK) {
+                    int extra;
+                    do {
+                        extra = encoded[inputPos++] & 0xFF;
+                        matchLength += extra;
+                    } while (extra == 0xFF);
+                }
+                matchLength += MIN_MATCH;
+
+                int reference = outputPos - matchOffset;
+                if (matchOffset == 0 || reference < 0 || outputPos + matchLength > decoded.length) {
+                    throw new IOException("Corrupt LZ4 data, invalid match");
+                }
+                // the match may overlap its own output, repeating the bytes between reference and outputPos. Every copy doubles the repeated run.
+                int matchEnd = outputPos + matchLength;
+                while (outputPos < matchEnd) {
+                    int copyLength = Math.min(outputPos - reference, matchEnd - outputPos);
+                    System.arraycopy(decoded, reference, decoded, outputPos, copyLength);
+                    outputPos += copyLength;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupt LZ4 data, truncated", e);
+        }
+        if (outputPos != decoded.length) {
+            throw new IOException("LZ4 data decoded to " + outputPos + " bytes, expected " + decoded.length);
+        }
+    }
+}
@@ -0,0 +1,435 @@
+package io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree;
+
+import static io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerNode.WIDTH_BLOCKS;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import io.github.opencubicchunks.cc_core.utils.MathUtil;
+import io.github.opencubicchunks.cc_core.world.heightmap.HeightmapStorage;
+import io.netty.util.internal.PlatformDependent;
+import it.unimi.dsi.fastutil.objects.Object2ReferenceLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Heightmap storage backed by memory-mapped region files with a fixed layout.
+ * <p>
+ * Every node of a region has a fixed-size slot, so saving and loading a node only touches that node's slice of the mapping. Nothing is inflated,
+ * deflated or copied to the heap, at the cost of larger (but sparse) files on disk.
+ * <p>
+ * File layout, little endian:
+ * <ul>
+ *     <li>{@code int} magic, {@code int} format version, {@code int} bits per entry, {@code int} reserved</li>
+ *     <li>presence bitmap with one bit per node slot</li>
+ *     <li>{@link #NODES_PER_REGION} node slots, each holding {@code WIDTH_BLOCKS * WIDTH_BLOCKS} densely packed raw heights</li>
+ * </ul>
+ * <p>
+ * Safe to use from multiple threads. Nodes of different regions are saved and loaded in parallel, the lock shared by all regions is only held to
+ * look up the cache. At most a fixed number of regions stay mapped, the least recently used ones are written to disk and unmapped.
+ */
+public class MappedHeightmapStorage implements HeightmapStorage {
+    private static final int REGION_WIDTH_IN_NODES = 64;
+    private static final int NODE_POSITION_SHIFT = MathUtil.log2(REGION_WIDTH_IN_NODES);
+    private static final int NODE_POSITION_MASK = (1 << NODE_POSITION_SHIFT) - 1;
+    private static final int NODES_PER_REGION = REGION_WIDTH_IN_NODES * REGION_WIDTH_IN_NODES;
+    private static final int ENTRIES_PER_NODE = WIDTH_BLOCKS * WIDTH_BLOCKS;
+
+    private static final int MAGIC = 0x4343484D; // "CCHM"
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = MAGIC_OFFSET + Integer.BYTES;
+    private static final int BITS_OFFSET = VERSION_OFFSET + Integer.BYTES;
+    private static final int HEADER_BYTES = BITS_OFFSET + Integer.BYTES * 2;
+
+    private static final int PRESENCE_OFFSET = HEADER_BYTES;
+    private static final int PRESENCE_BYTES = NODES_PER_REGION / Byte.SIZE;
+    private static final int SLOTS_OFFSET = PRESENCE_OFFSET + PRESENCE_BYTES;
+
+    public static final int DEFAULT_MAX_CACHED_REGIONS = 64;
+
+    /**
+     * Cached regions in access order, the least recently used region is first. Its lock guards the order and {@link CachedRegion#pins}. It's
+     * never acquired while holding the lock of a region.
+     */
+    private final Object2ReferenceLinkedOpenHashMap<NodeRegionPosition, CachedRegion> regionCache = new Object2ReferenceLinkedOpenHashMap<>(64);
+    private final int maxCachedRegions;
+
+    private final File storageFolder;
+    private volatile boolean isClosed = false;
+
+    public MappedHeightmapStorage(File storageFolder) {
+        this(storageFolder, DEFAULT_MAX_CACHED_REGIONS);
+    }
+
+    /**
+     * @param maxCachedRegions the number of regions kept mapped. Once it's exceeded the least recently used regions are written to disk and
+     *                         unmapped. The most recently used region and regions in use by another thread are never evicted.
+     */
+    public MappedHeightmapStorage(File storageFolder, int maxCachedRegions) {
+        if (maxCachedRegions < 0) {
+            throw new IllegalArgumentException("Negative cache size " + maxCachedRegions);
+        }
+        this.maxCachedRegions = maxCachedRegions;
+        this.storageFolder = storageFolder;
+        try {
+            Files.createDirectories(storageFolder.toPath());
+        } catch (IOException cause) {
+            throw new UncheckedIOException("Failed to create storage folder for heightmaps", cause);
+        }
+    }
+
+    private String getRegionName(NodeRegionPosition nodeRegionPosition) {
+        return String.format("%d.%d.%d.%d.%d.mstr",
+            nodeRegionPosition.regionX(),
+            nodeRegionPosition.regionZ(),
+            nodeRegionPosition.scaledY(),
+            nodeRegionPosition.scale(),
+            nodeRegionPosition.heightmapType()
+        );
+    }
+
+    @Override public void saveNode(int globalSectionX, int globalSectionZ, SurfaceTrackerNode node) {
+        if (isClosed) {
+            throw new IllegalStateException("Heightmap storage already closed!");
+        }
+
+        if (!node.requiresSave()) {
+            return;
+        }
+
+        NodeRegionPosition nodeRegionPosition = new NodeRegionPosition(
+            globalSectionX >> NODE_POSITION_SHIFT, globalSectionZ >> NODE_POSITION_SHIFT, node.getScale(), node.getScaledY(), node.getRawType());
+        CachedRegion region = acquireRegion(nodeRegionPosition);
+        try {
+            synchronized (region) {
+                MappedByteBuffer buffer = mapRegion(nodeRegionPosition, region, true);
+                assert buffer != null;
+
+                int slot = slotIndex(globalSectionX, globalSectionZ);
+                writeNode(buffer, slotOffset(slot, node.getScale()), node);
+                setPresent(buffer, slot);
+            }
+            // clear after writing so that if it fails we attempt to write again
+            node.clearRequiresSave();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            releaseRegion(region);
+        }
+    }
+
+    @Nullable @Override public SurfaceTrackerNode loadNode(int globalSectionX, int globalSectionZ, @Nullable SurfaceTrackerBranch parent, byte heightmapType, int scale,
+                                                           int scaledY) {
+        if (isClosed) {
+            throw new IllegalStateException("Heightmap storage already closed!");
+        }
+
+        NodeRegionPosition nodeRegionPosition = new NodeRegionPosition(
+            globalSectionX >> NODE_POSITION_SHIFT, globalSectionZ >> NODE_POSITION_SHIFT, scale, scaledY, heightmapType);
+        CachedRegion region = acquireRegion(nodeRegionPosition);
+        try {
+            synchronized (region) {
+                MappedByteBuffer buffer = mapRegion(nodeRegionPosition, region, false);
+                int slot = slotIndex(globalSectionX, globalSectionZ);
+                if (buffer == null || !isPresent(buffer, slot)) {
+                    return null;
+                }
+
+                SurfaceTrackerNode node;
+                if (scale == 0) {
+                    node = new SurfaceTrackerLeaf(scaledY, parent, heightmapType);
+                } else {
+                    node = new SurfaceTrackerBranch(scale, scaledY, parent, heightmapType);
+                }
+                readNode(buffer, slotOffset(slot, scale), node);
+                return node;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            releaseRegion(region);
+        }
+    }
+
+    /**
+     * Returns the cache entry of the region, creating an unmapped entry if there is none, and marks it as the most recently used region. The entry
+     * is pinned, so it can't be evicted until {@link #releaseRegion(CachedRegion)} is called.
+     */
+    private CachedRegion acquireRegion(NodeRegionPosition nodeRegionPosition) {
+        synchronized (regionCache) {
+            CachedRegion region = regionCache.getAndMoveToLast(nodeRegionPosition);
+            if (region == null) {
+                region = new CachedRegion();
+                regionCache.putAndMoveToLast(nodeRegionPosition, region);
+            }
+            region.pins++;
+            return region;
+        }
+    }
+
+    private void releaseRegion(CachedRegion region) {
+        List<CachedRegion> evicted;
+        synchronized (regionCache) {
+            region.pins--;
+            evicted = evictToBudget();
+        }
+        unmapAll(evicted);
+    }
+
+    /**
+     * Removes the least recently used regions until the cache fits in its budget, keeping the most recently used one and pinned ones. Must hold the
+     * cache lock. The removed regions are no longer used by any thread and must be unmapped by the caller, outside of the cache lock.
+     */
+    private List<CachedRegion> evictToBudget() {
+        if (regionCache.size() <= maxCachedRegions || regionCache.isEmpty()) {
+            return List.of();
+        }
+        List<CachedRegion> evicted = new ArrayList<>();
+        NodeRegionPosition mostRecent = regionCache.lastKey();
+        for (ObjectIterator<Map.Entry<NodeRegionPosition, CachedRegion>> iterator = regionCache.entrySet().iterator();
+             regionCache.size() > maxCachedRegions && iterator.hasNext();) {
+            Map.Entry<NodeRegionPosition, CachedRegion> entry = iterator.next();
+            if (entry.getValue().pins > 0 || entry.getKey().equals(mostRecent)) {
+                continue;
+            }
+            iterator.remove();
+            evicted.add(entry.getValue());
+        }
+        return evicted;
+    }
+
+    /**
+     * Writes the regions to disk and unmaps them. They must not be used by any other thread.
+     */
+    private static void unmapAll(List<CachedRegion> regions) {
+        for (CachedRegion region : regions) {
+            synchronized (region) {
+                region.unmap();
+            }
+        }
+    }
+
+    /**
+     * Returns the mapped region, mapping it if necessary. Must hold the region's lock.
+     *
+     * @param create whether to create the region file if it doesn't exist yet. If false, missing regions return null.
+     */
+    @Nullable private MappedByteBuffer mapRegion(NodeRegionPosition nodeRegionPosition, CachedRegion region, boolean create) throws IOException {
+        if (region.buffer != null || (region.missing && !create)) {
+            return region.buffer;
+        }
+
+        Path filePath = storageFolder.toPath().resolve(getRegionName(nodeRegionPosition));
+        int bitsPerEntry = SurfaceTrackerNode.getBitsForScale(nodeRegionPosition.scale());
+        long regionBytes = SLOTS_OFFSET + (long) NODES_PER_REGION * slotBytes(bitsPerEntry);
+        if (!Files.exists(filePath)) {
+            if (!create) {
+                region.missing = true;
+                return null;
+            }
+            createRegionFile(filePath, regionBytes, bitsPerEntry);
+        }
+
+        MappedByteBuffer buffer;
+        // the mapping stays valid after the channel is closed, so no file handles are kept open
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() != regionBytes) {
+                throw new IOException("Heightmap region " + filePath + " has size " + channel.size() + ", expected " + regionBytes);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, regionBytes);
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (buffer.getInt(MAGIC_OFFSET) != MAGIC || buffer.getInt(VERSION_OFFSET) != FORMAT_VERSION) {
+            PlatformDependent.freeDirectBuffer(buffer);
+            throw new IOException("Heightmap region " + filePath + " has an unknown header");
+        }
+        if (buffer.getInt(BITS_OFFSET) != bitsPerEntry) {
+            PlatformDependent.freeDirectBuffer(buffer);
+            throw new IOException("Heightmap region " + filePath + " was written with " + buffer.getInt(BITS_OFFSET) + " bits per entry, expected "
+                + bitsPerEntry + ". Was the cube diameter changed?");
+        }
+
+        region.buffer = buffer;
+        region.missing = false;
+        return buffer;
+    }
+
+    /**
+     * Creates an empty (sparse) region file. It's written next to the region and moved into place once its header is on disk, so that a crash can't
+     * leave a region without a header behind.
+     */
+    private static void createRegionFile(Path filePath, long regionBytes, int bitsPerEntry) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC_OFFSET, MAGIC);
+        header.putInt(VERSION_OFFSET, FORMAT_VERSION);
+        header.putInt(BITS_OFFSET, bitsPerEntry);
+
+        Path tempPath = filePath.resolveSibling(filePath.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            // extends the file to its full size without writing the empty slots
+            channel.write(ByteBuffer.allocate(1), regionBytes - 1);
+            channel.force(false);
+        }
+        try {
+            Files.move(tempPath, filePath, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempPath, filePath);
+        }
+    }
+
+    private static void writeNode(MappedByteBuffer region, int offset, SurfaceTrackerNode node) {
+        int bitsPerEntry = SurfaceTrackerNode.getBitsForScale(node.getScale());
+        long mask = (1L << bitsPerEntry) - 1;
+
+        // the entries of a node always fill a whole number of words, so there is never a partial word left at the end
+        long word = 0;
+        int wordBits = 0;
+        for (int idx = 0; idx < ENTRIES_PER_NODE; idx++) {
+            long height = node.getRawHeight(idx & 0xF, idx >> 4) & mask;
+            word |= height << wordBits;
+            wordBits += bitsPerEntry;
+            if (wordBits >= Long.SIZE) {
+                region.putLong(offset, word);
+                offset += Long.BYTES;
+                wordBits -= Long.SIZE;
+                word = wordBits == 0 ? 0 : height >>> (bitsPerEntry - wordBits);
+            }
+        }
+    }
+
+    private static void readNode(MappedByteBuffer region, int offset, SurfaceTrackerNode node) {
+        int bitsPerEntry = SurfaceTrackerNode.getBitsForScale(node.getScale());
+        long mask = (1L << bitsPerEntry) - 1;
+
+        for (int idx = 0, bitIdx = 0; idx < ENTRIES_PER_NODE; idx++, bitIdx += bitsPerEntry) {
+            int wordOffset = offset + (bitIdx >>> 6) * Long.BYTES;
+            int shift = bitIdx & (Long.SIZE - 1);
+
+            long value = region.getLong(wordOffset) >>> shift;
+            if (shift + bitsPerEntry > Long.SIZE) {
+                value |= region.getLong(wordOffset + Long.BYTES) << (Long.SIZE - shift);
+            }
+            node.setRawHeight(idx & 0xF, idx >> 4, (int) (value & mask));
+        }
+        // the node matches what's stored, it only needs saving once it's modified
+        node.clearRequiresSave();
+    }
+
+    private static boolean isPresent(MappedByteBuffer region, int slot) {
+        return (region.get(PRESENCE_OFFSET + (slot >>> 3)) & (1 << (slot & 7))) != 0;
+    }
+
+    private static void setPresent(MappedByteBuffer region, int slot) {
+        int offset = PRESENCE_OFFSET + (slot >>> 3);
+        region.put(offset, (byte) (region.get(offset) | (1 << (slot & 7))));
+    }
+
+    private static int slotIndex(int globalSectionX, int globalSectionZ) {
+        return (globalSectionX & NODE_POSITION_MASK) + (globalSectionZ & NODE_POSITION_MASK) * REGION_WIDTH_IN_NODES;
+    }
+
+    private static int slotOffset(int slot, int scale) {
+        return SLOTS_OFFSET + slot * slotBytes(SurfaceTrackerNode.getBitsForScale(scale));
+    }
+
+    private static int slotBytes(int bitsPerEntry) {
+        return ENTRIES_PER_NODE * bitsPerEntry / Byte.SIZE;
+    }
+
+    @Override public void flush() throws IOException {
+        if (isClosed) {
+            return;
+        }
+
+        // pinned, so that they can't be unmapped while they're written
+        List<CachedRegion> regions;
+        synchronized (regionCache) {
+            // drop missing regions, the files may have been created since
+            regionCache.values().removeIf(region -> region.missing && region.pins == 0);
+            regions = new ArrayList<>(regionCache.values());
+            for (CachedRegion region : regions) {
+                region.pins++;
+            }
+        }
+        try {
+            for (CachedRegion region : regions) {
+                synchronized (region) {
+                    if (region.buffer != null) {
+                        region.buffer.force();
+                    }
+                }
+            }
+        } finally {
+            List<CachedRegion> evicted;
+            synchronized (regionCache) {
+                for (CachedRegion region : regions) {
+                    region.pins--;
+                }
+                evicted = evictToBudget();
+            }
+            unmapAll(evicted);
+        }
+    }
+
+    /**
+     * Writes and unmaps every region. Must not be called while other threads are still using this storage.
+     */
+    @Override public void close() throws IOException {
+        if (isClosed) {
+            return;
+        }
+
+        isClosed = true;
+        List<CachedRegion> regions;
+        synchronized (regionCache) {
+            regions = new ArrayList<>(regionCache.values());
+            regionCache.clear();
+        }
+        unmapAll(regions);
+    }
+
+    @Override public File storageDirectory() {
+        return this.storageFolder;
+    }
+
+    private static final class CachedRegion {
+        // guarded by the region's own lock
+        /** Null if the region isn't mapped */
+        @Nullable MappedByteBuffer buffer;
+        /** Whether the region file didn't exist the last time it was looked for */
+        boolean missing = false;
+
+        // guarded by the cache lock
+        /** Number of threads using the region, pinned regions aren't evicted */
+        int pins = 0;
+
+        void unmap() {
+            MappedByteBuffer buffer = this.buffer;
+            if (buffer != null) {
+                buffer.force();
+                this.buffer = null;
+                // unmapped right away instead of once the buffer is garbage collected, which could keep every region ever used mapped
+                PlatformDependent.freeDirectBuffer(buffer);
+            }
+        }
+    }
+}
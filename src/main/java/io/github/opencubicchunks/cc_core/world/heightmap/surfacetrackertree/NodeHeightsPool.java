@@ -0,0 +1,123 @@
+package io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree;
+
+import static io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerNode.MAX_SCALE;
+
+import io.netty.util.internal.PlatformDependent;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+/**
+ * Pool of off-heap memory for the heights of {@link SurfaceTrackerNode}s, so that a loaded tree doesn't keep a heights array per node on the heap.
+ * Only the packed heights are pooled: the dirty bits of nodes, and the children and child masks of branches, stay on the heap, as they need atomic
+ * updates that aren't available for off-heap memory.
+ * <p>
+ * Memory is allocated in slabs holding many nodes of the same scale. The slot of an unloaded node isn't reused right away, as a thread may still
+ * be reading the node without a lock: it's only reused after the next call to {@link #reclaimReleased()}, which the owner of the tree calls at a
+ * point where no thread can still be reading unloaded nodes, such as the end of a tick. Until then such a thread reads the last heights of the
+ * node. Slabs are only freed when the pool is closed, after which nodes using it throw instead of accessing their heights.
+ * <p>
+ * A tree uses the pool given to its root, see {@link SurfaceTrackerBranch#SurfaceTrackerBranch(int, int, SurfaceTrackerBranch, byte, NodeHeightsPool)},
+ * nodes take it from their parent when they're created. Nodes in a pool must not be kept by a {@link io.github.opencubicchunks.cc_core.world.heightmap.HeightmapStorage}
+ * after they're saved, as their memory is reused right after.
+ */
+public class NodeHeightsPool implements AutoCloseable {
+    private static final int SLAB_BYTES = 64 * 1024;
+
+    private final LongArrayList[] freeSlots = new LongArrayList[MAX_SCALE + 1];
+    private final LongArrayList[] releasedSlots = new LongArrayList[MAX_SCALE + 1];
+    private final LongArrayList slabs = new LongArrayList();
+    private int usedSlots;
+    private volatile boolean closed = false;
+
+    public NodeHeightsPool() {
+        for (int scale = 0; scale <= MAX_SCALE; scale++) {
+            this.freeSlots[scale] = new LongArrayList();
+            this.releasedSlots[scale] = new LongArrayList();
+        }
+    }
+
+    /**
+     * Returns the address of zeroed memory for the heights of a node at the given scale
+     */
+    synchronized long allocate(int scale) {
+        checkOpen();
+        LongArrayList free = this.freeSlots[scale];
+        if (free.isEmpty()) {
+            long slotBytes = slotBytes(scale);
+            long slab = PlatformDependent.allocateMemory(SLAB_BYTES);
+            this.slabs.add(slab);
+            for (long slot = slab + SLAB_BYTES / slotBytes * slotBytes - slotBytes; slot >= slab; slot -= slotBytes) {
+                free.add(slot);
+            }
+        }
+        long slot = free.removeLong(free.size() - 1);
+        PlatformDependent.setMemory(slot, slotBytes(scale), (byte) 0);
+        this.usedSlots++;
+        return slot;
+    }
+
+    /**
+     * Returns a slot allocated by {@link #allocate(int)} for the same scale to the pool, to be reused after the next {@link #reclaimReleased()}
+     */
+    synchronized void release(int scale, long slot) {
+        if (this.closed) {
+            return;
+        }
+        this.releasedSlots[scale].add(slot);
+        this.usedSlots--;
+    }
+
+    /**
+     * Makes the slots of the nodes unloaded since the last call available again. Must only be called when no thread can still be reading a node
+     * unloaded before the call, as its memory is overwritten by the next node allocated in it.
+     */
+    public synchronized void reclaimReleased() {
+        for (int scale = 0; scale <= MAX_SCALE; scale++) {
+            this.freeSlots[scale].addAll(this.releasedSlots[scale]);
+            this.releasedSlots[scale].clear();
+        }
+    }
+
+    /**
+     * Throws if this pool is closed, so that a node still in use after it can't access freed memory
+     */
+    void checkOpen() {
+        if (this.closed) {
+            throw new IllegalStateException("Node heights pool already closed!");
+        }
+    }
+
+    /**
+     * Returns the number of nodes whose heights are currently held by this pool
+     */
+    public synchronized int usedSlots() {
+        return this.usedSlots;
+    }
+
+    /**
+     * Returns the number of bytes of off-heap memory allocated by this pool
+     */
+    public synchronized long allocatedBytes() {
+        return (long) this.slabs.size() * SLAB_BYTES;
+    }
+
+    private static long slotBytes(int scale) {
+        return (long) SurfaceTrackerNode.heightWords(scale) * Long.BYTES;
+    }
+
+    /**
+     * Frees all memory of this pool. Nodes still using it throw {@link IllegalStateException} when their heights are accessed afterwards. Must not
+     * be called while other threads may still be using its nodes, as an access that already passed the check could read freed memory.
+     */
+    @Override
+    public synchronized void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+
+        for (int i = 0; i < this.slabs.size(); i++) {
+            PlatformDependent.freeMemory(this.slabs.getLong(i));
+        }
+        this.slabs.clear();
+    }
+}
@@ -0,0 +1,6 @@
+package io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree;
+
+/**
+ * Key of a heightmap region file, shared by the region based {@link io.github.opencubicchunks.cc_core.world.heightmap.HeightmapStorage} implementations
+ */
+record NodeRegionPosition(int regionX, int regionZ, int scale, int scaledY, int heightmapType) { }
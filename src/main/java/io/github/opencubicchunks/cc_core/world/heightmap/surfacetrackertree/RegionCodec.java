@@ -0,0 +1,29 @@
+package io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree;
+
+import java.io.IOException;
+
+/**
+ * Compression used for the data of heightmap region files. Implementations must be thread safe.
+ *
+ * @see RegionCodecs
+ */
+public interface RegionCodec {
+    /**
+     * Identifier written to region file headers, unique among codecs and never changed once files using it exist
+     */
+    byte id();
+
+    /**
+     * Encodes the first {@code length} bytes of {@code data}
+     *
+     * @return the encoded data, exactly as long as its content
+     */
+    byte[] encode(byte[] data, int length) throws IOException;
+
+    /**
+     * Decodes {@code length} bytes of {@code encoded} starting at {@code offset}, filling {@code decoded} entirely
+     *
+     * @throws IOException if the data is corrupt or doesn't decode to exactly {@code decoded.length} bytes
+     */
+    void decode(byte[] encoded, int offset, int length, byte[] decoded) throws IOException;
+}
@@ -0,0 +1,100 @@
+package io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The built-in {@link RegionCodec}s
+ */
+public final class RegionCodecs {
+    /**
+     * zlib deflate, the smallest files. Also what region files without a header contain.
+     */
+    public static final RegionCodec DEFLATE = new RegionCodec() {
+        @Override public byte id() {
+            return 0;
+        }
+
+        @Override public byte[] encode(byte[] data, int length) throws IOException {
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream(length / 8 + 64);
+            try (DeflaterOutputStream outputStream = new DeflaterOutputStream(encoded)) {
+                outputStream.write(data, 0, length);
+            }
+            return encoded.toByteArray();
+        }
+
+        @Override public void decode(byte[] encoded, int offset, int length, byte[] decoded) throws IOException {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(encoded, offset, length);
+                int decodedLength = 0;
+                // keep inflating after the output is full so that the end of the stream (or excess data) is seen
+                byte[] excess = new byte[1];
+                while (!inflater.finished()) {
+                    int inflated = decodedLength < decoded.length
+                        ? inflater.inflate(decoded, decodedLength, decoded.length - decodedLength)
+                        : inflater.inflate(excess);
+                    if (inflated == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new IOException("Truncated deflate data");
+                    }
+                    decodedLength += inflated;
+                    if (decodedLength > decoded.length) {
+                        break;
+                    }
+                }
+                if (decodedLength != decoded.length) {
+                    throw new IOException("Deflate data doesn't have the expected length " + decoded.length);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException(e);
+            } finally {
+                inflater.end();
+            }
+        }
+    };
+
+    /**
+     * No compression, for when writing has to be as cheap as possible
+     */
+    public static final RegionCodec STORE = new RegionCodec() {
+        @Override public byte id() {
+            return 1;
+        }
+
+        @Override public byte[] encode(byte[] data, int length) {
+            byte[] encoded = new byte[length];
+            System.arraycopy(data, 0, encoded, 0, length);
+            return encoded;
+        }
+
+        @Override public void decode(byte[] encoded, int offset, int length, byte[] decoded) throws IOException {
+            if (length != decoded.length) {
+                throw new IOException("Stored data has length " + length + ", expected " + decoded.length);
+            }
+            System.arraycopy(encoded, offset, decoded, 0, length);
+        }
+    };
+
+    /**
+     * LZ4 block format, much faster than {@link #DEFLATE} at a lower ratio
+     */
+    public static final RegionCodec LZ4 = new Lz4RegionCodec((byte) 2);
+
+    private RegionCodecs() {
+        throw new Error();
+    }
+
+    @Nullable public static RegionCodec byId(byte id) {
+        return switch (id) {
+            case 0 -> DEFLATE;
+            case 1 -> STORE;
+            case 2 -> LZ4;
+            default -> null;
+        };
+    }
+}
@@ -0,0 +1,152 @@
+package io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree;
+
+import static io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerNode.WIDTH_BLOCKS;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Append-only journal of node slices for an {@link InterleavedHeightmapStorage} region, so that saving a few nodes doesn't rewrite the whole
+ * region. Replaying the journal over the region file gives the latest state of the region.
+ * <p>
+ * The journal starts with an {@code int} magic and the {@code int} generation of the region file it applies to, which changes every time the
+ * region file is rewritten. A journal left behind by a crash between rewriting the region and deleting the journal has an old generation and is
+ * discarded. It's followed by records: the {@code int} node index, the node's words of every bit plane and a CRC32 of both, all little endian.
+ * A record that was only partially written before a crash fails the check and is dropped with everything after it.
+ */
+final class RegionJournal {
+    private static final int MAGIC = 0x4A484343; // "CCHJ"
+    private static final int HEADER_BYTES = Integer.BYTES * 2;
+    private static final int WORDS_PER_NODE_PLANE = WIDTH_BLOCKS * WIDTH_BLOCKS / Long.SIZE;
+
+    private RegionJournal() {
+        throw new Error();
+    }
+
+    static int recordBytes(int bitsForEntry) {
+        return Integer.BYTES + bitsForEntry * WORDS_PER_NODE_PLANE * Long.BYTES + Integer.BYTES;
+    }
+
+    /**
+     * Size of a journal file holding {@code recordBytes} bytes of records
+     */
+    static long fileBytes(long recordBytes) {
+        return HEADER_BYTES + recordBytes;
+    }
+
+    /**
+     * Encodes a record for every node whose bit is set in {@code nodes}
+     */
+    static byte[] encodeRecords(long[][] planes, long[] nodes) {
+        int nodeCount = 0;
+        for (long word : nodes) {
+            nodeCount += Long.bitCount(word);
+        }
+        int recordBytes = recordBytes(planes.length);
+        ByteBuffer buffer = ByteBuffer.allocate(nodeCount * recordBytes).order(ByteOrder.LITTLE_ENDIAN);
+        CRC32 crc = new CRC32();
+        for (int wordIdx = 0; wordIdx < nodes.length; wordIdx++) {
+            for (long word = nodes[wordIdx]; word != 0; word &= word - 1) {
+                int start = buffer.position();
+                int nodeIdx = wordIdx * Long.SIZE + Long.numberOfTrailingZeros(word);
+                buffer.putInt(nodeIdx);
+                for (long[] plane : planes) {
+                    for (int group = 0; group < WORDS_PER_NODE_PLANE; group++) {
+                        buffer.putLong(plane == null ? 0 : plane[nodeIdx * WORDS_PER_NODE_PLANE + group]);
+                    }
+                }
+                crc.reset();
+                crc.update(buffer.array(), start, recordBytes - Integer.BYTES);
+                buffer.putInt((int) crc.getValue());
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Appends records to the journal, creating it if it doesn't exist, and waits for them to reach the disk
+     */
+    static void append(Path journalPath, int generation, byte[] records) throws IOException {
+        try (FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN).putInt(MAGIC).putInt(generation).flip();
+            if (channel.size() != 0) {
+                header.position(header.limit());
+            }
+            ByteBuffer[] buffers = { header, ByteBuffer.wrap(records) };
+            while (buffers[1].hasRemaining()) {
+                channel.write(buffers);
+            }
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Applies the journal to the planes of a region file with the given generation. A journal of another generation is deleted, and a partially
+     * written record at the end is truncated so that later records can be appended.
+     *
+     * @param planes the planes of the region file, or null if there is none
+     * @return the planes with the journal applied, null if there is no region file and nothing was applied
+     */
+    @Nullable static long[][] replay(Path journalPath, int generation, int bitsForEntry, @Nullable long[][] planes) throws IOException {
+        byte[] journal = Files.readAllBytes(journalPath);
+        ByteBuffer header = ByteBuffer.wrap(journal).order(ByteOrder.LITTLE_ENDIAN);
+        if (journal.length < HEADER_BYTES || header.getInt(0) != MAGIC || header.getInt(Integer.BYTES) != generation) {
+            Files.delete(journalPath);
+            return planes;
+        }
+
+        int[] validBytes = new int[1];
+        planes = applyRecords(journal, HEADER_BYTES, journal.length - HEADER_BYTES, bitsForEntry, planes, validBytes);
+        if (validBytes[0] != journal.length - HEADER_BYTES) {
+            try (FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.WRITE)) {
+                channel.truncate(HEADER_BYTES + validBytes[0]);
+            }
+        }
+        return planes;
+    }
+
+    /**
+     * Applies records to the planes, stopping at the first record that fails its check
+     *
+     * @param validBytes receives the length of the records that were applied
+     * @return the planes, allocated if they were null and any record was applied
+     */
+    @Nullable static long[][] applyRecords(byte[] records, int offset, int length, int bitsForEntry, @Nullable long[][] planes, int[] validBytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(records, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+        int recordBytes = recordBytes(bitsForEntry);
+        CRC32 crc = new CRC32();
+        int applied = 0;
+        while (length - applied >= recordBytes) {
+            int start = offset + applied;
+            crc.reset();
+            crc.update(records, start, recordBytes - Integer.BYTES);
+            int nodeIdx = buffer.getInt(start);
+            if (buffer.getInt(start + recordBytes - Integer.BYTES) != (int) crc.getValue()
+                || nodeIdx < 0 || nodeIdx >= InterleavedHeightmapStorage.NODES_PER_REGION) {
+                break;
+            }
+
+            if (planes == null) {
+                planes = new long[bitsForEntry][];
+            }
+            int wordOffset = start + Integer.BYTES;
+            for (int bitIdx = 0; bitIdx < bitsForEntry; bitIdx++) {
+                for (int group = 0; group < WORDS_PER_NODE_PLANE; group++) {
+                    InterleavedHeightmapStorage.setPlaneWord(planes, bitIdx, nodeIdx * WORDS_PER_NODE_PLANE + group, buffer.getLong(wordOffset));
+                    wordOffset += Long.BYTES;
+                }
+            }
+            applied += recordBytes;
+        }
+        validBytes[0] = applied;
+        return planes;
+    }
+}
@@ -1,5 +1,16 @@
 package io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
@@ -8,8 +19,22 @@ import io.github.opencubicchunks.cc_core.world.heightmap.HeightmapSource;
 import io.github.opencubicchunks.cc_core.world.heightmap.HeightmapStorage;
 
 public class SurfaceTrackerBranch extends SurfaceTrackerNode {
+    private static final VarHandle CHILDREN = MethodHandles.arrayElementVarHandle(SurfaceTrackerNode[].class);
+    private static final VarHandle CHILD_MASKS = MethodHandles.arrayElementVarHandle(char[].class);
+
+    /**
+     * Written with release and read with acquire semantics when other threads may be reading heights, so a child's heights are visible before
+     * the child is
+     */
     protected final SurfaceTrackerNode[] children;
 
+    /**
+     * For every position, a bit for each child that may have a height there, so that recomputing a height can skip straight to the highest
+     * child that has one. A bit is only cleared once the child has no height at the position and isn't dirty there, bits of unloaded children
+     * are meaningless and get reset when a child is loaded.
+     */
+    private final char[] childMasks = new char[WIDTH_BLOCKS * WIDTH_BLOCKS];
+
     private int requiredChildren;
 
     public SurfaceTrackerBranch(int scale, int scaledY,
@@ -23,6 +48,22 @@ public class SurfaceTrackerBranch extends SurfaceTrackerNode {
         this.children = new SurfaceTrackerNode[scale == MAX_SCALE ? ROOT_NODE_COUNT : NODE_COUNT];
     }
 
+    /**
+     * Creates a branch whose heights, and the heights of all nodes created under it, are stored in the given pool. Should be used for roots.
+     *
+     * @param heightsPool the pool to store heights in, or null to store them on the heap
+     */
+    public SurfaceTrackerBranch(int scale, int scaledY,
+                                @Nullable SurfaceTrackerBranch parent, byte heightmapType, @Nullable NodeHeightsPool heightsPool) {
+        super(scale, scaledY, parent, heightmapType, heightsPool);
+        if (scale <= 0 || scale > MAX_SCALE) {
+            throw new InvalidScaleException("Invalid scale for branch: " + scale);
+        }
+
+        // MAX_SCALE nodes have 2 children
+        this.children = new SurfaceTrackerNode[scale == MAX_SCALE ? ROOT_NODE_COUNT : NODE_COUNT];
+    }
+
     /**
      * Should be used when loading from save
      */
@@ -40,11 +81,20 @@ public class SurfaceTrackerBranch extends SurfaceTrackerNode {
     @Override
     protected int updateHeight(int x, int z, int idx) {
         synchronized(this) {
+            // another thread may have recomputed it while we waited for the lock
+            if (!isDirty(idx)) {
+                return relToAbsY(loadRawHeight(idx), this.scaledY, this.scale);
+            }
+            // cleared before reading the children, so that a change meanwhile marks it dirty again
+            clearDirty(idx);
             int maxY = Integer.MIN_VALUE;
 
-            //Iterate though children from top to bottom finding the first with a valid position
-            for (int i = this.children.length - 1; i >= 0; i--) {
-                SurfaceTrackerNode node = this.children[i];
+            //Iterate though children that may have a height from top to bottom finding the first with a valid position
+            int mask = (char) CHILD_MASKS.getAcquire(this.childMasks, idx);
+            while (mask != 0) {
+                int i = Integer.SIZE - 1 - Integer.numberOfLeadingZeros(mask);
+                mask &= ~(1 << i);
+                SurfaceTrackerNode node = (SurfaceTrackerNode) CHILDREN.getAcquire(this.children, i);
                 if (node == null) {
                     continue;
                 }
@@ -55,20 +105,240 @@ public class SurfaceTrackerBranch extends SurfaceTrackerNode {
                 }
             }
 
-            this.heights.set(idx, absToRelY(maxY, this.scaledY, this.scale));
-            clearDirty(idx);
+            storeRawHeight(idx, absToRelY(maxY, this.scaledY, this.scale));
             return maxY;
         }
     }
 
+    @Override
+    protected int getHeightInRangeBelowTop(int x, int z, int minY, int maxY) {
+        int mask = (char) CHILD_MASKS.getAcquire(this.childMasks, index(x, z));
+        while (mask != 0) {
+            int i = Integer.SIZE - 1 - Integer.numberOfLeadingZeros(mask);
+            mask &= ~(1 << i);
+            SurfaceTrackerNode node = (SurfaceTrackerNode) CHILDREN.getAcquire(this.children, i);
+            if (node == null) {
+                continue;
+            }
+            int childMinY = scaledYBottomY(node.scaledY, node.scale) * SCALE_0_NODE_HEIGHT;
+            if (childMinY > maxY) {
+                continue;
+            }
+            int childMaxY = childMinY + (SCALE_0_NODE_HEIGHT << (node.scale * NODE_COUNT_BITS)) - 1;
+            if (childMaxY < minY) {
+                // this child and every one below it are out of the range
+                break;
+            }
+            int y = node.getHeightInRange(x, z, minY, maxY);
+            if (y != Integer.MIN_VALUE) {
+                return y;
+            }
+        }
+        return Integer.MIN_VALUE;
+    }
+
+    @Override
+    protected void updateDirtyHeights(long[] positions) {
+        synchronized(this) {
+            // cleared before reading the children, so that a change meanwhile marks them dirty again
+            long[] remaining = new long[positions.length];
+            long anyRemaining = 0;
+            for (int wordIdx = 0; wordIdx < positions.length; wordIdx++) {
+                remaining[wordIdx] = takeDirty(wordIdx, positions[wordIdx]);
+                anyRemaining |= remaining[wordIdx];
+            }
+
+            //Iterate though children from top to bottom, resolving every position that has a valid height in that child
+            long[] childPositions = new long[positions.length];
+            for (int i = this.children.length - 1; i >= 0 && anyRemaining != 0; i--) {
+                SurfaceTrackerNode node = (SurfaceTrackerNode) CHILDREN.getAcquire(this.children, i);
+                if (node == null || !childPositions(i, remaining, childPositions)) {
+                    continue;
+                }
+                node.updateDirtyHeights(childPositions);
+
+                anyRemaining = 0;
+                for (int wordIdx = 0; wordIdx < remaining.length; wordIdx++) {
+                    for (long word = childPositions[wordIdx]; word != 0; word &= word - 1) {
+                        int bit = Long.numberOfTrailingZeros(word);
+                        int idx = wordIdx * Long.SIZE + bit;
+                        int y = node.getHeight(idx & 0xF, idx >> 4);
+                        if (y != Integer.MIN_VALUE) {
+                            storeRawHeight(idx, absToRelY(y, this.scaledY, this.scale));
+                            remaining[wordIdx] &= ~(1L << bit);
+                        }
+                    }
+                    anyRemaining |= remaining[wordIdx];
+                }
+            }
+
+            // no child has a valid height for what's left
+            for (int wordIdx = 0; wordIdx < remaining.length; wordIdx++) {
+                for (long word = remaining[wordIdx]; word != 0; word &= word - 1) {
+                    storeRawHeight(wordIdx * Long.SIZE + Long.numberOfTrailingZeros(word), absToRelY(Integer.MIN_VALUE, this.scaledY, this.scale));
+                }
+            }
+        }
+    }
+
+    /**
+     * Collects the positions of {@code positions} where the child may have a height
+     *
+     * @return whether there are any
+     */
+    private boolean childPositions(int child, long[] positions, long[] childPositions) {
+        long any = 0;
+        for (int wordIdx = 0; wordIdx < positions.length; wordIdx++) {
+            long childWord = 0;
+            for (long word = positions[wordIdx]; word != 0; word &= word - 1) {
+                int bit = Long.numberOfTrailingZeros(word);
+                if (((char) CHILD_MASKS.getAcquire(this.childMasks, wordIdx * Long.SIZE + bit) & (1 << child)) != 0) {
+                    childWord |= 1L << bit;
+                }
+            }
+            childPositions[wordIdx] = childWord;
+            any |= childWord;
+        }
+        return any != 0;
+    }
+
+    /** Called by a child that may now have a height at the position, when it stores one or becomes dirty */
+    void markChildMayHaveHeight(int child, int idx) {
+        char bit = (char) (1 << child);
+        if (((char) CHILD_MASKS.getAcquire(this.childMasks, idx) & bit) == 0) {
+            CHILD_MASKS.getAndBitwiseOr(this.childMasks, idx, bit);
+        }
+    }
+
+    /** Called by a child that stored an empty height at the position */
+    void markChildEmpty(int child, int idx) {
+        char bit = (char) (1 << child);
+        if (((char) CHILD_MASKS.getAcquire(this.childMasks, idx) & bit) != 0) {
+            CHILD_MASKS.getAndBitwiseAnd(this.childMasks, idx, (char) ~bit);
+        }
+    }
+
+    /** Makes a child visible to other threads, after resetting its bits in the child masks */
+    private void publishChild(int child, SurfaceTrackerNode node) {
+        for (int idx = 0; idx < this.childMasks.length; idx++) {
+            if (node.mayHaveHeight(idx)) {
+                markChildMayHaveHeight(child, idx);
+            } else {
+                markChildEmpty(child, idx);
+            }
+        }
+        CHILDREN.setRelease(this.children, child, node);
+        if (node instanceof SurfaceTrackerLeaf leaf) {
+            leaf.linkNeighbours();
+        }
+    }
+
+    /**
+     * Returns the lowest (or highest) leaf loaded under this branch
+     */
+    @Nullable SurfaceTrackerLeaf getExtremeLeaf(boolean lowest) {
+        for (int i = 0; i < this.children.length; i++) {
+            SurfaceTrackerNode node = (SurfaceTrackerNode) CHILDREN.getAcquire(this.children, lowest ? i : this.children.length - 1 - i);
+            SurfaceTrackerLeaf leaf = node instanceof SurfaceTrackerBranch branch ? branch.getExtremeLeaf(lowest) : (SurfaceTrackerLeaf) node;
+            if (leaf != null) {
+                return leaf;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the lowest leaf loaded under the children above {@code child} (or the highest one under the children below it)
+     */
+    @Nullable SurfaceTrackerLeaf getExtremeLeafBeside(int child, boolean above) {
+        for (int i = above ? child + 1 : child - 1; i >= 0 && i < this.children.length; i += above ? 1 : -1) {
+            SurfaceTrackerNode node = (SurfaceTrackerNode) CHILDREN.getAcquire(this.children, i);
+            SurfaceTrackerLeaf leaf = node instanceof SurfaceTrackerBranch branch ? branch.getExtremeLeaf(above) : (SurfaceTrackerLeaf) node;
+            if (leaf != null) {
+                return leaf;
+            }
+        }
+        return null;
+    }
+
     @Override public void loadSource(int globalSectionX, int globalSectionZ, HeightmapStorage storage, HeightmapSource newSource) {
+        loadChild(globalSectionX, globalSectionZ, storage, newSource).loadSource(globalSectionX, globalSectionZ, storage, newSource);
+    }
+
+    /**
+     * Loads the sources of a column at once, such as when many cubes of a column are generated together. Same as calling
+     * {@link #loadSource(int, int, HeightmapStorage, HeightmapSource)} for each of them, but instead of marking ancestors dirty for every source
+     * and recomputing their heights lazily, the heights of the new leaves and their ancestors are computed bottom-up once all leaves are loaded.
+     * <p>
+     * Must be called on a root node.
+     *
+     * @param executor computes the nodes of each scale in parallel, or null to compute them on the calling thread. The sources must support
+     *                 concurrent reads if given.
+     */
+    public void loadSources(int globalSectionX, int globalSectionZ, HeightmapStorage storage, Iterable<? extends HeightmapSource> sources,
+                            @Nullable Executor executor) {
+        if (this.scale != MAX_SCALE) {
+            throw new IllegalStateException("Sources can only be loaded in bulk into a root node");
+        }
+
+        // nodes whose heights need computing, by scale
+        List<List<SurfaceTrackerNode>> levels = new ArrayList<>();
+        Set<SurfaceTrackerNode> added = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int scale = 0; scale <= MAX_SCALE; scale++) {
+            levels.add(new ArrayList<>());
+        }
+        for (HeightmapSource source : sources) {
+            SurfaceTrackerNode node = loadLeaf(globalSectionX, globalSectionZ, storage, source);
+            while (node != null && added.add(node)) {
+                levels.get(node.getScale()).add(node);
+                node = node.parent;
+            }
+        }
+
+        for (List<SurfaceTrackerNode> level : levels) {
+            if (executor == null) {
+                level.forEach(SurfaceTrackerNode::recomputeAllHeights);
+                continue;
+            }
+            CompletableFuture<?>[] futures = new CompletableFuture<?>[level.size()];
+            for (int i = 0; i < futures.length; i++) {
+                futures[i] = CompletableFuture.runAsync(level.get(i)::recomputeAllHeights, executor);
+            }
+            // the next scale reads the heights of this one
+            CompletableFuture.allOf(futures).join();
+        }
+    }
+
+    /**
+     * Same as {@link #loadSource(int, int, HeightmapStorage, HeightmapSource)} without marking ancestors dirty
+     *
+     * @return the leaf of the source
+     */
+    private SurfaceTrackerLeaf loadLeaf(int globalSectionX, int globalSectionZ, HeightmapStorage storage, HeightmapSource newSource) {
+        SurfaceTrackerNode child = loadChild(globalSectionX, globalSectionZ, storage, newSource);
+        if (child instanceof SurfaceTrackerBranch branch) {
+            return branch.loadLeaf(globalSectionX, globalSectionZ, storage, newSource);
+        }
+        SurfaceTrackerLeaf leaf = (SurfaceTrackerLeaf) child;
+        leaf.loadSource(globalSectionX, globalSectionZ, newSource, false);
+        return leaf;
+    }
+
+    /**
+     * Loads the children of this branch from storage, and creates the child containing the source if there was none
+     *
+     * @return the child containing the source
+     */
+    private SurfaceTrackerNode loadChild(int globalSectionX, int globalSectionZ, HeightmapStorage storage, HeightmapSource newSource) {
         int newScale = scale - 1;
 
-        // Attempt to load all children from storage
-        for (int i = 0; i < this.children.length; i++) {
-            if (children[i] == null) {
-                int newScaledY = indexToScaledY(i, scale, scaledY);
-                children[i] = storage.loadNode(globalSectionX, globalSectionZ, this, this.getRawType(), newScale, newScaledY);
+        // Attempt to load all children from storage, their scaledY are consecutive.
+        // They're loaded into a copy and published afterwards, as the storage fills in their heights after creating them
+        SurfaceTrackerNode[] loaded = this.children.clone();
+        storage.loadNodes(globalSectionX, globalSectionZ, this, this.getRawType(), newScale, indexToScaledY(0, scale, scaledY), loaded);
+        for (int i = 0; i < loaded.length; i++) {
+            if (loaded[i] != this.children[i]) {
+                publishChild(i, loaded[i]);
             }
         }
 
@@ -78,22 +348,27 @@ public class SurfaceTrackerBranch extends SurfaceTrackerNode {
             // If the child containing new source has not been loaded from storage, create it
             // Scale 1 nodes create leaf node children
             if (newScale == 0) {
-                children[idx] = new SurfaceTrackerLeaf(newScaledY, this, this.getRawType());
+                publishChild(idx, new SurfaceTrackerLeaf(newScaledY, this, this.getRawType()));
             } else {
-                children[idx] = new SurfaceTrackerBranch(newScale, newScaledY, this, this.getRawType());
+                publishChild(idx, new SurfaceTrackerBranch(newScale, newScaledY, this, this.getRawType()));
             }
         }
-        children[idx].loadSource(globalSectionX, globalSectionZ, storage, newSource);
+        return children[idx];
     }
 
     @Override public void unload(int globalSectionX, int globalSectionZ, HeightmapStorage storage) {
+        this.detach();
+
+        this.save(globalSectionX, globalSectionZ, storage);
+        this.releaseHeights();
+    }
+
+    @Override protected void detach() {
         for (SurfaceTrackerNode child : this.children) {
             assert child == null : "Heightmap branch being unloaded while holding a child?!";
         }
 
         this.parent = null;
-
-        this.save(globalSectionX, globalSectionZ, storage);
     }
 
     @Override public void save(int globalSectionX, int globalSectionZ, HeightmapStorage storage) {
@@ -102,7 +377,7 @@ public class SurfaceTrackerBranch extends SurfaceTrackerNode {
 
     @Nullable public SurfaceTrackerLeaf getLeaf(int y) {
         int idx = indexOfRawHeightNode(y, scale, scaledY);
-        SurfaceTrackerNode node = this.children[idx];
+        SurfaceTrackerNode node = (SurfaceTrackerNode) CHILDREN.getAcquire(this.children, idx);
         if (node == null) {
             return null;
         }
@@ -132,14 +407,19 @@ public class SurfaceTrackerBranch extends SurfaceTrackerNode {
         updateDirtyHeights(globalSectionX, globalSectionZ);
 
         if (requiredChildren == 0) {
-            SurfaceTrackerNode[] surfaceTrackerNodes = this.children;
-            for (int i = 0, surfaceTrackerNodesLength = surfaceTrackerNodes.length; i < surfaceTrackerNodesLength; i++) {
-                SurfaceTrackerNode child = surfaceTrackerNodes[i];
+            // unload all children in one batch, same as unload() for each of them
+            for (SurfaceTrackerNode child : this.children) {
+                if (child != null) {
+                    child.detach();
+                }
+            }
+            storage.saveNodes(globalSectionX, globalSectionZ, this.children);
+            for (SurfaceTrackerNode child : this.children) {
                 if (child != null) {
-                    child.unload(globalSectionX, globalSectionZ, storage);
-                    surfaceTrackerNodes[i] = null;
+                    child.releaseHeights();
                 }
             }
+            Arrays.fill(this.children, null);
 
             if (this.parent != null) {
                 this.parent.onChildUnloaded(globalSectionX, globalSectionZ, storage);
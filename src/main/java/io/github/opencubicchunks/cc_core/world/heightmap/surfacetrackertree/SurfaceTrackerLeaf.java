@@ -2,6 +2,8 @@ package io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree;
 
 import static io.github.opencubicchunks.cc_core.utils.Coords.cubeLocalSection;
 
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.function.IntPredicate;
 
 import javax.annotation.Nonnull;
@@ -14,6 +16,10 @@ import io.github.opencubicchunks.cc_core.world.heightmap.HeightmapStorage;
 public class SurfaceTrackerLeaf extends SurfaceTrackerNode {
     protected HeightmapSource source;
 
+    /** Cached leaves directly above and below this one, kept up to date while this leaf is in a tree, null if they aren't loaded */
+    @Nullable private volatile SurfaceTrackerLeaf sectionAbove;
+    @Nullable private volatile SurfaceTrackerLeaf sectionBelow;
+
     public SurfaceTrackerLeaf(int y, @Nullable SurfaceTrackerBranch parent, byte heightmapType) {
         super(0, y, parent, heightmapType);
     }
@@ -28,17 +34,81 @@ public class SurfaceTrackerLeaf extends SurfaceTrackerNode {
     @Override
     protected int updateHeight(int x, int z, int idx) {
         synchronized(this) {
+            // another thread may have recomputed it while we waited for the lock
+            if (!isDirty(idx)) {
+                return relToAbsY(loadRawHeight(idx), this.scaledY, this.scale);
+            }
+            // cleared before reading the source, so that a block set meanwhile marks it dirty again
+            clearDirty(idx);
             // Node cannot be null here. If it is, the leaf was not updated on node unloading.
             int maxY = this.source.getHighest(x, z, this.getRawType());
 
-            this.heights.set(idx, absToRelY(maxY, this.scaledY, this.scale));
-            clearDirty(idx);
+            storeRawHeight(idx, absToRelY(maxY, this.scaledY, this.scale));
             return maxY;
         }
     }
 
+    @Override
+    protected int getHeightInRangeBelowTop(int x, int z, int minY, int maxY) {
+        HeightmapSource source = this.source;
+        if (source == null) {
+            // a leaf loaded from storage along with a sibling, only its top is known
+            return Integer.MIN_VALUE;
+        }
+        int y = checkRangeQueries(source).getHighestBelow(x, z, maxY, this.getRawType());
+        return y < minY ? Integer.MIN_VALUE : y;
+    }
+
+    /**
+     * Returns the lowest block of the surface (run of blocks in the heightmap) containing the block at y, which must be in the heightmap. The
+     * surface is followed into the loaded leaves below this one, and stops at the first one without a source. Returns {@link Integer#MIN_VALUE}
+     * if this leaf has no source.
+     *
+     * @throws UnsupportedOperationException if a source doesn't {@link HeightmapSource#supportsRangeQueries() support range queries}
+     */
+    public int getSurfaceBottom(int x, int z, int y) {
+        checkBlockY(this.scaledY, y);
+        SurfaceTrackerLeaf leaf = this;
+        int bottom = leaf.sourceSurfaceBottom(x, z, y);
+        while (bottom == Coords.cubeToMinBlock(leaf.scaledY)) {
+            SurfaceTrackerLeaf below = leaf.sectionBelow;
+            if (below == null || below.getHeightBelow(x, z, bottom - 1) != bottom - 1) {
+                break;
+            }
+            int belowBottom = below.sourceSurfaceBottom(x, z, bottom - 1);
+            if (belowBottom == Integer.MIN_VALUE) {
+                break;
+            }
+            leaf = below;
+            bottom = belowBottom;
+        }
+        return bottom;
+    }
+
+    private int sourceSurfaceBottom(int x, int z, int y) {
+        HeightmapSource source = this.source;
+        if (source == null) {
+            return Integer.MIN_VALUE;
+        }
+        return checkRangeQueries(source).getSurfaceBottom(x, z, y, this.getRawType());
+    }
+
+    private static HeightmapSource checkRangeQueries(HeightmapSource source) {
+        if (!source.supportsRangeQueries()) {
+            throw new UnsupportedOperationException("Heightmap source " + source + " doesn't support range queries");
+        }
+        return source;
+    }
+
     @Override
     public synchronized void loadSource(int globalSectionX, int globalSectionZ, HeightmapStorage storage, @Nonnull HeightmapSource newSource) {
+        loadSource(globalSectionX, globalSectionZ, newSource, true);
+    }
+
+    /**
+     * @param markAncestorsDirty false if the caller computes the heights of this leaf and its ancestors itself
+     */
+    synchronized void loadSource(int globalSectionX, int globalSectionZ, @Nonnull HeightmapSource newSource, boolean markAncestorsDirty) {
         boolean isBeingInitialized = this.source == null;
 
         this.source = newSource;
@@ -49,7 +119,9 @@ public class SurfaceTrackerLeaf extends SurfaceTrackerNode {
         // The parent can already be set for LevelCubes, their heights are inherited from their ProtoCubes
         // and do not need to be updated
         if (this.parent != null) {
-            this.markAncestorsDirty();
+            if (markAncestorsDirty) {
+                this.markAncestorsDirty();
+            }
             if (isBeingInitialized) {
                 // If this is the first node inserted into this leaf, we inform the parent node.
                 // Both ProtoCube and LevelCube will call loadCube, this avoids invalid reference counting
@@ -59,11 +131,27 @@ public class SurfaceTrackerLeaf extends SurfaceTrackerNode {
     }
 
     @Override public void unload(int globalSectionX, int globalSectionZ, @Nonnull HeightmapStorage storage) {
+        this.detach();
+
+        this.save(globalSectionX, globalSectionZ, storage);
+        this.releaseHeights();
+    }
+
+    @Override protected void detach() {
         assert this.source == null : "Heightmap leaf being unloaded while holding a source node?!";
 
-        this.parent = null;
+        SurfaceTrackerLeaf above = this.sectionAbove;
+        if (above != null && above.sectionBelow == this) {
+            above.sectionBelow = null;
+        }
+        SurfaceTrackerLeaf below = this.sectionBelow;
+        if (below != null && below.sectionAbove == this) {
+            below.sectionAbove = null;
+        }
+        this.sectionAbove = null;
+        this.sectionBelow = null;
 
-        this.save(globalSectionX, globalSectionZ, storage);
+        this.parent = null;
     }
 
     @Override public void save(int globalSectionX, int globalSectionZ, @Nonnull HeightmapStorage storage) {
@@ -104,10 +192,7 @@ public class SurfaceTrackerLeaf extends SurfaceTrackerNode {
      * @param isOpaquePredicate takes heightmap type
      */
     public void onSetBlock(int cubeLocalX, int y, int cubeLocalZ, IntPredicate isOpaquePredicate) {
-        if (y < Coords.cubeToMinBlock(this.scaledY) || y > Coords.cubeToMaxBlock(this.scaledY)) {
-            throw new IndexOutOfBoundsException(String.format("Leaf node (scaledY: %d) got Y position %d which is out of inclusive bounds %d to %d",
-                this.scaledY, y, Coords.cubeToMinBlock(this.scaledY), Coords.cubeToMaxBlock(this.scaledY)));
-        }
+        checkBlockY(this.scaledY, y);
 
         int index = index(cubeLocalX, cubeLocalZ);
         if (isDirty(index)) {
@@ -131,11 +216,14 @@ public class SurfaceTrackerLeaf extends SurfaceTrackerNode {
                 return;
             }
 
+            // stored before marking parents dirty, so that a parent recomputing its height meanwhile sees it
+            synchronized (this) {
+                storeRawHeight(index, absToRelY(globalY, scaledY, scale));
+            }
             if (parent != null) { //parent can only be null in a ProtoCube, or a MAX_SCALE section
                 //only mark parents dirty if the Y is above their current height
                 this.parent.markTreeDirtyIfRequired(cubeLocalX, cubeLocalZ, y);
             }
-            this.heights.set(index, absToRelY(globalY, scaledY, scale));
             return;
         }
         //at this point globalY == height
@@ -144,6 +232,13 @@ public class SurfaceTrackerLeaf extends SurfaceTrackerNode {
         }
     }
 
+    private static void checkBlockY(int scaledY, int y) {
+        if (y < Coords.cubeToMinBlock(scaledY) || y > Coords.cubeToMaxBlock(scaledY)) {
+            throw new IndexOutOfBoundsException(String.format("Leaf node (scaledY: %d) got Y position %d which is out of inclusive bounds %d to %d",
+                scaledY, y, Coords.cubeToMinBlock(scaledY), Coords.cubeToMaxBlock(scaledY)));
+        }
+    }
+
     @Nullable
     public HeightmapSource getSource() {
         return this.source;
@@ -158,10 +253,86 @@ public class SurfaceTrackerLeaf extends SurfaceTrackerNode {
         return (SurfaceTrackerBranch) section;
     }
 
+    /**
+     * Returns the leaf at the given scaledY in the same tree, going up only as far as the lowest common ancestor of both leaves
+     */
+    @Nullable
+    public SurfaceTrackerLeaf findLeaf(int y) {
+        SurfaceTrackerBranch branch = this.parent;
+        while (branch != null && !branch.containsLeaf(y)) {
+            branch = branch.parent;
+        }
+        return branch == null ? null : branch.getLeaf(y);
+    }
+
+    /**
+     * Links this leaf with the leaves directly above and below it, called once it's been added to a tree
+     */
+    void linkNeighbours() {
+        SurfaceTrackerLeaf above = findLeaf(this.scaledY + 1);
+        SurfaceTrackerLeaf below = findLeaf(this.scaledY - 1);
+        this.sectionAbove = above;
+        this.sectionBelow = below;
+        if (above != null) {
+            above.sectionBelow = this;
+        }
+        if (below != null) {
+            below.sectionAbove = this;
+        }
+    }
+
     @Nullable
     public SurfaceTrackerLeaf getSectionAbove() {
-        // TODO this can be optimized - don't need to go to the root every time, just the lowest node that is a parent of both this node and the node above.
-        return this.getRoot().getLeaf(scaledY + 1);
+        return this.sectionAbove;
+    }
+
+    @Nullable
+    public SurfaceTrackerLeaf getSectionBelow() {
+        return this.sectionBelow;
+    }
+
+    /**
+     * Returns the closest loaded leaf above (or below) this one, which isn't necessarily adjacent
+     */
+    @Nullable
+    public SurfaceTrackerLeaf getNextLeaf(boolean above) {
+        SurfaceTrackerLeaf adjacent = above ? this.sectionAbove : this.sectionBelow;
+        if (adjacent != null) {
+            return adjacent;
+        }
+        SurfaceTrackerNode node = this;
+        SurfaceTrackerBranch parent = node.parent;
+        while (parent != null) {
+            SurfaceTrackerLeaf leaf = parent.getExtremeLeafBeside(node.indexInParent(), above);
+            if (leaf != null) {
+                return leaf;
+            }
+            node = parent;
+            parent = node.parent;
+        }
+        return null;
+    }
+
+    /**
+     * Returns an iterator over the loaded leaves of this column, starting with this leaf and going up (or down)
+     */
+    public Iterator<SurfaceTrackerLeaf> iterateColumn(boolean up) {
+        return new Iterator<>() {
+            @Nullable private SurfaceTrackerLeaf next = SurfaceTrackerLeaf.this;
+
+            @Override public boolean hasNext() {
+                return this.next != null;
+            }
+
+            @Override public SurfaceTrackerLeaf next() {
+                SurfaceTrackerLeaf leaf = this.next;
+                if (leaf == null) {
+                    throw new NoSuchElementException();
+                }
+                this.next = leaf.getNextLeaf(up);
+                return leaf;
+            }
+        };
     }
 }
 
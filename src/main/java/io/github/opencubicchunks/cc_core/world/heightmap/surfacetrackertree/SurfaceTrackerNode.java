@@ -1,14 +1,33 @@
 package io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.IntPredicate;
+
 import javax.annotation.Nullable;
 
 import com.google.common.annotations.VisibleForTesting;
 import io.github.opencubicchunks.cc_core.api.CubicConstants;
 import io.github.opencubicchunks.cc_core.minecraft.MCBitStorage;
 import io.github.opencubicchunks.cc_core.utils.MathUtil;
+import io.github.opencubicchunks.cc_core.world.heightmap.HeightChangeListener;
 import io.github.opencubicchunks.cc_core.world.heightmap.HeightmapSource;
 import io.github.opencubicchunks.cc_core.world.heightmap.HeightmapStorage;
-
+import io.netty.util.internal.PlatformDependent;
+
+/**
+ * A node of the heightmap tree, storing the highest block of every column within its vertical range.
+ * <p>
+ * Heights may be read from any thread while another thread modifies the tree. Reading a height that isn't dirty never blocks: the dirty bit is
+ * read with acquire semantics, then the word holding the height. Heights are only written while holding the node's lock, and are published with
+ * release semantics, so concurrent writes to heights sharing a word can't overwrite each other. Dirty bits are set and cleared atomically.
+ * <p>
+ * Recomputing a dirty height clears its dirty bit first, so a change made during the recomputation marks it dirty again rather than being lost.
+ * A read racing with a recomputation may return the height from before the change that made it dirty.
+ */
 public abstract class SurfaceTrackerNode {
     // This currently covers y = -2^28 to 2^28 or so. One more would allow us to cover the entire integer block range
     public static final int MAX_SCALE = 6;
@@ -31,8 +50,23 @@ public abstract class SurfaceTrackerNode {
     /** Number of bits needed to represent height (excluding null) at scale zero (i.e. log2(scale0 height)) */
     private static final int BASE_SIZE_BITS = CubicConstants.SIZE_BITS;
 
-    protected final MCBitStorage heights;
+    private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    /**
+     * Relative heights packed the same way as vanilla's SimpleBitStorage, so that saved data stays compatible: {@code 64 / bits} heights per word
+     * starting from the lowest bits, heights never span two words. Accessed through {@link #WORDS}.
+     * <p>
+     * Null if the heights are stored off-heap at {@link #heightsAddress}, in the same layout.
+     */
+    @Nullable protected final long[] heights;
+    // dirty bits stay on the heap, they need atomic updates which aren't available for off-heap memory
     protected final long[] dirtyPositions; // bitset has 100% memory usage overhead due to pointers and object headers
+    @Nullable protected final NodeHeightsPool heightsPool;
+    private final long heightsAddress;
+    private boolean heightsReleased = false;
+    /** Positions whose height changed since they were last polled, null unless asked to track them */
+    @Nullable private volatile long[] changedPositions;
+    @Nullable private volatile ChangeSubscription changeSubscription;
     protected @Nullable SurfaceTrackerBranch parent;
 
     /**
@@ -47,8 +81,17 @@ public abstract class SurfaceTrackerNode {
     protected byte heightmapTypeAndRequiresSave = 0;
 
     public SurfaceTrackerNode(int scale, int scaledY, @Nullable SurfaceTrackerBranch parent, byte heightmapType) {
+        this(scale, scaledY, parent, heightmapType, parent == null ? null : parent.heightsPool);
+    }
+
+    /**
+     * @param heightsPool the pool to store heights in, or null to store them on the heap
+     */
+    protected SurfaceTrackerNode(int scale, int scaledY, @Nullable SurfaceTrackerBranch parent, byte heightmapType, @Nullable NodeHeightsPool heightsPool) {
         // +1 in bit size to make room for null values
-        this.heights = new MCBitStorage(getBitsForScale(scale), WIDTH_BLOCKS * WIDTH_BLOCKS);
+        this.heightsPool = heightsPool;
+        this.heightsAddress = this.heightsPool == null ? 0 : this.heightsPool.allocate(scale);
+        this.heights = this.heightsPool == null ? new long[heightWords(scale)] : null;
         this.dirtyPositions = new long[WIDTH_BLOCKS * WIDTH_BLOCKS / Long.SIZE];
         this.parent = parent;
         this.scaledY = scaledY;
@@ -61,8 +104,20 @@ public abstract class SurfaceTrackerNode {
      * Should be used when loading from save
      */
     public SurfaceTrackerNode(int scale, int scaledY, @Nullable SurfaceTrackerBranch parent, byte heightmapType, long[] heightsRaw) {
-        // +1 in bit size to make room for null values
-        this.heights = new MCBitStorage(getBitsForScale(scale), WIDTH_BLOCKS * WIDTH_BLOCKS, heightsRaw);
+        if (heightsRaw.length != heightWords(scale)) {
+            throw new IllegalArgumentException("Invalid length given for storage, got: " + heightsRaw.length + " but expected: " + heightWords(scale));
+        }
+        this.heightsPool = parent == null ? null : parent.heightsPool;
+        if (this.heightsPool == null) {
+            this.heightsAddress = 0;
+            this.heights = heightsRaw;
+        } else {
+            this.heightsAddress = this.heightsPool.allocate(scale);
+            this.heights = null;
+            for (int i = 0; i < heightsRaw.length; i++) {
+                PlatformDependent.putLong(this.heightsAddress + (long) i * Long.BYTES, heightsRaw[i]);
+            }
+        }
         this.dirtyPositions = new long[WIDTH_BLOCKS * WIDTH_BLOCKS / Long.SIZE];
         this.parent = parent;
         this.scaledY = scaledY;
@@ -80,7 +135,201 @@ public abstract class SurfaceTrackerNode {
             return updateHeight(x, z, idx);
         }
 
-        return relToAbsY(getRawHeight(x, z), this.scaledY, this.scale);
+        return relToAbsY(loadRawHeight(idx), this.scaledY, this.scale);
+    }
+
+    /**
+     * Gets the highest block at or below maxY for a given position, or {@link Integer#MIN_VALUE} if there is none in the loaded part of this node.
+     * x and z are <b>GLOBAL</b> coordinates.
+     *
+     * @throws UnsupportedOperationException if a source asked doesn't {@link HeightmapSource#supportsRangeQueries() support range queries}
+     */
+    public int getHeightBelow(int x, int z, int maxY) {
+        return getHeightInRange(x, z, Integer.MIN_VALUE, maxY);
+    }
+
+    /**
+     * Gets the highest block within minY and maxY (inclusive) for a given position, or {@link Integer#MIN_VALUE} if there is none in the loaded
+     * part of this node. Only the subtrees overlapping the range that have a height at the position are visited, and only the leaf containing
+     * maxY asks its source. Leaves loaded from storage without a source only know their top, blocks below it in them are treated as absent.
+     * x and z are <b>GLOBAL</b> coordinates.
+     *
+     * @throws UnsupportedOperationException if a source asked doesn't {@link HeightmapSource#supportsRangeQueries() support range queries}
+     */
+    public int getHeightInRange(int x, int z, int minY, int maxY) {
+        int height = getHeight(x, z);
+        if (height == Integer.MIN_VALUE || height < minY || minY > maxY) {
+            return Integer.MIN_VALUE;
+        }
+        if (height <= maxY) {
+            return height;
+        }
+        return getHeightInRangeBelowTop(x, z, minY, maxY);
+    }
+
+    /**
+     * Calls the action with the top block of each surface of a given position within minY and maxY (inclusive), from top to bottom. A surface
+     * is a run of blocks in the heightmap, such as the ground, the floor of a cave or a floating island. Stops at a surface in a leaf without a
+     * source, as where it ends isn't known.
+     * x and z are <b>GLOBAL</b> coordinates.
+     *
+     * @param action takes the y of the surface, returns false to stop
+     * @throws UnsupportedOperationException if a source asked doesn't {@link HeightmapSource#supportsRangeQueries() support range queries}
+     */
+    public void forEachSurface(int x, int z, int minY, int maxY, IntPredicate action) {
+        int surface = getHeightInRange(x, z, minY, maxY);
+        while (surface != Integer.MIN_VALUE && action.test(surface)) {
+            SurfaceTrackerLeaf leaf = getLeaf(surface >> SCALE_0_NODE_BITS);
+            assert leaf != null : "No leaf for a height of the tree?!";
+            int bottom = leaf.getSurfaceBottom(x, z, surface);
+            if (bottom == Integer.MIN_VALUE) {
+                return;
+            }
+            // the block below the surface isn't in the heightmap, so the next one down is the top of another surface
+            surface = getHeightInRange(x, z, minY, bottom - 1);
+        }
+    }
+
+    /**
+     * Gets the heights of all positions of this node, same as calling {@link #getHeight(int, int)} for each of them. Dirty positions are
+     * recomputed in one batch, the rest are decoded a word at a time.
+     *
+     * @param out receives the height of each position, indexed by {@code x + z * WIDTH_BLOCKS}
+     */
+    public void getHeights(int[] out) {
+        if (out.length != WIDTH_BLOCKS * WIDTH_BLOCKS) {
+            throw new IllegalArgumentException("Expected an array of length " + WIDTH_BLOCKS * WIDTH_BLOCKS + ", got " + out.length);
+        }
+        if (isAnyDirty()) {
+            updateDirtyHeights(0, 0);
+        }
+
+        int bits = getBitsForScale(this.scale);
+        int heightsPerWord = Long.SIZE / bits;
+        long mask = (1L << bits) - 1;
+        int offset = scaledYBottomY(this.scaledY, this.scale) * SCALE_0_NODE_HEIGHT - 1;
+        for (int wordIdx = 0, idx = 0; idx < out.length; wordIdx++) {
+            long word = loadWord(wordIdx);
+            for (int i = 0; i < heightsPerWord && idx < out.length; i++, idx++, word >>>= bits) {
+                int relativeY = (int) (word & mask);
+                out[idx] = relativeY == 0 ? Integer.MIN_VALUE : relativeY + offset;
+            }
+        }
+
+        // made dirty again by another thread while decoding
+        for (int wordIdx = 0; wordIdx < dirtyPositions.length; wordIdx++) {
+            for (long word = (long) WORDS.getAcquire(dirtyPositions, wordIdx); word != 0; word &= word - 1) {
+                int idx = wordIdx * Long.SIZE + Long.numberOfTrailingZeros(word);
+                out[idx] = getHeight(idx & 0xF, idx >> 4);
+            }
+        }
+    }
+
+    /**
+     * Starts recording which positions change height, to be polled with {@link #pollChangedHeights(int[], int[])}. Nodes don't track changes
+     * unless asked to, as only the ones synced to clients need it.
+     */
+    public void trackChangedHeights() {
+        synchronized(this) {
+            if (this.changedPositions == null) {
+                this.changedPositions = new long[WIDTH_BLOCKS * WIDTH_BLOCKS / Long.SIZE];
+            }
+        }
+    }
+
+    /**
+     * Gets the positions whose height changed since the last poll (or since tracking started), and their current heights. A position that
+     * changed and changed back is still included.
+     *
+     * @param positions receives the index of each changed position, {@code x + z * WIDTH_BLOCKS}
+     * @param heights receives the height of each changed position
+     * @return the number of changed positions
+     */
+    public int pollChangedHeights(int[] positions, int[] heights) {
+        long[] changedPositions = this.changedPositions;
+        if (changedPositions == null) {
+            throw new IllegalStateException("Changed heights aren't tracked for this node");
+        }
+        if (positions.length < WIDTH_BLOCKS * WIDTH_BLOCKS || heights.length < WIDTH_BLOCKS * WIDTH_BLOCKS) {
+            throw new IllegalArgumentException("Expected arrays of at least length " + WIDTH_BLOCKS * WIDTH_BLOCKS);
+        }
+        // recompute first, a dirty position may have changed
+        if (isAnyDirty()) {
+            updateDirtyHeights(0, 0);
+        }
+
+        int count = 0;
+        for (int wordIdx = 0; wordIdx < changedPositions.length; wordIdx++) {
+            // taken before reading the heights, so that a change meanwhile is polled again next time
+            for (long word = (long) WORDS.getAndSet(changedPositions, wordIdx, 0L); word != 0; word &= word - 1) {
+                int idx = wordIdx * Long.SIZE + Long.numberOfTrailingZeros(word);
+                positions[count] = idx;
+                heights[count] = getHeight(idx & 0xF, idx >> 4);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Adds a listener for the height changes of this node, usually a root. Changes are collected as they happen and delivered in one batch by
+     * {@link #dispatchHeightChanges()}.
+     * <p>
+     * Listeners use the same change tracking as {@link #pollChangedHeights(int[], int[])}, which must not be called on a node with listeners.
+     */
+    public void addChangeListener(HeightChangeListener listener) {
+        synchronized(this) {
+            if (this.changeSubscription == null) {
+                trackChangedHeights();
+                // drop changes from before the listener existed
+                pollChangedHeights(new int[WIDTH_BLOCKS * WIDTH_BLOCKS], new int[WIDTH_BLOCKS * WIDTH_BLOCKS]);
+                ChangeSubscription subscription = new ChangeSubscription();
+                getHeights(subscription.reportedHeights);
+                this.changeSubscription = subscription;
+            }
+            this.changeSubscription.listeners.add(listener);
+        }
+    }
+
+    public void removeChangeListener(HeightChangeListener listener) {
+        ChangeSubscription subscription = this.changeSubscription;
+        if (subscription != null) {
+            subscription.listeners.remove(listener);
+        }
+    }
+
+    /**
+     * Recomputes the dirty heights of this node, and delivers the columns whose height changed since the last dispatch to the listeners. Meant
+     * to be called once per tick, or after a batch of block changes. Columns that changed and changed back aren't delivered.
+     */
+    public void dispatchHeightChanges() {
+        ChangeSubscription subscription = this.changeSubscription;
+        if (subscription == null) {
+            return;
+        }
+        // only one dispatch at a time, so that batches are delivered in order. The node's lock isn't held while listeners are called.
+        synchronized(subscription) {
+            int polled = pollChangedHeights(subscription.positions, subscription.newHeights);
+            int count = 0;
+            for (int i = 0; i < polled; i++) {
+                int position = subscription.positions[i];
+                int newHeight = subscription.newHeights[i];
+                int oldHeight = subscription.reportedHeights[position];
+                if (oldHeight != newHeight) {
+                    subscription.positions[count] = position;
+                    subscription.oldHeights[count] = oldHeight;
+                    subscription.newHeights[count] = newHeight;
+                    subscription.reportedHeights[position] = newHeight;
+                    count++;
+                }
+            }
+            if (count == 0) {
+                return;
+            }
+            for (HeightChangeListener listener : subscription.listeners) {
+                listener.onHeightsChanged(getRawType(), count, subscription.positions, subscription.oldHeights, subscription.newHeights);
+            }
+        }
     }
 
     /**
@@ -89,16 +338,120 @@ public abstract class SurfaceTrackerNode {
      * Gets the internal (relative) height for a given position
      */
     protected int getRawHeight(int x, int z) {
-        return this.heights.get(index(x, z));
+        return loadRawHeight(index(x, z));
     }
 
     /**
      * <b>WARNING: This method does not mark dirty or update the height. Only to be used for loading / unloading</b>
      * <p>
-     * Sets the internal (relative) height for a given position
+     * Sets the internal (relative) height for a given position. Not thread safe, only for nodes that aren't visible to other threads yet.
      */
     protected void setRawHeight(int x, int z, int relativeHeight) {
-        this.heights.set(index(x, z), relativeHeight);
+        int idx = index(x, z);
+        int bits = getBitsForScale(this.scale);
+        int heightsPerWord = Long.SIZE / bits;
+        int wordIdx = idx / heightsPerWord;
+        int shift = (idx - wordIdx * heightsPerWord) * bits;
+        long mask = (1L << bits) - 1;
+        if (this.heights != null) {
+            this.heights[wordIdx] = this.heights[wordIdx] & ~(mask << shift) | (relativeHeight & mask) << shift;
+        } else {
+            long address = heightsAddress(wordIdx);
+            PlatformDependent.putLong(address, PlatformDependent.getLong(address) & ~(mask << shift) | (relativeHeight & mask) << shift);
+        }
+    }
+
+    /**
+     * Reads a relative height with acquire semantics
+     */
+    protected int loadRawHeight(int idx) {
+        int bits = getBitsForScale(this.scale);
+        int heightsPerWord = Long.SIZE / bits;
+        int wordIdx = idx / heightsPerWord;
+        return (int) (loadWord(wordIdx) >>> ((idx - wordIdx * heightsPerWord) * bits) & ((1L << bits) - 1));
+    }
+
+    /**
+     * Reads a word of packed heights with acquire semantics
+     */
+    private long loadWord(int wordIdx) {
+        if (this.heights != null) {
+            return (long) WORDS.getAcquire(this.heights, wordIdx);
+        }
+        long word = PlatformDependent.getLong(heightsAddress(wordIdx));
+        VarHandle.acquireFence();
+        return word;
+    }
+
+    /**
+     * Returns the address of a word of off-heap heights, checking that the pool hasn't freed them
+     */
+    private long heightsAddress(int wordIdx) {
+        //noinspection ConstantConditions
+        this.heightsPool.checkOpen();
+        return this.heightsAddress + (long) wordIdx * Long.BYTES;
+    }
+
+    /**
+     * Publishes a relative height with release semantics and marks the node as requiring a save. Must hold this node's lock, which makes the
+     * read-modify-write of the word atomic.
+     */
+    protected void storeRawHeight(int idx, int relativeHeight) {
+        assert Thread.holdsLock(this);
+        // a leaf stores the height of a placed block without marking the position dirty
+        setRequiresSave();
+        int bits = getBitsForScale(this.scale);
+        int heightsPerWord = Long.SIZE / bits;
+        int wordIdx = idx / heightsPerWord;
+        int shift = (idx - wordIdx * heightsPerWord) * bits;
+        long mask = (1L << bits) - 1;
+        long word;
+        if (this.heights != null) {
+            word = this.heights[wordIdx];
+            WORDS.setRelease(this.heights, wordIdx, word & ~(mask << shift) | (relativeHeight & mask) << shift);
+        } else {
+            // words are aligned, so the write can't be torn
+            long address = heightsAddress(wordIdx);
+            word = PlatformDependent.getLong(address);
+            VarHandle.releaseFence();
+            PlatformDependent.putLong(address, word & ~(mask << shift) | (relativeHeight & mask) << shift);
+        }
+
+        long[] changedPositions = this.changedPositions;
+        if (changedPositions != null && (word >>> shift & mask) != (relativeHeight & mask)) {
+            WORDS.getAndBitwiseOr(changedPositions, idx >> 6, 1L << idx);
+        }
+
+        SurfaceTrackerBranch parent = this.parent;
+        if (parent != null) {
+            if (relativeHeight != 0) {
+                parent.markChildMayHaveHeight(indexInParent(), idx);
+            } else {
+                parent.markChildEmpty(indexInParent(), idx);
+                // made dirty after the height was computed, the new height could be anything
+                if (isDirty(idx)) {
+                    parent.markChildMayHaveHeight(indexInParent(), idx);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the heights of this node to its pool, if it has one. Called once the node has been unloaded and saved, it must not be used after.
+     */
+    protected void releaseHeights() {
+        if (this.heightsPool != null) {
+            assert !this.heightsReleased : "Heights of a heightmap node released twice?!";
+            this.heightsReleased = true;
+            this.heightsPool.release(this.scale, this.heightsAddress);
+        }
+    }
+
+    /**
+     * Returns whether this node may have a height at the position, ie. it has one or it's dirty
+     */
+    protected boolean mayHaveHeight(int idx) {
+        return isDirty(idx) || loadRawHeight(idx) != 0;
     }
 
     /**
@@ -106,6 +459,11 @@ public abstract class SurfaceTrackerNode {
      */
     protected abstract int updateHeight(int x, int z, int idx);
 
+    /**
+     * Gets the highest block within minY and maxY, when the height of this node at the position is known to be above maxY
+     */
+    protected abstract int getHeightInRangeBelowTop(int x, int z, int minY, int maxY);
+
     public abstract void loadSource(int globalSectionX, int globalSectionZ, HeightmapStorage storage, HeightmapSource newSource);
 
     /**
@@ -113,6 +471,11 @@ public abstract class SurfaceTrackerNode {
      */
     public abstract void unload(int globalSectionX, int globalSectionZ, HeightmapStorage storage);
 
+    /**
+     * The part of {@link #unload} before saving: nulls the parent. Lets a parent unload all its children and save them as one batch.
+     */
+    protected abstract void detach();
+
     /**
      * Tells a node to save itself to the provided storage
      */
@@ -131,25 +494,58 @@ public abstract class SurfaceTrackerNode {
             return;
         }
 
-        for (int z = localSectionZ * WIDTH_BLOCKS, zMax = z + WIDTH_BLOCKS; z < zMax; z++) {
-            for (int x = localSectionX * WIDTH_BLOCKS, xMax = x + WIDTH_BLOCKS; x < xMax; x++) {
-                int idx = index(x, z);
-                if (isDirty(idx)) {
-                    updateHeight(x, z, idx);
+        long[] positions = new long[dirtyPositions.length];
+        Arrays.fill(positions, -1L);
+        updateDirtyHeights(positions);
+    }
+
+    /**
+     * Updates the positions that are both dirty and set in {@code positions}, a bitset in the same layout as {@link #dirtyPositions}
+     * <p>
+     * Branches override this to resolve all the positions against each child in a single pass, instead of walking the children once per position.
+     *
+     * @param positions not modified
+     */
+    protected void updateDirtyHeights(long[] positions) {
+        synchronized(this) {
+            for (int wordIdx = 0; wordIdx < positions.length; wordIdx++) {
+                for (long word = positions[wordIdx] & (long) WORDS.getAcquire(dirtyPositions, wordIdx); word != 0; word &= word - 1) {
+                    int idx = wordIdx * Long.SIZE + Long.numberOfTrailingZeros(word);
+                    updateHeight(idx & 0xF, idx >> 4, idx);
                 }
             }
         }
     }
 
+    /**
+     * Recomputes the height of every position, from the source for leaves or from the children for branches
+     */
+    protected void recomputeAllHeights() {
+        setRequiresSave();
+        setAllDirty();
+        long[] positions = new long[dirtyPositions.length];
+        Arrays.fill(positions, -1L);
+        updateDirtyHeights(positions);
+    }
+
+    /**
+     * Atomically clears the dirty bits in {@code mask} for the word at {@code wordIdx}
+     *
+     * @return the bits of {@code mask} that were dirty
+     */
+    protected long takeDirty(int wordIdx, long mask) {
+        return (long) WORDS.getAndBitwiseAnd(dirtyPositions, wordIdx, ~mask) & mask;
+    }
+
     /** Returns if any position in the SurfaceTrackerNode is dirty*/
     public boolean isAnyDirty() {
         assert dirtyPositions.length == 4;
 
         long l = 0;
-        l |= dirtyPositions[0];
-        l |= dirtyPositions[1];
-        l |= dirtyPositions[2];
-        l |= dirtyPositions[3];
+        l |= (long) WORDS.getAcquire(dirtyPositions, 0);
+        l |= (long) WORDS.getAcquire(dirtyPositions, 1);
+        l |= (long) WORDS.getAcquire(dirtyPositions, 2);
+        l |= (long) WORDS.getAcquire(dirtyPositions, 3);
         return l != 0;
     }
 
@@ -157,26 +553,42 @@ public abstract class SurfaceTrackerNode {
     public void setAllDirty() {
         assert dirtyPositions.length == 4;
 
-        dirtyPositions[0] = -1;
-        dirtyPositions[1] = -1;
-        dirtyPositions[2] = -1;
-        dirtyPositions[3] = -1;
+        WORDS.setVolatile(dirtyPositions, 0, -1L);
+        WORDS.setVolatile(dirtyPositions, 1, -1L);
+        WORDS.setVolatile(dirtyPositions, 2, -1L);
+        WORDS.setVolatile(dirtyPositions, 3, -1L);
+
+        SurfaceTrackerBranch parent = this.parent;
+        if (parent != null) {
+            for (int idx = 0; idx < WIDTH_BLOCKS * WIDTH_BLOCKS; idx++) {
+                parent.markChildMayHaveHeight(indexInParent(), idx);
+            }
+        }
     }
 
     /** Returns if this SurfaceTrackerNode is dirty at the specified index */
     protected boolean isDirty(int idx) {
-        return (dirtyPositions[idx >> 6] & (1L << idx)) != 0;
+        return ((long) WORDS.getAcquire(dirtyPositions, idx >> 6) & (1L << idx)) != 0;
     }
 
-    /** Sets the index in this SurfaceTrackerNode to non-dirty */
+    /**
+     * Sets the index in this SurfaceTrackerNode to non-dirty. Atomic, so dirty bits set concurrently for other positions aren't lost, and
+     * ordered after the changes that made the position dirty.
+     */
     protected void clearDirty(int idx) {
-        dirtyPositions[idx >> 6] &= ~(1L << idx);
+        WORDS.getAndBitwiseAnd(dirtyPositions, idx >> 6, ~(1L << idx));
     }
 
     /** Sets the index in this SurfaceTrackerNode to dirty */
     protected void setDirty(int idx) {
         setRequiresSave();
-        dirtyPositions[idx >> 6] |= 1L << idx;
+        WORDS.getAndBitwiseOr(dirtyPositions, idx >> 6, 1L << idx);
+
+        // before the parent is marked dirty, so that it doesn't skip this node when recomputing
+        SurfaceTrackerBranch parent = this.parent;
+        if (parent != null) {
+            parent.markChildMayHaveHeight(indexInParent(), idx);
+        }
     }
 
     /** Sets the index in this and all parent SurfaceTrackerNodes to dirty */
@@ -199,7 +611,7 @@ public abstract class SurfaceTrackerNode {
 
     /** Sets this and parents dirty if new height > existing height */
     protected void markTreeDirtyIfRequired(int x, int z, int newHeight) {
-        if (newHeight > relToAbsY(heights.get(index(x, z)), scaledY, scale) || isDirty(index(x, z))) {
+        if (newHeight > relToAbsY(loadRawHeight(index(x, z)), scaledY, scale) || isDirty(index(x, z))) {
             setDirty(index(x, z));
             if (this.parent != null) {
                 this.parent.markTreeDirtyIfRequired(x, z, newHeight);
@@ -245,6 +657,22 @@ public abstract class SurfaceTrackerNode {
         return (z & 0xF) * WIDTH_BLOCKS + (x & 0xF);
     }
 
+    /** Returns whether the leaf at the given scaledY would be under this node */
+    protected boolean containsLeaf(int leafScaledY) {
+        if (this.scale == MAX_SCALE) {
+            return true;
+        }
+        return leafScaledY >> (this.scale * NODE_COUNT_BITS) == this.scaledY;
+    }
+
+    /** Get the index of this node within its parent's children */
+    protected int indexInParent() {
+        if (this.scale + 1 == MAX_SCALE) {
+            return this.scaledY < 0 ? 0 : 1;
+        }
+        return this.scaledY & (NODE_COUNT - 1);
+    }
+
     @VisibleForTesting
     public void setParent(@Nullable SurfaceTrackerBranch parent) {
         this.parent = parent;
@@ -301,6 +729,10 @@ public abstract class SurfaceTrackerNode {
     }
 
     public void writeDataForClient(int minX, int minZ, MCBitStorage data, int minValue) {
+        // dirty positions are recomputed in one batch, then every read below takes the clean path
+        if (isAnyDirty()) {
+            updateDirtyHeights(0, 0);
+        }
         for (int dx = 0; dx < 16; dx++) {
             for (int dz = 0; dz < 16; dz++) {
                 int y = getHeight(minX + dx, minZ + dz) + 1;
@@ -313,6 +745,11 @@ public abstract class SurfaceTrackerNode {
         }
     }
 
+    static int heightWords(int scale) {
+        int heightsPerWord = Long.SIZE / getBitsForScale(scale);
+        return (WIDTH_BLOCKS * WIDTH_BLOCKS + heightsPerWord - 1) / heightsPerWord;
+    }
+
     /**
      * Returns the number of bits required to contain a single position at this scale
      */
@@ -322,4 +759,16 @@ public abstract class SurfaceTrackerNode {
         }
         return BASE_SIZE_BITS + 1 + scale * NODE_COUNT_BITS;
     }
+
+    /**
+     * Listeners of a node and the heights they were last given
+     */
+    private static class ChangeSubscription {
+        final List<HeightChangeListener> listeners = new CopyOnWriteArrayList<>();
+        final int[] reportedHeights = new int[WIDTH_BLOCKS * WIDTH_BLOCKS];
+        // batch buffers, reused between dispatches
+        final int[] positions = new int[WIDTH_BLOCKS * WIDTH_BLOCKS];
+        final int[] oldHeights = new int[WIDTH_BLOCKS * WIDTH_BLOCKS];
+        final int[] newHeights = new int[WIDTH_BLOCKS * WIDTH_BLOCKS];
+    }
 }
\ No newline at end of file
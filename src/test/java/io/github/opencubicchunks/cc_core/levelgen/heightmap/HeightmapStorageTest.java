@@ -3,14 +3,25 @@ package io.github.opencubicchunks.cc_core.levelgen.heightmap;
 
 import static io.github.opencubicchunks.cc_core.testutils.Utils.forEachBlockColumnSurfaceTrackerNode;
 import static io.github.opencubicchunks.cc_core.utils.Coords.blockToSection;
+import static io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerNode.NODE_COUNT;
 import static io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerNode.SCALE_0_NODE_HEIGHT;
 import static io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerNode.WIDTH_BLOCKS;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
 
@@ -20,6 +31,7 @@ import io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.Inte
 import io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerBranch;
 import io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerLeaf;
 import io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerNode;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.ValueSource;
@@ -27,6 +39,13 @@ import org.junit.jupiter.params.provider.ValueSource;
 public class HeightmapStorageTest {
     @TempDir Path tempDirectory;
 
+    /**
+     * Creates the storage under test, subclasses override this to run the same tests against other implementations
+     */
+    protected HeightmapStorage createStorage() {
+        return new InterleavedHeightmapStorage(tempDirectory.toFile());
+    }
+
     /**
      * Tests unloading and loading a node with the same height in every position
      */
@@ -34,7 +53,7 @@ public class HeightmapStorageTest {
     @ValueSource(bytes = { -1, 0, 1, 2, 3, 4, 5 })
     public void testReloadLeaf(byte heightmapType) throws IOException {
         // setup
-        HeightmapStorage storage = new InterleavedHeightmapStorage(tempDirectory.toFile());
+        HeightmapStorage storage = createStorage();
         SurfaceTrackerLeaf leaf = new SurfaceTrackerLeaf(1, null, heightmapType);
         SurfaceTrackerNodesTest.TestHeightmapSource32 testNode = new SurfaceTrackerNodesTest.TestHeightmapSource32(0, 1, 0);
         leaf.loadSource(0, 0, storage, testNode);
@@ -56,6 +75,7 @@ public class HeightmapStorageTest {
 
         // check positions are the same
         assertNotNull(loadedLeaf);
+        assertFalse(loadedLeaf.requiresSave(), "Loaded node requires saving");
         forEachBlockColumnSurfaceTrackerNode((x, z) -> {
             int height = loadedLeaf.getHeight(x, z);
             assertEquals(blockY, height);
@@ -71,7 +91,7 @@ public class HeightmapStorageTest {
     @ValueSource(bytes = { -1, 0, 1, 2, 3, 4, 5 })
     public void testReloadManyLeaves(byte heightmapType) throws IOException {
         // setup
-        HeightmapStorage storage = new InterleavedHeightmapStorage(tempDirectory.toFile());
+        HeightmapStorage storage = createStorage();
         int testSize = 128;
         SurfaceTrackerLeaf[] leaves = new SurfaceTrackerLeaf[testSize * testSize];
         SurfaceTrackerNodesTest.TestHeightmapSource16[] nodes = new SurfaceTrackerNodesTest.TestHeightmapSource16[testSize * testSize];
@@ -142,7 +162,7 @@ public class HeightmapStorageTest {
     @ValueSource(bytes = { -1, 0, 1, 2, 3, 4, 5 })
     public void testReloadLeaf2(byte heightmapType) throws IOException {
         // setup
-        HeightmapStorage storage = new InterleavedHeightmapStorage(tempDirectory.toFile());
+        HeightmapStorage storage = createStorage();
         SurfaceTrackerLeaf leaf = new SurfaceTrackerLeaf(1, null, heightmapType);
         SurfaceTrackerNodesTest.TestHeightmapSource32 testNode = new SurfaceTrackerNodesTest.TestHeightmapSource32(0, 1, 0);
         leaf.loadSource(0, 0, storage, testNode);
@@ -174,11 +194,83 @@ public class HeightmapStorageTest {
         storage.close();
     }
 
+    /**
+     * Tests that saved nodes survive closing the storage and opening a new one on the same directory
+     */
+    @ParameterizedTest
+    @ValueSource(bytes = { -1, 0, 1, 2, 3, 4, 5 })
+    public void testReloadAfterReopen(byte heightmapType) throws IOException {
+        // setup
+        HeightmapStorage storage = createStorage();
+        SurfaceTrackerLeaf leaf = new SurfaceTrackerLeaf(1, null, heightmapType);
+        SurfaceTrackerNodesTest.TestHeightmapSource32 testNode = new SurfaceTrackerNodesTest.TestHeightmapSource32(0, 1, 0);
+        leaf.loadSource(0, 0, storage, testNode);
+
+        int minBlockY = Coords.cubeToMinBlock(testNode.y);
+        forEachBlockColumnSurfaceTrackerNode((x, z) -> {
+            int blockY = minBlockY + ((x * 7 + z) & SCALE_0_NODE_HEIGHT - 1);
+            testNode.setBlock(x, blockY & (SCALE_0_NODE_HEIGHT - 1), z, true);
+        });
+
+        // save the node and reopen the storage
+        testNode.unloadSource(storage);
+        storage.saveNode(0, 0, leaf);
+        storage.close();
+        storage = createStorage();
+
+        SurfaceTrackerLeaf loadedLeaf = (SurfaceTrackerLeaf) storage.loadNode(0, 0, null, heightmapType, 0, 1);
+
+        // check positions are the same
+        assertNotNull(loadedLeaf);
+        forEachBlockColumnSurfaceTrackerNode((x, z) -> {
+            int blockY = minBlockY + ((x * 7 + z) & SCALE_0_NODE_HEIGHT - 1);
+            assertEquals(blockY, loadedLeaf.getHeight(x, z));
+        });
+
+        storage.close();
+    }
+
+    /**
+     * Tests saving and loading the children of a scale 1 branch as one batch, with every other child missing and one child already loaded
+     */
+    @Test
+    public void testSaveAndLoadNodes() throws IOException {
+        HeightmapStorage storage = createStorage();
+        SurfaceTrackerNode[] saved = new SurfaceTrackerNode[NODE_COUNT];
+        for (int i = 0; i < saved.length; i += 2) {
+            saved[i] = new SurfaceTrackerLeaf(NODE_COUNT + i, null, (byte) 0);
+        }
+        storage.saveNodes(3, 5, saved);
+        for (SurfaceTrackerNode node : saved) {
+            assertTrue(node == null || !node.requiresSave(), "Saved node still requires saving");
+        }
+
+        SurfaceTrackerBranch parent = new SurfaceTrackerBranch(1, 1, null, (byte) 0);
+        SurfaceTrackerNode[] loaded = new SurfaceTrackerNode[NODE_COUNT];
+        SurfaceTrackerLeaf alreadyLoaded = new SurfaceTrackerLeaf(NODE_COUNT, parent, (byte) 0);
+        loaded[0] = alreadyLoaded;
+        storage.loadNodes(3, 5, parent, (byte) 0, 0, NODE_COUNT, loaded);
+
+        assertSame(alreadyLoaded, loaded[0]);
+        for (int i = 1; i < loaded.length; i++) {
+            if (saved[i] == null) {
+                assertNull(loaded[i], "Loaded a node that was never saved");
+            } else {
+                assertNotNull(loaded[i]);
+                assertEquals(NODE_COUNT + i, loaded[i].getScaledY());
+                assertSame(parent, loaded[i].getParent());
+                assertFalse(loaded[i].requiresSave(), "Loaded node requires saving");
+            }
+        }
+
+        storage.close();
+    }
+
     @ParameterizedTest
     @ValueSource(bytes = { -1, 0, 1, 2, 3, 4, 5 })
     public void testReloadTree(byte heightmapType) throws IOException {
         // setup
-        HeightmapStorage storage = new InterleavedHeightmapStorage(tempDirectory.toFile());
+        HeightmapStorage storage = createStorage();
         SurfaceTrackerBranch root = new SurfaceTrackerBranch(SurfaceTrackerNode.MAX_SCALE, 0, null, heightmapType);
         SurfaceTrackerNodesTest.TestHeightmapSource32 testNode = new SurfaceTrackerNodesTest.TestHeightmapSource32(0, 0, 0);
         root.loadSource(0, 0, storage, testNode);
@@ -223,4 +315,211 @@ public class HeightmapStorageTest {
 
         storage.close();
     }
+
+    /**
+     * Tests that a branch finds the heights of a child that goes from empty to non-empty and back, and after the child is unloaded and loaded
+     * again from storage, both before and after it gets a source again
+     */
+    @Test
+    public void testChildBecomesNonEmptyAndReloads() throws IOException {
+        HeightmapStorage storage = createStorage();
+        SurfaceTrackerBranch root = new SurfaceTrackerBranch(SurfaceTrackerNode.MAX_SCALE, 0, null, (byte) 0);
+        SurfaceTrackerNodesTest.TestHeightmapSource32 lower = new SurfaceTrackerNodesTest.TestHeightmapSource32(0, 0, 0);
+        SurfaceTrackerNodesTest.TestHeightmapSource32 upper = new SurfaceTrackerNodesTest.TestHeightmapSource32(0, 1, 0);
+        root.loadSource(0, 0, storage, lower);
+        root.loadSource(0, 0, storage, upper);
+
+        Random r = new Random(123);
+        forEachBlockColumnSurfaceTrackerNode((x, z) -> {
+            if (r.nextBoolean()) {
+                lower.setBlock(x, r.nextInt(SCALE_0_NODE_HEIGHT), z, true);
+            }
+        });
+        checkHeights(root, lower, upper);
+
+        // the upper child goes from empty to non-empty in some columns
+        forEachBlockColumnSurfaceTrackerNode((x, z) -> {
+            if (r.nextInt(3) == 0) {
+                upper.setBlock(x, r.nextInt(SCALE_0_NODE_HEIGHT), z, true);
+            }
+        });
+        checkHeights(root, lower, upper);
+
+        // and back to empty in some of them
+        forEachBlockColumnSurfaceTrackerNode((x, z) -> {
+            int height = upper.getHighest(x, z, (byte) 0);
+            if (height != Integer.MIN_VALUE && r.nextBoolean()) {
+                upper.setBlock(x, height & (SCALE_0_NODE_HEIGHT - 1), z, false);
+            }
+        });
+        checkHeights(root, lower, upper);
+
+        // unload both, the whole tree below the root is saved
+        upper.unloadSource(storage);
+        lower.unloadSource(storage);
+
+        // reloading the lower source also loads the saved upper leaf, which has no source
+        SurfaceTrackerNodesTest.TestHeightmapSource32 reloadedLower = copySource(lower);
+        SurfaceTrackerNodesTest.TestHeightmapSource32 reloadedUpper = copySource(upper);
+        root.loadSource(0, 0, storage, reloadedLower);
+        checkHeights(root, reloadedLower, reloadedUpper);
+
+        root.loadSource(0, 0, storage, reloadedUpper);
+        forEachBlockColumnSurfaceTrackerNode((x, z) -> {
+            if (r.nextInt(4) == 0) {
+                reloadedUpper.setBlock(x, r.nextInt(SCALE_0_NODE_HEIGHT), z, r.nextBoolean());
+            }
+        });
+        checkHeights(root, reloadedLower, reloadedUpper);
+
+        storage.close();
+    }
+
+    /**
+     * Tests range queries after reloading one of two sources, which also loads the saved leaf of the other one without a source
+     */
+    @Test
+    public void testRangeQueriesOnReloadedLeaves() throws IOException {
+        HeightmapStorage storage = createStorage();
+        SurfaceTrackerBranch root = new SurfaceTrackerBranch(SurfaceTrackerNode.MAX_SCALE, 0, null, (byte) 0);
+        SurfaceTrackerNodesTest.TestHeightmapSource32 lower = new SurfaceTrackerNodesTest.TestHeightmapSource32(0, 0, 0);
+        SurfaceTrackerNodesTest.TestHeightmapSource32 upper = new SurfaceTrackerNodesTest.TestHeightmapSource32(0, 1, 0);
+        root.loadSource(0, 0, storage, lower);
+        root.loadSource(0, 0, storage, upper);
+        lower.setBlock(0, 4, 0, true);
+        lower.setBlock(0, 5, 0, true);
+        upper.setBlock(0, 8, 0, true);
+        upper.setBlock(0, 10, 0, true);
+        upper.unloadSource(storage);
+        lower.unloadSource(storage);
+
+        root.loadSource(0, 0, storage, copySource(lower));
+        int upperTop = SCALE_0_NODE_HEIGHT + 10;
+        assertEquals(upperTop, root.getHeight(0, 0));
+        assertEquals(upperTop, root.getHeightBelow(0, 0, upperTop + 1));
+        // the upper leaf only knows its top, the blocks below it are looked up in the lower source
+        assertEquals(5, root.getHeightBelow(0, 0, upperTop - 1));
+        assertEquals(5, root.getHeightBelow(0, 0, 40));
+        assertEquals(4, root.getHeightInRange(0, 0, 0, 4));
+        assertEquals(Integer.MIN_VALUE, root.getHeightInRange(0, 0, 6, upperTop - 1));
+
+        // where the surface in the upper leaf ends isn't known
+        List<Integer> surfaces = new ArrayList<>();
+        root.forEachSurface(0, 0, Integer.MIN_VALUE, Integer.MAX_VALUE, surfaces::add);
+        assertEquals(List.of(upperTop), surfaces);
+        surfaces.clear();
+        root.forEachSurface(0, 0, Integer.MIN_VALUE, upperTop - 1, surfaces::add);
+        assertEquals(List.of(5), surfaces);
+
+        storage.close();
+    }
+
+    private static SurfaceTrackerNodesTest.TestHeightmapSource32 copySource(SurfaceTrackerNodesTest.TestHeightmapSource32 source) {
+        SurfaceTrackerNodesTest.TestHeightmapSource32 copy = new SurfaceTrackerNodesTest.TestHeightmapSource32(source.cubeX, source.y, source.cubeZ);
+        for (int z = 0; z < source.blockBitsets.length; z++) {
+            for (int x = 0; x < source.blockBitsets[z].length; x++) {
+                copy.blockBitsets[z][x].or(source.blockBitsets[z][x]);
+            }
+        }
+        return copy;
+    }
+
+    private static void checkHeights(SurfaceTrackerNode root, SurfaceTrackerNodesTest.TestHeightmapSource32... sources) {
+        forEachBlockColumnSurfaceTrackerNode((x, z) -> {
+            int expected = Integer.MIN_VALUE;
+            for (SurfaceTrackerNodesTest.TestHeightmapSource32 source : sources) {
+                expected = Math.max(expected, source.getHighest(x, z, (byte) 0));
+            }
+            assertEquals(expected, root.getHeight(x, z), "x=" + x + ", z=" + z);
+        });
+    }
+
+    /**
+     * Saves, loads and flushes from several threads at once. Every node belongs to one worker, but the nodes share a few regions that keep being
+     * evicted and reloaded by storages with a small cache.
+     */
+    @Test
+    public void testConcurrentSaveLoadFlush() throws Exception {
+        int workerCount = 4;
+        int nodesPerWorker = 32;
+        HeightmapStorage storage = createStorage();
+        // last saved version of each node, indexed by worker then node
+        int[][] versions = new int[workerCount][nodesPerWorker];
+
+        ExecutorService executor = Executors.newFixedThreadPool(workerCount + 1);
+        AtomicBoolean workersDone = new AtomicBoolean();
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int worker = 0; worker < workerCount; worker++) {
+                int workerIdx = worker;
+                workers.add(executor.submit(() -> {
+                    Random random = new Random(workerIdx);
+                    int[] workerVersions = versions[workerIdx];
+                    for (int i = 0; i < 400; i++) {
+                        int node = random.nextInt(nodesPerWorker);
+                        int nodeX = stressNodeX(workerIdx, node);
+                        int nodeZ = stressNodeZ(node);
+                        if (random.nextBoolean()) {
+                            workerVersions[node]++;
+                            storage.saveNode(nodeX, nodeZ, new StressLeaf(nodeX, nodeZ, workerVersions[node]));
+                        } else if (workerVersions[node] != 0) {
+                            checkStressLeaf(storage, nodeX, nodeZ, workerVersions[node]);
+                        }
+                    }
+                }));
+            }
+            Future<?> flusher = executor.submit(() -> {
+                while (!workersDone.get()) {
+                    storage.flushAsync().join();
+                }
+                return null;
+            });
+
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+            workersDone.set(true);
+            flusher.get();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        storage.close();
+        HeightmapStorage reopened = createStorage();
+        for (int worker = 0; worker < workerCount; worker++) {
+            for (int node = 0; node < nodesPerWorker; node++) {
+                if (versions[worker][node] != 0) {
+                    checkStressLeaf(reopened, stressNodeX(worker, node), stressNodeZ(node), versions[worker][node]);
+                }
+            }
+        }
+        reopened.close();
+    }
+
+    protected static int stressNodeX(int worker, int node) {
+        // every worker has nodes in both regions along x
+        return node * 4 + worker;
+    }
+
+    protected static int stressNodeZ(int node) {
+        return (node & 1) * 64;
+    }
+
+    protected static void checkStressLeaf(HeightmapStorage storage, int nodeX, int nodeZ, int version) {
+        SurfaceTrackerLeaf loadedLeaf = (SurfaceTrackerLeaf) storage.loadNode(nodeX, nodeZ, null, (byte) 0, 0, 0);
+        assertNotNull(loadedLeaf);
+        forEachBlockColumnSurfaceTrackerNode((x, z) ->
+            assertEquals(StressLeaf.relativeHeight(nodeX, nodeZ, version, x, z) - 1, loadedLeaf.getHeight(x, z)));
+    }
+
+    protected static class StressLeaf extends SurfaceTrackerLeaf {
+        StressLeaf(int nodeX, int nodeZ, int version) {
+            super(0, null, (byte) 0);
+            forEachBlockColumnSurfaceTrackerNode((x, z) -> setRawHeight(x, z, relativeHeight(nodeX, nodeZ, version, x, z)));
+        }
+
+        static int relativeHeight(int nodeX, int nodeZ, int version, int x, int z) {
+            return ((version * 31 + nodeX * 7 + nodeZ * 5 + x * 3 + z) & (SCALE_0_NODE_HEIGHT - 1)) + 1;
+        }
+    }
 }
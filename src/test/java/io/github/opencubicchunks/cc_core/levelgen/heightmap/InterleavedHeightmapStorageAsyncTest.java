@@ -0,0 +1,112 @@
+package io.github.opencubicchunks.cc_core.levelgen.heightmap;
+
+import static io.github.opencubicchunks.cc_core.testutils.Utils.forEachBlockColumnSurfaceTrackerNode;
+import static io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerNode.SCALE_0_NODE_HEIGHT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.stream.Stream;
+
+import io.github.opencubicchunks.cc_core.utils.Coords;
+import io.github.opencubicchunks.cc_core.world.heightmap.HeightmapStorage;
+import io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.InterleavedHeightmapStorage;
+import io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerLeaf;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests the background writes of {@link InterleavedHeightmapStorage}, using an executor that holds tasks back until they're released
+ */
+public class InterleavedHeightmapStorageAsyncTest {
+    @TempDir Path tempDirectory;
+
+    private final ArrayDeque<Runnable> heldTasks = new ArrayDeque<>();
+    private boolean holdTasks = true;
+    private final Executor executor = task -> {
+        if (holdTasks) {
+            heldTasks.add(task);
+        } else {
+            task.run();
+        }
+    };
+
+    @Test
+    public void testFlushAsyncWritesInBackground() throws IOException {
+        HeightmapStorage storage = new InterleavedHeightmapStorage(tempDirectory.toFile(), InterleavedHeightmapStorage.DEFAULT_MAX_CACHE_BYTES, executor);
+        int minBlockY = saveTestLeaf(storage, 0, 0);
+
+        CompletableFuture<Void> future = storage.flushAsync();
+        assertFalse(future.isDone(), "Flush completed before its writes ran");
+        assertEquals(0, countRegionFiles());
+
+        releaseTasks();
+        assertTrue(future.isDone());
+        future.join();
+        assertEquals(1, countRegionFiles());
+
+        storage.close();
+        storage = new InterleavedHeightmapStorage(tempDirectory.toFile());
+        checkTestLeaf(storage, 0, 0, minBlockY);
+        storage.close();
+    }
+
+    /**
+     * Tests that a region which is evicted and loaded again before its write has run is read from the pending write, not from disk
+     */
+    @Test
+    public void testLoadDuringPendingWrite() throws IOException {
+        HeightmapStorage storage = new InterleavedHeightmapStorage(tempDirectory.toFile(), 0, executor);
+        int minBlockY = saveTestLeaf(storage, 0, 0);
+
+        // a node in another region pushes the first region out of the cache
+        storage.saveNode(64, 0, new SurfaceTrackerLeaf(1, null, (byte) 0));
+        assertEquals(0, countRegionFiles(), "Evicted region was written on the calling thread");
+
+        checkTestLeaf(storage, 0, 0, minBlockY);
+
+        releaseTasks();
+        storage.close();
+        storage = new InterleavedHeightmapStorage(tempDirectory.toFile());
+        checkTestLeaf(storage, 0, 0, minBlockY);
+        storage.close();
+    }
+
+    private static int saveTestLeaf(HeightmapStorage storage, int nodeX, int nodeZ) {
+        SurfaceTrackerLeaf leaf = new SurfaceTrackerLeaf(1, null, (byte) 0);
+        SurfaceTrackerNodesTest.TestHeightmapSource32 testNode = new SurfaceTrackerNodesTest.TestHeightmapSource32(nodeX, 1, nodeZ);
+        leaf.loadSource(nodeX, nodeZ, storage, testNode);
+
+        forEachBlockColumnSurfaceTrackerNode((x, z) -> testNode.setBlock(x, (x * 3 + z) & (SCALE_0_NODE_HEIGHT - 1), z, true));
+
+        testNode.unloadSource(storage);
+        storage.saveNode(nodeX, nodeZ, leaf);
+        return Coords.cubeToMinBlock(testNode.y);
+    }
+
+    private static void checkTestLeaf(HeightmapStorage storage, int nodeX, int nodeZ, int minBlockY) {
+        SurfaceTrackerLeaf loadedLeaf = (SurfaceTrackerLeaf) storage.loadNode(nodeX, nodeZ, null, (byte) 0, 0, 1);
+        assertNotNull(loadedLeaf);
+        forEachBlockColumnSurfaceTrackerNode((x, z) -> assertEquals(minBlockY + ((x * 3 + z) & (SCALE_0_NODE_HEIGHT - 1)), loadedLeaf.getHeight(x, z)));
+    }
+
+    private void releaseTasks() {
+        holdTasks = false;
+        while (!heldTasks.isEmpty()) {
+            heldTasks.poll().run();
+        }
+    }
+
+    private long countRegionFiles() throws IOException {
+        try (Stream<?> files = Files.list(tempDirectory)) {
+            return files.count();
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package io.github.opencubicchunks.cc_core.levelgen.heightmap;
+
+import static io.github.opencubicchunks.cc_core.testutils.Utils.forEachBlockColumnSurfaceTrackerNode;
+import static io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerNode.SCALE_0_NODE_HEIGHT;
+import static io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerNode.WIDTH_BLOCKS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.IntBinaryOperator;
+import java.util.stream.Stream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import io.github.opencubicchunks.cc_core.utils.Coords;
+import io.github.opencubicchunks.cc_core.world.heightmap.HeightmapStorage;
+import io.github.opencubicchunks.cc_core.world.heightmap.HeightmapStorageStats;
+import io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.InterleavedHeightmapStorage;
+import io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.RegionCodecs;
+import io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerLeaf;
+import io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerNode;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs the {@link HeightmapStorageTest} tests against an {@link InterleavedHeightmapStorage} without a cache budget, so every region switch evicts,
+ * and tests details of the interleaved format
+ */
+public class InterleavedHeightmapStorageTest extends HeightmapStorageTest {
+    private static final int ENTRIES_PER_FILE = 64 * 64 * WIDTH_BLOCKS * WIDTH_BLOCKS;
+
+    @Override protected HeightmapStorage createStorage() {
+        return new InterleavedHeightmapStorage(tempDirectory.toFile(), 0);
+    }
+
+    /**
+     * Tests that a modified region is written to disk when it's evicted, and that its nodes load again afterwards
+     */
+    @Test
+    public void testEvictedRegionIsWrittenBack() throws IOException {
+        // write on the calling thread, so the file exists as soon as the region is evicted
+        HeightmapStorage storage = new InterleavedHeightmapStorage(tempDirectory.toFile(), 0, Runnable::run);
+        SurfaceTrackerLeaf leaf = new SurfaceTrackerLeaf(1, null, (byte) 0);
+        SurfaceTrackerNodesTest.TestHeightmapSource32 testNode = new SurfaceTrackerNodesTest.TestHeightmapSource32(0, 1, 0);
+        leaf.loadSource(0, 0, storage, testNode);
+
+        int minBlockY = Coords.cubeToMinBlock(testNode.y);
+        forEachBlockColumnSurfaceTrackerNode((x, z) -> testNode.setBlock(x, (x + z) & (SCALE_0_NODE_HEIGHT - 1), z, true));
+
+        testNode.unloadSource(storage);
+        storage.saveNode(0, 0, leaf);
+        assertEquals(0, countRegionFiles(), "Region written before eviction");
+
+        // a node in another region pushes the first region out of the cache
+        storage.saveNode(64, 0, new SurfaceTrackerLeaf(1, null, (byte) 0));
+        assertEquals(1, countRegionFiles(), "Evicted region wasn't written");
+
+        SurfaceTrackerLeaf loadedLeaf = (SurfaceTrackerLeaf) storage.loadNode(0, 0, null, (byte) 0, 0, 1);
+        assertNotNull(loadedLeaf);
+        forEachBlockColumnSurfaceTrackerNode((x, z) -> assertEquals(minBlockY + ((x + z) & (SCALE_0_NODE_HEIGHT - 1)), loadedLeaf.getHeight(x, z)));
+
+        storage.close();
+        assertTrue(countRegionFiles() >= 2);
+    }
+
+    /**
+     * Tests that region files in the original format, deflated {@link BitSet#toByteArray()} of the gray coded bit planes without a header, are read,
+     * and that the same planes are written back in the sparse format
+     */
+    @Test
+    public void testBitSetFormat() throws IOException {
+        int bitsForEntry = SurfaceTrackerNode.getBitsForScale(0);
+        IntBinaryOperator relativeHeight = (x, z) -> ((x * 3 + z) & (SCALE_0_NODE_HEIGHT - 1)) + 1;
+
+        // region 0, 0 at scaledY 1, scale 0, heightmap type 0, with one node at section 0, 0
+        BitSet written = new BitSet();
+        forEachBlockColumnSurfaceTrackerNode((x, z) -> {
+            int gray = relativeHeight.applyAsInt(x, z) ^ (relativeHeight.applyAsInt(x, z) >>> 1);
+            for (int bitIdx = 0; bitIdx < bitsForEntry; bitIdx++) {
+                written.set(bitIdx * ENTRIES_PER_FILE + x + z * WIDTH_BLOCKS, ((gray >>> bitIdx) & 1) != 0);
+            }
+        });
+        Path regionFile = tempDirectory.resolve("0.0.1.0.0.str");
+        try (OutputStream outputStream = new DeflaterOutputStream(Files.newOutputStream(regionFile))) {
+            outputStream.write(written.toByteArray());
+        }
+
+        HeightmapStorage storage = createStorage();
+        SurfaceTrackerLeaf loadedLeaf = (SurfaceTrackerLeaf) storage.loadNode(0, 0, null, (byte) 0, 0, 1);
+        assertNotNull(loadedLeaf);
+        int minBlockY = Coords.cubeToMinBlock(1);
+        forEachBlockColumnSurfaceTrackerNode((x, z) -> assertEquals(minBlockY + relativeHeight.applyAsInt(x, z) - 1, loadedLeaf.getHeight(x, z)));
+
+        // write it back unchanged, the file should have the same data. A loaded node doesn't require saving, dirtying a position forces it
+        loadedLeaf.markDirty(0, 0);
+        storage.saveNode(0, 0, loadedLeaf);
+        storage.close();
+        try (InputStream inputStream = Files.newInputStream(regionFile)) {
+            ByteBuffer header = ByteBuffer.wrap(inputStream.readNBytes(12)).order(ByteOrder.LITTLE_ENDIAN);
+            assertEquals(0x52484343, header.getInt(0), "Wrong magic");
+            assertEquals(2, header.get(4), "Wrong format version");
+            assertEquals(RegionCodecs.DEFLATE.id(), header.get(5));
+            byte[] data = new InflaterInputStream(inputStream).readAllBytes();
+            assertEquals(header.getInt(8), data.length);
+
+            ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+            int storedPlanes = buffer.getInt();
+            assertEquals(0, buffer.getInt(), "A single node can't make a plane all ones");
+            BitSet read = new BitSet();
+            for (int bitIdx = 0; bitIdx < bitsForEntry; bitIdx++) {
+                assertEquals(!written.get(bitIdx * ENTRIES_PER_FILE, (bitIdx + 1) * ENTRIES_PER_FILE).isEmpty(), (storedPlanes & (1 << bitIdx)) != 0,
+                    "Plane " + bitIdx);
+                if ((storedPlanes & (1 << bitIdx)) != 0) {
+                    BitSet plane = BitSet.valueOf(buffer.slice(buffer.position(), ENTRIES_PER_FILE / Byte.SIZE));
+                    buffer.position(buffer.position() + ENTRIES_PER_FILE / Byte.SIZE);
+                    int planeStart = bitIdx * ENTRIES_PER_FILE;
+                    plane.stream().forEach(idx -> read.set(planeStart + idx));
+                }
+            }
+            assertEquals(written, read);
+        }
+    }
+
+    /**
+     * Tests that constant bit planes aren't stored: with every node of a region saved at the same height, the lowest plane is all ones and the
+     * rest are all zeros
+     */
+    @Test
+    public void testConstantPlanesNotStored() throws IOException {
+        HeightmapStorage storage = new InterleavedHeightmapStorage(tempDirectory.toFile(), InterleavedHeightmapStorage.DEFAULT_MAX_CACHE_BYTES, Runnable::run);
+        for (int nodeZ = 0; nodeZ < 64; nodeZ++) {
+            for (int nodeX = 0; nodeX < 64; nodeX++) {
+                // relative height 1 is gray code 1
+                SurfaceTrackerLeaf leaf = new SurfaceTrackerLeaf(0, null, (byte) 0);
+                forEachBlockColumnSurfaceTrackerNode((x, z) -> leaf.onSetBlock(x, 0, z, type -> true));
+                storage.saveNode(nodeX, nodeZ, leaf);
+            }
+        }
+        storage.close();
+
+        try (InputStream inputStream = Files.newInputStream(tempDirectory.resolve("0.0.0.0.0.str"))) {
+            ByteBuffer header = ByteBuffer.wrap(inputStream.readNBytes(12)).order(ByteOrder.LITTLE_ENDIAN);
+            assertEquals(8, header.getInt(8), "Only the plane bitmaps should be stored");
+            ByteBuffer data = ByteBuffer.wrap(new InflaterInputStream(inputStream).readAllBytes()).order(ByteOrder.LITTLE_ENDIAN);
+            assertEquals(0, data.getInt(), "Stored planes");
+            assertEquals(1, data.getInt(), "All ones planes");
+        }
+
+        storage = createStorage();
+        SurfaceTrackerLeaf loadedLeaf = (SurfaceTrackerLeaf) storage.loadNode(63, 17, null, (byte) 0, 0, 0);
+        assertNotNull(loadedLeaf);
+        forEachBlockColumnSurfaceTrackerNode((x, z) -> assertEquals(0, loadedLeaf.getHeight(x, z)));
+
+        // a different height in a single node has to allocate the planes again
+        forEachBlockColumnSurfaceTrackerNode((x, z) -> loadedLeaf.onSetBlock(x, 5, z, type -> true));
+        storage.saveNode(63, 17, loadedLeaf);
+        SurfaceTrackerLeaf otherLeaf = (SurfaceTrackerLeaf) storage.loadNode(0, 0, null, (byte) 0, 0, 0);
+        assertNotNull(otherLeaf);
+        forEachBlockColumnSurfaceTrackerNode((x, z) -> assertEquals(0, otherLeaf.getHeight(x, z)));
+        SurfaceTrackerLeaf reloadedLeaf = (SurfaceTrackerLeaf) storage.loadNode(63, 17, null, (byte) 0, 0, 0);
+        assertNotNull(reloadedLeaf);
+        forEachBlockColumnSurfaceTrackerNode((x, z) -> assertEquals(5, reloadedLeaf.getHeight(x, z)));
+        storage.close();
+    }
+
+    /**
+     * Tests the events reported to a {@link HeightmapStorageStats} while writing a region and reading it back
+     */
+    @Test
+    public void testStats() throws IOException {
+        HeightmapStorageStats stats = new HeightmapStorageStats();
+        HeightmapStorage storage = new InterleavedHeightmapStorage(tempDirectory.toFile(), InterleavedHeightmapStorage.DEFAULT_MAX_CACHE_BYTES, Runnable::run);
+        storage.setListener(stats);
+        storage.saveNode(0, 0, new StressLeaf(0, 0, 1));
+        assertTrue(stats.cacheBytes() > 0, "Cache size not reported");
+        storage.flush();
+        storage.close();
+
+        Path regionFile = tempDirectory.resolve("0.0.0.0.0.str");
+        assertEquals(1, stats.regionWrites());
+        assertEquals(Files.size(regionFile), stats.bytesWritten());
+        assertEquals(1, stats.encodeTime().count());
+        assertEquals(2, stats.flushTime().count(), "Closing flushes too");
+        assertEquals(0, stats.failedFlushes());
+        assertEquals(0, stats.cacheBytes(), "Closing empties the cache");
+        assertEquals(0, stats.regionReads());
+
+        stats = new HeightmapStorageStats();
+        storage = new InterleavedHeightmapStorage(tempDirectory.toFile(), InterleavedHeightmapStorage.DEFAULT_MAX_CACHE_BYTES, Runnable::run);
+        storage.setListener(stats);
+        assertNotNull(storage.loadNode(0, 0, null, (byte) 0, 0, 0));
+        assertEquals(1, stats.nodeLoadMisses());
+        assertEquals(1, stats.regionReads());
+        assertEquals(Files.size(regionFile), stats.bytesRead());
+        assertEquals(1, stats.decodeTime().count());
+
+        assertNotNull(storage.loadNode(1, 0, null, (byte) 0, 0, 0));
+        assertEquals(1, stats.nodeLoadHits());
+
+        // the region of another scaledY doesn't exist, that's remembered after the first miss
+        assertNull(storage.loadNode(0, 0, null, (byte) 0, 0, 1));
+        assertNull(storage.loadNode(0, 0, null, (byte) 0, 0, 1));
+        assertEquals(2, stats.nodeLoadMisses());
+        assertEquals(1, stats.negativeCacheHits());
+        assertEquals(1, stats.regionReads());
+        storage.close();
+    }
+
+    /**
+     * Tests that flushes with journaling append to the journal, that a storage that was never closed is restored from it, and that closing
+     * replaces the journal with the region
+     */
+    @Test
+    public void testJournalReplay() throws IOException {
+        Path regionFile = tempDirectory.resolve("0.0.0.0.0.str");
+        Path journalFile = tempDirectory.resolve("0.0.0.0.0.str.journal");
+
+        HeightmapStorage storage = createJournaledStorage();
+        storage.saveNode(0, 0, new StressLeaf(0, 0, 1));
+        storage.flush();
+        assertFalse(Files.exists(regionFile), "Region written instead of journal");
+        long journalSize = Files.size(journalFile);
+
+        storage.saveNode(0, 0, new StressLeaf(0, 0, 2));
+        storage.saveNode(1, 0, new StressLeaf(1, 0, 1));
+        storage.flush();
+        assertEquals(journalSize * 3 - 8 * 2, Files.size(journalFile), "Each flush should append a record per saved node");
+        // the storage isn't closed, as if the game crashed
+
+        storage = createStorage();
+        checkStressLeaf(storage, 0, 0, 2);
+        checkStressLeaf(storage, 1, 0, 1);
+        storage.close();
+        assertTrue(Files.exists(regionFile));
+        assertFalse(Files.exists(journalFile), "Closing should replace the journal");
+        try (Stream<Path> files = Files.list(tempDirectory)) {
+            assertEquals(List.of(regionFile), files.toList(), "Temporary files left behind");
+        }
+
+        storage = createStorage();
+        checkStressLeaf(storage, 0, 0, 2);
+        checkStressLeaf(storage, 1, 0, 1);
+        storage.close();
+    }
+
+    /**
+     * Tests that a partially written journal record is dropped, and that appending continues after the last complete record
+     */
+    @Test
+    public void testTornJournalRecord() throws IOException {
+        Path journalFile = tempDirectory.resolve("0.0.0.0.0.str.journal");
+
+        HeightmapStorage storage = createJournaledStorage();
+        storage.saveNode(0, 0, new StressLeaf(0, 0, 1));
+        storage.flush();
+        long oneRecordSize = Files.size(journalFile);
+        storage.saveNode(1, 0, new StressLeaf(1, 0, 1));
+        storage.flush();
+
+        try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 10);
+        }
+
+        storage = createJournaledStorage();
+        checkStressLeaf(storage, 0, 0, 1);
+        assertEquals(oneRecordSize, Files.size(journalFile), "Torn record wasn't truncated");
+        storage.saveNode(1, 0, new StressLeaf(1, 0, 2));
+        storage.flush();
+
+        storage = createStorage();
+        checkStressLeaf(storage, 0, 0, 1);
+        checkStressLeaf(storage, 1, 0, 2);
+        storage.close();
+    }
+
+    /**
+     * Tests that a journal left behind by a crash after its region was rewritten isn't applied to the newer region
+     */
+    @Test
+    public void testStaleJournalIgnored() throws IOException {
+        Path journalFile = tempDirectory.resolve("0.0.0.0.0.str.journal");
+
+        HeightmapStorage storage = createJournaledStorage();
+        storage.saveNode(0, 0, new StressLeaf(0, 0, 1));
+        storage.flush();
+        byte[] staleJournal = Files.readAllBytes(journalFile);
+        storage.close();
+
+        storage = createStorage();
+        storage.saveNode(0, 0, new StressLeaf(0, 0, 2));
+        storage.close();
+        Files.write(journalFile, staleJournal);
+
+        storage = createStorage();
+        checkStressLeaf(storage, 0, 0, 2);
+        assertFalse(Files.exists(journalFile), "Stale journal wasn't deleted");
+        storage.close();
+    }
+
+    /**
+     * Tests that the region is rewritten once the journal gets too large, rather than growing the journal forever
+     */
+    @Test
+    public void testJournalCompaction() throws IOException {
+        Path regionFile = tempDirectory.resolve("0.0.0.0.0.str");
+        Path journalFile = tempDirectory.resolve("0.0.0.0.0.str.journal");
+
+        HeightmapStorage storage = createJournaledStorage();
+        int version = 0;
+        while (!Files.exists(regionFile)) {
+            version++;
+            assertTrue(version < 100, "Region never rewritten");
+            for (int nodeX = 0; nodeX < 64; nodeX++) {
+                storage.saveNode(nodeX, 0, new StressLeaf(nodeX, 0, version));
+            }
+            storage.flush();
+        }
+        assertTrue(version > 1, "Region rewritten on the first flush");
+        assertFalse(Files.exists(journalFile), "Rewriting the region should replace the journal");
+
+        // the next flush starts a new journal on top of the rewritten region
+        storage.saveNode(5, 0, new StressLeaf(5, 0, version + 1));
+        storage.flush();
+        assertTrue(Files.exists(journalFile));
+
+        storage = createStorage();
+        checkStressLeaf(storage, 4, 0, version);
+        checkStressLeaf(storage, 5, 0, version + 1);
+        storage.close();
+    }
+
+    private HeightmapStorage createJournaledStorage() {
+        return new InterleavedHeightmapStorage(tempDirectory.toFile(), InterleavedHeightmapStorage.DEFAULT_MAX_CACHE_BYTES, Runnable::run,
+            RegionCodecs.DEFLATE, true);
+    }
+
+    /**
+     * Tests that regions written with one codec are read by a storage that writes with another
+     */
+    @Test
+    public void testReadsAnyCodec() throws IOException {
+        HeightmapStorage storage = new InterleavedHeightmapStorage(tempDirectory.toFile(), 0, Runnable::run, RegionCodecs.LZ4);
+        storage.saveNode(0, 0, new StressLeaf(0, 0, 1));
+        storage.close();
+
+        storage = createStorage();
+        SurfaceTrackerLeaf loadedLeaf = (SurfaceTrackerLeaf) storage.loadNode(0, 0, null, (byte) 0, 0, 0);
+        assertNotNull(loadedLeaf);
+        forEachBlockColumnSurfaceTrackerNode((x, z) -> assertEquals(StressLeaf.relativeHeight(0, 0, 1, x, z) - 1, loadedLeaf.getHeight(x, z)));
+        storage.close();
+    }
+
+    private long countRegionFiles() throws IOException {
+        try (Stream<?> files = Files.list(tempDirectory)) {
+            return files.count();
+        }
+    }
+}
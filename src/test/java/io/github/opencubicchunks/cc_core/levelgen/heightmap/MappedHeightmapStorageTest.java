@@ -0,0 +1,83 @@
+package io.github.opencubicchunks.cc_core.levelgen.heightmap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import io.github.opencubicchunks.cc_core.world.heightmap.HeightmapStorage;
+import io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.MappedHeightmapStorage;
+import io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerLeaf;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs the {@link HeightmapStorageTest} tests against a {@link MappedHeightmapStorage} that keeps no region mapped except the one last used, so every
+ * region switch evicts
+ */
+public class MappedHeightmapStorageTest extends HeightmapStorageTest {
+    @Override protected HeightmapStorage createStorage() {
+        return new MappedHeightmapStorage(tempDirectory.toFile(), 0);
+    }
+
+    /**
+     * Tests that only saved slots of a region load, unlike the interleaved format which has no presence information
+     */
+    @Test
+    public void testUnsavedNodeIsAbsent() throws IOException {
+        HeightmapStorage storage = createStorage();
+        storage.saveNode(0, 0, new SurfaceTrackerLeaf(1, null, (byte) 0));
+
+        assertNotNull(storage.loadNode(0, 0, null, (byte) 0, 0, 1));
+        assertNull(storage.loadNode(1, 0, null, (byte) 0, 0, 1), "Loaded a node that was never saved");
+        assertNull(storage.loadNode(0, 0, null, (byte) 0, 0, 2), "Loaded a node from a region that doesn't exist");
+
+        storage.close();
+    }
+
+    /**
+     * Tests that a region is written to disk when it's evicted, and that its nodes load again afterwards
+     */
+    @Test
+    public void testEvictedRegionIsWrittenBack() throws IOException {
+        HeightmapStorage storage = createStorage();
+        storage.saveNode(0, 0, new StressLeaf(0, 0, 1));
+        // switches to another region, unmapping the first one
+        storage.saveNode(64, 0, new StressLeaf(64, 0, 1));
+
+        checkStressLeaf(storage, 0, 0, 1);
+        storage.saveNode(0, 0, new StressLeaf(0, 0, 2));
+        checkStressLeaf(storage, 64, 0, 1);
+        checkStressLeaf(storage, 0, 0, 2);
+        storage.close();
+
+        HeightmapStorage reopened = createStorage();
+        checkStressLeaf(reopened, 0, 0, 2);
+        checkStressLeaf(reopened, 64, 0, 1);
+        reopened.close();
+    }
+
+    /**
+     * Tests that a new region file is created in place with its header, without leaving the temporary file behind
+     */
+    @Test
+    public void testRegionFileCreated() throws IOException {
+        HeightmapStorage storage = createStorage();
+        storage.saveNode(0, 0, new StressLeaf(0, 0, 1));
+        storage.close();
+
+        try (Stream<Path> files = Files.list(tempDirectory)) {
+            assertEquals(1, files.filter(file -> !file.getFileName().toString().endsWith(".tmp")).count());
+        }
+        try (Stream<Path> files = Files.list(tempDirectory)) {
+            assertEquals(0, files.filter(file -> file.getFileName().toString().endsWith(".tmp")).count(), "Temporary files left behind");
+        }
+
+        HeightmapStorage reopened = createStorage();
+        checkStressLeaf(reopened, 0, 0, 1);
+        reopened.close();
+    }
+}
@@ -0,0 +1,111 @@
+package io.github.opencubicchunks.cc_core.levelgen.heightmap;
+
+import static io.github.opencubicchunks.cc_core.testutils.Utils.forEachBlockColumnSurfaceTrackerNode;
+import static io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerNode.MAX_SCALE;
+import static io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerNode.WIDTH_BLOCKS;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import io.github.opencubicchunks.cc_core.world.heightmap.HeightmapStorage;
+import io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.NodeHeightsPool;
+import io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerBranch;
+import io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerLeaf;
+import io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerNode;
+import org.junit.jupiter.api.Test;
+
+public class NodeHeightsPoolTest {
+    /**
+     * Tests that a tree with its heights in a pool has the same heights as one on the heap, and that unloaded nodes give their memory back
+     */
+    @Test
+    public void testPooledTreeMatchesHeapTree() {
+        HeightmapStorage storage = new SurfaceTrackerNodesTest.NullHeightmapStorage();
+        try (NodeHeightsPool pool = new NodeHeightsPool()) {
+            SurfaceTrackerBranch heapRoot = new SurfaceTrackerBranch(MAX_SCALE, 0, null, (byte) 0);
+            SurfaceTrackerBranch pooledRoot = new SurfaceTrackerBranch(MAX_SCALE, 0, null, (byte) 0, pool);
+
+            int[] cubeYs = { -5000, -1, 0, 3, 100 };
+            SurfaceTrackerNodesTest.TestHeightmapSource32[] heapSources = new SurfaceTrackerNodesTest.TestHeightmapSource32[cubeYs.length];
+            SurfaceTrackerNodesTest.TestHeightmapSource32[] pooledSources = new SurfaceTrackerNodesTest.TestHeightmapSource32[cubeYs.length];
+            for (int i = 0; i < cubeYs.length; i++) {
+                heapSources[i] = new SurfaceTrackerNodesTest.TestHeightmapSource32(0, cubeYs[i], 0);
+                pooledSources[i] = new SurfaceTrackerNodesTest.TestHeightmapSource32(0, cubeYs[i], 0);
+                heapRoot.loadSource(0, 0, storage, heapSources[i]);
+                pooledRoot.loadSource(0, 0, storage, pooledSources[i]);
+            }
+            assertEquals(countNodes(pooledRoot), pool.usedSlots());
+
+            Random r = new Random(123);
+            for (int i = 0; i < 5000; i++) {
+                int source = r.nextInt(cubeYs.length);
+                int x = r.nextInt(WIDTH_BLOCKS);
+                int y = r.nextInt(SurfaceTrackerNode.SCALE_0_NODE_HEIGHT);
+                int z = r.nextInt(WIDTH_BLOCKS);
+                boolean opaque = r.nextBoolean();
+                heapSources[source].setBlock(x, y, z, opaque);
+                pooledSources[source].setBlock(x, y, z, opaque);
+            }
+            forEachBlockColumnSurfaceTrackerNode((x, z) -> assertEquals(heapRoot.getHeight(x, z), pooledRoot.getHeight(x, z)));
+
+            int usedBefore = pool.usedSlots();
+            long allocatedBefore = pool.allocatedBytes();
+            SurfaceTrackerLeaf unloadedLeaf = pooledRoot.getLeaf(cubeYs[cubeYs.length - 1]);
+            int[] unloadedHeights = new int[WIDTH_BLOCKS * WIDTH_BLOCKS];
+            unloadedLeaf.getHeights(unloadedHeights);
+            heapSources[cubeYs.length - 1].unloadSource(storage);
+            pooledSources[cubeYs.length - 1].unloadSource(storage);
+            assertTrue(pool.usedSlots() < usedBefore);
+            assertEquals(countNodes(pooledRoot), pool.usedSlots());
+            forEachBlockColumnSurfaceTrackerNode((x, z) -> assertEquals(heapRoot.getHeight(x, z), pooledRoot.getHeight(x, z)));
+
+            // the released slots aren't reused until they're reclaimed, a thread still reading the unloaded leaf sees its last heights
+            SurfaceTrackerNodesTest.TestHeightmapSource32 reloaded = new SurfaceTrackerNodesTest.TestHeightmapSource32(0, cubeYs[cubeYs.length - 1], 0);
+            pooledRoot.loadSource(0, 0, storage, reloaded);
+            forEachBlockColumnSurfaceTrackerNode((x, z) -> reloaded.setBlock(x, SurfaceTrackerNode.SCALE_0_NODE_HEIGHT - 1, z, true));
+            assertEquals(usedBefore, pool.usedSlots());
+            int[] heights = new int[WIDTH_BLOCKS * WIDTH_BLOCKS];
+            unloadedLeaf.getHeights(heights);
+            assertArrayEquals(unloadedHeights, heights);
+
+            reloaded.unloadSource(storage);
+            pool.reclaimReleased();
+            pooledRoot.loadSource(0, 0, storage, new SurfaceTrackerNodesTest.TestHeightmapSource32(0, cubeYs[cubeYs.length - 1], 0));
+            assertEquals(usedBefore, pool.usedSlots());
+            assertEquals(allocatedBefore, pool.allocatedBytes());
+        }
+    }
+
+    /**
+     * Tests that nodes still using a closed pool throw instead of accessing freed memory
+     */
+    @Test
+    public void testAccessAfterClose() {
+        HeightmapStorage storage = new SurfaceTrackerNodesTest.NullHeightmapStorage();
+        NodeHeightsPool pool = new NodeHeightsPool();
+        SurfaceTrackerBranch root = new SurfaceTrackerBranch(MAX_SCALE, 0, null, (byte) 0, pool);
+        SurfaceTrackerNodesTest.TestHeightmapSource32 source = new SurfaceTrackerNodesTest.TestHeightmapSource32(0, 0, 0);
+        root.loadSource(0, 0, storage, source);
+        source.setBlock(0, 5, 0, true);
+        assertEquals(5, root.getHeight(0, 0));
+
+        pool.close();
+        assertThrows(IllegalStateException.class, () -> root.getHeight(0, 0));
+        assertThrows(IllegalStateException.class, () -> new SurfaceTrackerBranch(MAX_SCALE, 1, null, (byte) 0, pool));
+    }
+
+    private static int countNodes(SurfaceTrackerNode node) {
+        int count = 1;
+        if (node instanceof SurfaceTrackerBranch branch) {
+            for (SurfaceTrackerNode child : branch.getChildren()) {
+                if (child != null) {
+                    count += countNodes(child);
+                }
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,92 @@
+package io.github.opencubicchunks.cc_core.levelgen.heightmap;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.RegionCodec;
+import io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.RegionCodecs;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+public class RegionCodecTest {
+    /**
+     * Tests encoding and decoding short inputs, where the LZ4 codec can't find any matches
+     */
+    @ParameterizedTest
+    @ValueSource(bytes = { 0, 1, 2 })
+    public void testShortData(byte codecId) throws IOException {
+        RegionCodec codec = RegionCodecs.byId(codecId);
+        Random random = new Random(0);
+        for (int length = 0; length < 32; length++) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            testRoundTrip(codec, data);
+            testRoundTrip(codec, new byte[length]);
+        }
+    }
+
+    /**
+     * Tests data shaped like region files: long runs of zeros, repeated words and random words, with overlapping LZ4 matches
+     */
+    @ParameterizedTest
+    @ValueSource(bytes = { 0, 1, 2 })
+    public void testRegionLikeData(byte codecId) throws IOException {
+        RegionCodec codec = RegionCodecs.byId(codecId);
+        Random random = new Random(0);
+        byte[] data = new byte[1 << 20];
+        for (int i = 0; i < data.length; ) {
+            int runLength = Math.min(random.nextInt(5000), data.length - i);
+            switch (random.nextInt(3)) {
+                case 0 -> i += runLength;
+                case 1 -> {
+                    byte[] pattern = new byte[1 + random.nextInt(16)];
+                    random.nextBytes(pattern);
+                    for (int j = 0; j < runLength; j++) {
+                        data[i++] = pattern[j % pattern.length];
+                    }
+                }
+                default -> {
+                    for (int j = 0; j < runLength; j++) {
+                        data[i++] = (byte) random.nextInt();
+                    }
+                }
+            }
+        }
+        byte[] encoded = testRoundTrip(codec, data);
+        if (codec != RegionCodecs.STORE) {
+            assertTrue(encoded.length < data.length, "Compressible data didn't get smaller");
+        }
+        // a decoded length that doesn't match the data is an error
+        assertThrows(IOException.class, () -> codec.decode(encoded, 0, encoded.length, new byte[data.length - 1]));
+    }
+
+    /**
+     * Tests that truncated LZ4 data is reported as an IOException
+     */
+    @ParameterizedTest
+    @ValueSource(ints = { 1, 10, 100, 1000 })
+    public void testTruncatedLz4(int truncatedBytes) throws IOException {
+        byte[] data = new byte[10000];
+        Arrays.fill(data, 5000, 10000, (byte) 7);
+        byte[] encoded = RegionCodecs.LZ4.encode(data, data.length);
+        int length = Math.max(0, encoded.length - truncatedBytes);
+        assertThrows(IOException.class, () -> RegionCodecs.LZ4.decode(encoded, 0, length, new byte[data.length]));
+    }
+
+    private static byte[] testRoundTrip(RegionCodec codec, byte[] data) throws IOException {
+        // encode only a prefix of a larger array, the codecs must respect the length
+        byte[] padded = Arrays.copyOf(data, data.length + 7);
+        Arrays.fill(padded, data.length, padded.length, (byte) 1);
+        byte[] encoded = codec.encode(padded, data.length);
+
+        byte[] decoded = new byte[data.length];
+        codec.decode(encoded, 0, encoded.length, decoded);
+        assertArrayEquals(data, decoded);
+        return encoded;
+    }
+}
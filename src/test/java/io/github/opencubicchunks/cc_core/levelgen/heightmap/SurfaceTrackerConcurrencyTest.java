@@ -0,0 +1,190 @@
+package io.github.opencubicchunks.cc_core.levelgen.heightmap;
+
+import static io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerNode.MAX_SCALE;
+import static io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerNode.WIDTH_BLOCKS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import javax.annotation.Nonnull;
+
+import io.github.opencubicchunks.cc_core.world.heightmap.HeightmapSource;
+import io.github.opencubicchunks.cc_core.world.heightmap.HeightmapStorage;
+import io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerBranch;
+import io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerLeaf;
+import io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerNode;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Reads heights from several threads while another thread changes them
+ */
+public class SurfaceTrackerConcurrencyTest {
+    private static final int READERS = 4;
+    private static final int ITERATIONS = 20000;
+
+    /**
+     * Changes made while other threads recompute the same heights must not be lost: once the writer is done, every column has its latest height
+     */
+    @Test
+    public void testNoLostUpdates() throws Exception {
+        HeightmapStorage storage = new SurfaceTrackerNodesTest.NullHeightmapStorage();
+        SurfaceTrackerBranch root = new SurfaceTrackerBranch(MAX_SCALE, 0, null, (byte) 0);
+        AtomicHeightmapSource source = new AtomicHeightmapSource(0);
+        root.loadSource(0, 0, storage, source);
+        SurfaceTrackerLeaf leaf = root.getLeaf(0);
+
+        AtomicBoolean done = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(READERS + 1);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int reader = 0; reader < READERS; reader++) {
+                int seed = reader;
+                futures.add(executor.submit(() -> {
+                    Random random = new Random(seed);
+                    while (!done.get()) {
+                        int x = random.nextInt(WIDTH_BLOCKS);
+                        int z = random.nextInt(WIDTH_BLOCKS);
+                        int height = random.nextBoolean() ? leaf.getHeight(x, z) : root.getHeight(x, z);
+                        assertTrue(height == Integer.MIN_VALUE || height >= 0 && height < SurfaceTrackerNode.SCALE_0_NODE_HEIGHT, "height " + height);
+                    }
+                }));
+            }
+            Future<?> writer = executor.submit(() -> {
+                Random random = new Random(123);
+                try {
+                    for (int i = 0; i < ITERATIONS; i++) {
+                        int x = random.nextInt(WIDTH_BLOCKS);
+                        int z = random.nextInt(WIDTH_BLOCKS);
+                        source.set(x, z, random.nextInt(SurfaceTrackerNode.SCALE_0_NODE_HEIGHT + 1) - 1);
+                        leaf.markDirty(x, z);
+                    }
+                } finally {
+                    done.set(true);
+                }
+            });
+            writer.get(1, TimeUnit.MINUTES);
+            for (Future<?> future : futures) {
+                future.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        for (int z = 0; z < WIDTH_BLOCKS; z++) {
+            for (int x = 0; x < WIDTH_BLOCKS; x++) {
+                assertEquals(source.getHighest(x, z, (byte) 0), leaf.getHeight(x, z));
+                assertEquals(source.getHighest(x, z, (byte) 0), root.getHeight(x, z));
+            }
+        }
+    }
+
+    /**
+     * Heights that only increase must never be seen going down by a single reader, including heights set directly by {@code onSetBlock} sharing
+     * a word with heights being recomputed
+     */
+    @Test
+    public void testIncreasingHeightsReadMonotonically() throws Exception {
+        HeightmapStorage storage = new SurfaceTrackerNodesTest.NullHeightmapStorage();
+        SurfaceTrackerBranch root = new SurfaceTrackerBranch(MAX_SCALE, 0, null, (byte) 0);
+        AtomicHeightmapSource source = new AtomicHeightmapSource(0);
+        root.loadSource(0, 0, storage, source);
+        SurfaceTrackerLeaf leaf = root.getLeaf(0);
+
+        AtomicBoolean done = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(READERS + 1);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int reader = 0; reader < READERS; reader++) {
+                futures.add(executor.submit(() -> {
+                    int[] lastSeen = new int[WIDTH_BLOCKS * WIDTH_BLOCKS];
+                    Arrays.fill(lastSeen, Integer.MIN_VALUE);
+                    while (!done.get()) {
+                        for (int idx = 0; idx < lastSeen.length; idx++) {
+                            int height = leaf.getHeight(idx & 0xF, idx >> 4);
+                            assertTrue(height >= lastSeen[idx], "height of " + idx + " went from " + lastSeen[idx] + " to " + height);
+                            lastSeen[idx] = height;
+                        }
+                    }
+                }));
+            }
+            Future<?> writer = executor.submit(() -> {
+                try {
+                    for (int y = 0; y < SurfaceTrackerNode.SCALE_0_NODE_HEIGHT; y++) {
+                        for (int idx = 0; idx < WIDTH_BLOCKS * WIDTH_BLOCKS; idx++) {
+                            int x = idx & 0xF;
+                            int z = idx >> 4;
+                            source.set(x, z, y);
+                            // alternate between setting the height directly and recomputing it from the source
+                            if ((idx & 1) == 0) {
+                                leaf.onSetBlock(x, y, z, heightmapType -> true);
+                            } else {
+                                leaf.markDirty(x, z);
+                            }
+                        }
+                    }
+                } finally {
+                    done.set(true);
+                }
+            });
+            writer.get(1, TimeUnit.MINUTES);
+            for (Future<?> future : futures) {
+                future.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        for (int z = 0; z < WIDTH_BLOCKS; z++) {
+            for (int x = 0; x < WIDTH_BLOCKS; x++) {
+                assertEquals(SurfaceTrackerNode.SCALE_0_NODE_HEIGHT - 1, root.getHeight(x, z));
+            }
+        }
+    }
+
+    /**
+     * Heightmap source backed by an atomic array, so it can be changed while other threads read it
+     */
+    static class AtomicHeightmapSource implements HeightmapSource {
+        private final int y;
+        private final AtomicIntegerArray highest = new AtomicIntegerArray(WIDTH_BLOCKS * WIDTH_BLOCKS);
+
+        AtomicHeightmapSource(int y) {
+            this.y = y;
+            for (int i = 0; i < highest.length(); i++) {
+                highest.set(i, -1);
+            }
+        }
+
+        /**
+         * @param localY the highest block within the source, or -1 for none
+         */
+        void set(int x, int z, int localY) {
+            highest.set(x + z * WIDTH_BLOCKS, localY);
+        }
+
+        @Override public void sectionLoaded(@Nonnull SurfaceTrackerLeaf surfaceTrackerLeaf, int localSectionX, int localSectionZ) {
+        }
+
+        @Override public void unloadSource(@Nonnull HeightmapStorage storage) {
+        }
+
+        @Override public int getHighest(int x, int z, byte heightmapType) {
+            int localY = highest.get((x & (WIDTH_BLOCKS - 1)) + (z & (WIDTH_BLOCKS - 1)) * WIDTH_BLOCKS);
+            return localY == -1 ? Integer.MIN_VALUE : localY + (this.y << SurfaceTrackerNode.SCALE_0_NODE_BITS);
+        }
+
+        @Override public int getSourceY() {
+            return this.y;
+        }
+    }
+}
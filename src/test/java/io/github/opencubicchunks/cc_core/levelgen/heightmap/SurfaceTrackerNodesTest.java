@@ -6,24 +6,32 @@ import static io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertr
 import static io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerNode.NODE_COUNT;
 import static io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerNode.ROOT_NODE_COUNT;
 import static io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerNode.WIDTH_BLOCKS;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.IntPredicate;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -31,6 +39,7 @@ import javax.annotation.Nullable;
 import io.github.opencubicchunks.cc_core.api.CubicConstants;
 import io.github.opencubicchunks.cc_core.minecraft.MCChunkPos;
 import io.github.opencubicchunks.cc_core.utils.Coords;
+import io.github.opencubicchunks.cc_core.world.heightmap.HeightChangeListener;
 import io.github.opencubicchunks.cc_core.world.heightmap.HeightmapSource;
 import io.github.opencubicchunks.cc_core.world.heightmap.HeightmapStorage;
 import io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerBranch;
@@ -192,6 +201,371 @@ public class SurfaceTrackerNodesTest {
         storage.close();
     }
 
+    /**
+     * Tests that updating all dirty heights at once gives the same heights as the sources, with columns resolved by different children
+     */
+    @Test
+    public void testUpdateDirtyHeights() throws IOException {
+        HeightmapStorage storage = new NullHeightmapStorage();
+        SurfaceTrackerBranch root = new SurfaceTrackerBranch(MAX_SCALE, 0, null, (byte) 0);
+
+        Random r = new Random(123);
+        List<TestHeightmapSource32> sources = new ArrayList<>();
+        for (int y : new int[] { -300, -2, 0, 1, 5, 70, 4000 }) {
+            TestHeightmapSource32 source = new TestHeightmapSource32(0, y, 0);
+            root.loadSource(0, 0, storage, source);
+            sources.add(source);
+        }
+
+        for (int i = 0; i < 2000; i++) {
+            TestHeightmapSource32 source = sources.get(r.nextInt(sources.size()));
+            source.setBlock(r.nextInt(WIDTH_BLOCKS), r.nextInt(SurfaceTrackerNode.SCALE_0_NODE_HEIGHT), r.nextInt(WIDTH_BLOCKS), r.nextBoolean());
+        }
+        for (TestHeightmapSource32 source : sources) {
+            forEachBlockColumnSurfaceTrackerNode((x, z) -> source.leaves[0].markDirty(x, z));
+        }
+        assertTrue(root.isAnyDirty());
+
+        root.updateDirtyHeights(0, 0);
+        assertFalse(root.isAnyDirty());
+
+        forEachBlockColumnSurfaceTrackerNode((x, z) -> {
+            int expected = Integer.MIN_VALUE;
+            for (TestHeightmapSource32 source : sources) {
+                expected = Math.max(expected, source.getHighest(x, z, (byte) 0));
+            }
+            assertEquals(expected, root.getHeight(x, z));
+        });
+
+        storage.close();
+    }
+
+    /**
+     * Tests that getting the heights of a whole node gives the same heights as getting them one at a time, for every node of a tree
+     */
+    @Test
+    public void testGetHeights() throws IOException {
+        HeightmapStorage storage = new NullHeightmapStorage();
+        SurfaceTrackerBranch root = new SurfaceTrackerBranch(MAX_SCALE, 0, null, (byte) 0);
+
+        Random r = new Random(123);
+        List<TestHeightmapSource32> sources = new ArrayList<>();
+        for (int y : new int[] { -70000, -2, 0, 1, 5, 4000 }) {
+            TestHeightmapSource32 source = new TestHeightmapSource32(0, y, 0);
+            root.loadSource(0, 0, storage, source);
+            sources.add(source);
+        }
+        for (int i = 0; i < 3000; i++) {
+            TestHeightmapSource32 source = sources.get(r.nextInt(sources.size()));
+            source.setBlock(r.nextInt(WIDTH_BLOCKS), r.nextInt(SurfaceTrackerNode.SCALE_0_NODE_HEIGHT), r.nextInt(WIDTH_BLOCKS), r.nextBoolean());
+        }
+
+        int[] heights = new int[WIDTH_BLOCKS * WIDTH_BLOCKS];
+        root.getHeights(heights);
+        forEachBlockColumnSurfaceTrackerNode((x, z) -> {
+            int expected = Integer.MIN_VALUE;
+            for (TestHeightmapSource32 source : sources) {
+                expected = Math.max(expected, source.getHighest(x, z, (byte) 0));
+            }
+            assertEquals(expected, heights[x + z * WIDTH_BLOCKS]);
+        });
+
+        forAllNodes(root, node -> {
+            node.getHeights(heights);
+            assertFalse(node.isAnyDirty());
+            forEachBlockColumnSurfaceTrackerNode((x, z) -> assertEquals(node.getHeight(x, z), heights[x + z * WIDTH_BLOCKS]));
+        });
+
+        storage.close();
+    }
+
+    /**
+     * Tests that applying the polled changes to a copy of the heights keeps it the same as the heights of the node
+     */
+    @Test
+    public void testPollChangedHeights() throws IOException {
+        HeightmapStorage storage = new NullHeightmapStorage();
+        SurfaceTrackerBranch root = new SurfaceTrackerBranch(MAX_SCALE, 0, null, (byte) 0);
+        root.trackChangedHeights();
+
+        Random r = new Random(123);
+        List<TestHeightmapSource32> sources = new ArrayList<>();
+        for (int y : new int[] { -2, 0, 1, 5 }) {
+            TestHeightmapSource32 source = new TestHeightmapSource32(0, y, 0);
+            root.loadSource(0, 0, storage, source);
+            sources.add(source);
+        }
+
+        int[] synced = new int[WIDTH_BLOCKS * WIDTH_BLOCKS];
+        Arrays.fill(synced, Integer.MIN_VALUE);
+        int[] positions = new int[WIDTH_BLOCKS * WIDTH_BLOCKS];
+        int[] heights = new int[WIDTH_BLOCKS * WIDTH_BLOCKS];
+        int[] expected = new int[WIDTH_BLOCKS * WIDTH_BLOCKS];
+        for (int round = 0; round < 50; round++) {
+            int changes = r.nextInt(20);
+            for (int i = 0; i < changes; i++) {
+                TestHeightmapSource32 source = sources.get(r.nextInt(sources.size()));
+                source.setBlock(r.nextInt(WIDTH_BLOCKS), r.nextInt(SurfaceTrackerNode.SCALE_0_NODE_HEIGHT), r.nextInt(WIDTH_BLOCKS), r.nextBoolean());
+            }
+
+            int count = root.pollChangedHeights(positions, heights);
+            assertTrue(count <= changes);
+            for (int i = 0; i < count; i++) {
+                synced[positions[i]] = heights[i];
+            }
+            root.getHeights(expected);
+            assertArrayEquals(expected, synced);
+        }
+        assertEquals(0, root.pollChangedHeights(positions, heights));
+
+        storage.close();
+    }
+
+    /**
+     * Tests that change listeners receive every height change in batches, and that applying them to the initial heights gives the current heights
+     */
+    @Test
+    public void testChangeListeners() throws IOException {
+        HeightmapStorage storage = new NullHeightmapStorage();
+        SurfaceTrackerBranch root = new SurfaceTrackerBranch(MAX_SCALE, 0, null, (byte) 0);
+
+        Random r = new Random(123);
+        List<TestHeightmapSource32> sources = new ArrayList<>();
+        for (int y : new int[] { -2, 0, 1, 5 }) {
+            TestHeightmapSource32 source = new TestHeightmapSource32(0, y, 0);
+            root.loadSource(0, 0, storage, source);
+            sources.add(source);
+            source.setBlock(r.nextInt(WIDTH_BLOCKS), r.nextInt(SurfaceTrackerNode.SCALE_0_NODE_HEIGHT), r.nextInt(WIDTH_BLOCKS), true);
+        }
+
+        int[] synced = new int[WIDTH_BLOCKS * WIDTH_BLOCKS];
+        root.getHeights(synced);
+        int[] batches = new int[1];
+        HeightChangeListener listener = (heightmapType, count, positions, oldHeights, newHeights) -> {
+            assertEquals(root.getRawType(), heightmapType);
+            assertTrue(count > 0);
+            for (int i = 0; i < count; i++) {
+                assertEquals(synced[positions[i]], oldHeights[i]);
+                assertNotEquals(oldHeights[i], newHeights[i]);
+                synced[positions[i]] = newHeights[i];
+            }
+            batches[0]++;
+        };
+        root.addChangeListener(listener);
+
+        // nothing changed since the listener was added
+        root.dispatchHeightChanges();
+        assertEquals(0, batches[0]);
+
+        int[] expected = new int[WIDTH_BLOCKS * WIDTH_BLOCKS];
+        for (int round = 0; round < 50; round++) {
+            int changes = r.nextInt(20);
+            for (int i = 0; i < changes; i++) {
+                TestHeightmapSource32 source = sources.get(r.nextInt(sources.size()));
+                source.setBlock(r.nextInt(WIDTH_BLOCKS), r.nextInt(SurfaceTrackerNode.SCALE_0_NODE_HEIGHT), r.nextInt(WIDTH_BLOCKS), r.nextBoolean());
+            }
+            int batchesBefore = batches[0];
+            root.dispatchHeightChanges();
+            assertTrue(batches[0] - batchesBefore <= 1);
+
+            root.getHeights(expected);
+            assertArrayEquals(expected, synced);
+        }
+
+        // a removed listener doesn't receive changes anymore
+        root.removeChangeListener(listener);
+        int batchesBefore = batches[0];
+        sources.get(3).setBlock(0, SurfaceTrackerNode.SCALE_0_NODE_HEIGHT - 1, 0, true);
+        root.dispatchHeightChanges();
+        assertEquals(batchesBefore, batches[0]);
+
+        storage.close();
+    }
+
+    /**
+     * Tests range and surface queries against a brute force search of the blocks of a column, with surfaces spanning several sources and gaps
+     * of unloaded sources
+     */
+    @Test
+    public void testRangeQueries() throws IOException {
+        HeightmapStorage storage = new NullHeightmapStorage();
+        SurfaceTrackerBranch root = new SurfaceTrackerBranch(MAX_SCALE, 0, null, (byte) 0);
+
+        Random r = new Random(123);
+        Map<Integer, TestHeightmapSource32> sources = new HashMap<>();
+        for (int y : new int[] { -3, -2, -1, 0, 1, 2, 7, 300 }) {
+            TestHeightmapSource32 source = new TestHeightmapSource32(0, y, 0);
+            root.loadSource(0, 0, storage, source);
+            sources.put(y, source);
+        }
+        for (TestHeightmapSource32 source : sources.values()) {
+            // long runs of blocks, so that surfaces span several sources
+            boolean opaque = r.nextBoolean();
+            for (int localY = 0; localY < SurfaceTrackerNode.SCALE_0_NODE_HEIGHT; localY++) {
+                if (r.nextInt(8) == 0) {
+                    opaque = !opaque;
+                }
+                if (opaque) {
+                    source.setBlock(0, localY, 0, true);
+                }
+            }
+        }
+
+        int minBlockY = Coords.cubeToMinBlock(-4);
+        int maxBlockY = Coords.cubeToMaxBlock(301);
+        for (int i = 0; i < 2000; i++) {
+            int minY = minBlockY + r.nextInt(maxBlockY - minBlockY);
+            int maxY = i % 10 == 0 ? maxBlockY : minY + r.nextInt(maxBlockY - minY);
+            assertEquals(expectedHighest(sources, minBlockY, maxY), root.getHeightBelow(0, 0, maxY), "below " + maxY);
+            assertEquals(expectedHighest(sources, minY, maxY), root.getHeightInRange(0, 0, minY, maxY), "between " + minY + " and " + maxY);
+
+            List<Integer> expectedSurfaces = new ArrayList<>();
+            for (int y = maxY; y >= minY; y--) {
+                if (isOpaque(sources, y) && (y == maxY || !isOpaque(sources, y + 1))) {
+                    expectedSurfaces.add(y);
+                }
+            }
+            List<Integer> surfaces = new ArrayList<>();
+            root.forEachSurface(0, 0, minY, maxY, surfaces::add);
+            assertEquals(expectedSurfaces, surfaces, "surfaces between " + minY + " and " + maxY);
+        }
+
+        // stopping early
+        List<Integer> surfaces = new ArrayList<>();
+        root.forEachSurface(0, 0, minBlockY, maxBlockY, y -> surfaces.add(y) && surfaces.size() < 2);
+        assertEquals(2, surfaces.size());
+
+        storage.close();
+    }
+
+    /**
+     * Tests that range queries only ask sources that support them, and that queries answered by the heights of the nodes still work
+     */
+    @Test
+    public void testRangeQueriesUnsupported() throws IOException {
+        HeightmapStorage storage = new NullHeightmapStorage();
+        SurfaceTrackerBranch root = new SurfaceTrackerBranch(MAX_SCALE, 0, null, (byte) 0);
+        MultiTypeHeightmapSource source = new MultiTypeHeightmapSource(0, 1);
+        source.setBlock(0, 10, 0, type -> true);
+        source.setBlock(0, 20, 0, type -> true);
+        root.loadSource(0, 0, storage, source);
+
+        assertEquals(20, root.getHeightBelow(0, 0, 30));
+        assertEquals(Integer.MIN_VALUE, root.getHeightInRange(0, 0, 21, 30));
+        assertThrows(UnsupportedOperationException.class, () -> root.getHeightBelow(0, 0, 15));
+        assertThrows(UnsupportedOperationException.class, () -> root.forEachSurface(0, 0, 0, 30, y -> true));
+
+        storage.close();
+    }
+
+    private static int expectedHighest(Map<Integer, TestHeightmapSource32> sources, int minY, int maxY) {
+        for (int y = maxY; y >= minY; y--) {
+            if (isOpaque(sources, y)) {
+                return y;
+            }
+        }
+        return Integer.MIN_VALUE;
+    }
+
+    private static boolean isOpaque(Map<Integer, TestHeightmapSource32> sources, int y) {
+        TestHeightmapSource32 source = sources.get(Coords.blockToCube(y));
+        return source != null && source.blockBitsets[0][0].get(Coords.blockToLocal(y));
+    }
+
+    /**
+     * Tests that loading the sources of a column at once, serially and in parallel, gives the same heights as loading them one at a time
+     */
+    @Test
+    public void testLoadSources() throws Exception {
+        HeightmapStorage storage = new NullHeightmapStorage();
+
+        Random r = new Random(123);
+        List<SurfaceTrackerConcurrencyTest.AtomicHeightmapSource> sources = new ArrayList<>();
+        for (int y = -40; y < 600; y += 1 + r.nextInt(8)) {
+            SurfaceTrackerConcurrencyTest.AtomicHeightmapSource source = new SurfaceTrackerConcurrencyTest.AtomicHeightmapSource(y);
+            forEachBlockColumnSurfaceTrackerNode((x, z) -> source.set(x, z, r.nextInt(SurfaceTrackerNode.SCALE_0_NODE_HEIGHT + 1) - 1));
+            sources.add(source);
+        }
+
+        SurfaceTrackerBranch expected = new SurfaceTrackerBranch(MAX_SCALE, 0, null, (byte) 0);
+        for (HeightmapSource source : sources) {
+            expected.loadSource(0, 0, storage, source);
+        }
+        SurfaceTrackerBranch serial = new SurfaceTrackerBranch(MAX_SCALE, 0, null, (byte) 0);
+        serial.loadSources(0, 0, storage, sources, null);
+        SurfaceTrackerBranch parallel = new SurfaceTrackerBranch(MAX_SCALE, 0, null, (byte) 0);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            parallel.loadSources(0, 0, storage, sources, executor);
+        } finally {
+            executor.shutdown();
+        }
+
+        for (SurfaceTrackerBranch root : new SurfaceTrackerBranch[] { serial, parallel }) {
+            forEachBlockColumnSurfaceTrackerNode((x, z) -> assertEquals(expected.getHeight(x, z), root.getHeight(x, z)));
+            for (HeightmapSource source : sources) {
+                SurfaceTrackerLeaf leaf = root.getLeaf(source.getSourceY());
+                assertNotNull(leaf);
+                assertFalse(leaf.isAnyDirty());
+                forEachBlockColumnSurfaceTrackerNode((x, z) -> assertEquals(source.getHighest(x, z, (byte) 0), leaf.getHeight(x, z)));
+            }
+        }
+
+        storage.close();
+    }
+
+    /**
+     * Tests that neighbour links and column iteration match looking leaves up from the root, including after leaves are unloaded
+     */
+    @Test
+    public void testLeafNavigation() throws IOException {
+        HeightmapStorage storage = new NullHeightmapStorage();
+        SurfaceTrackerBranch root = new SurfaceTrackerBranch(MAX_SCALE, 0, null, (byte) 0);
+
+        Map<Integer, TestHeightmapSource16> sources = new HashMap<>();
+        int[] ys = { -4097, -20, -1, 0, 1, 15, 16, 300 };
+        for (int y : ys) {
+            TestHeightmapSource16 source = new TestHeightmapSource16(0, y, 0);
+            root.loadSource(0, 0, storage, source);
+            sources.put(y, source);
+        }
+        checkLeafNavigation(root, ys);
+
+        sources.remove(16).unloadSource(storage);
+        assertNull(root.getLeaf(16));
+        sources.remove(-4097).unloadSource(storage);
+        checkLeafNavigation(root, new int[] { -20, -1, 0, 1, 15, 300 });
+
+        TestHeightmapSource16 source = new TestHeightmapSource16(0, 16, 0);
+        root.loadSource(0, 0, storage, source);
+        checkLeafNavigation(root, new int[] { -20, -1, 0, 1, 15, 16, 300 });
+
+        storage.close();
+    }
+
+    private static void checkLeafNavigation(SurfaceTrackerBranch root, int[] ys) {
+        for (int y : ys) {
+            SurfaceTrackerLeaf leaf = root.getLeaf(y);
+            assertNotNull(leaf);
+            assertEquals(root.getLeaf(y + 1), leaf.getSectionAbove());
+            assertEquals(root.getLeaf(y - 1), leaf.getSectionBelow());
+            assertEquals(root.getLeaf(y + 1), leaf.findLeaf(y + 1));
+        }
+
+        List<Integer> up = new ArrayList<>();
+        root.getLeaf(ys[0]).iterateColumn(true).forEachRemaining(leaf -> up.add(leaf.getScaledY()));
+        List<Integer> down = new ArrayList<>();
+        root.getLeaf(ys[ys.length - 1]).iterateColumn(false).forEachRemaining(leaf -> down.add(leaf.getScaledY()));
+
+        List<Integer> expected = new ArrayList<>();
+        for (int y : ys) {
+            expected.add(y);
+        }
+        assertEquals(expected, up);
+        Collections.reverse(expected);
+        assertEquals(expected, down);
+    }
+
     /**
      * Tests whether after unloading the {@link SurfaceTrackerNode} node tree is correct
      * Does not test heights.
@@ -542,7 +916,7 @@ public class SurfaceTrackerNodesTest {
     /**
      * Test heightmap storage that always returns null on load, and correctly nulls fields on unload
      */
-    static class NullHeightmapStorage implements HeightmapStorage {
+    public static class NullHeightmapStorage implements HeightmapStorage {
         @Override public void saveNode(int globalSectionX, int globalSectionZ, SurfaceTrackerNode node) {
 
         }
@@ -605,7 +979,7 @@ public class SurfaceTrackerNodesTest {
         final BitSet[][] blockBitsets = new BitSet[CubicConstants.DIAMETER_IN_BLOCKS][CubicConstants.DIAMETER_IN_BLOCKS];
         final SurfaceTrackerLeaf[] leaves = new SurfaceTrackerLeaf[CubicConstants.DIAMETER_IN_SECTIONS * CubicConstants.DIAMETER_IN_SECTIONS];
 
-        TestHeightmapSource32(int cubeX, int nodeY, int cubeZ) {
+        public TestHeightmapSource32(int cubeX, int nodeY, int cubeZ) {
             for (BitSet[] bitSets : blockBitsets) {
                 for (int j = 0, bitSetsLength = bitSets.length; j < bitSetsLength; j++) {
                     bitSets[j] = new BitSet(SurfaceTrackerNode.SCALE_0_NODE_HEIGHT);
@@ -617,7 +991,7 @@ public class SurfaceTrackerNodesTest {
             this.y = nodeY;
         }
 
-        void setBlock(int x, int localY, int z, boolean isOpaque) {
+        public void setBlock(int x, int localY, int z, boolean isOpaque) {
             assert localY >= 0 && localY < SurfaceTrackerNode.SCALE_0_NODE_HEIGHT;
             x &= CubicConstants.DIAMETER_IN_BLOCKS - 1;
             z &= CubicConstants.DIAMETER_IN_BLOCKS - 1;
@@ -660,6 +1034,74 @@ public class SurfaceTrackerNodesTest {
             return highestY == -1 ? Integer.MIN_VALUE : highestY + (this.y << SurfaceTrackerNode.SCALE_0_NODE_BITS);
         }
 
+        @Override public int getHighestBelow(int x, int z, int maxY, byte heightmapType) {
+            x &= CubicConstants.DIAMETER_IN_BLOCKS - 1;
+            z &= CubicConstants.DIAMETER_IN_BLOCKS - 1;
+
+            int localMaxY = Math.min(maxY - (this.y << SurfaceTrackerNode.SCALE_0_NODE_BITS), SurfaceTrackerNode.SCALE_0_NODE_HEIGHT - 1);
+            int highestY = localMaxY < 0 ? -1 : this.blockBitsets[z][x].previousSetBit(localMaxY);
+            return highestY == -1 ? Integer.MIN_VALUE : highestY + (this.y << SurfaceTrackerNode.SCALE_0_NODE_BITS);
+        }
+
+        @Override public boolean supportsRangeQueries() {
+            return true;
+        }
+
+        @Override public int getSurfaceBottom(int x, int z, int y, byte heightmapType) {
+            x &= CubicConstants.DIAMETER_IN_BLOCKS - 1;
+            z &= CubicConstants.DIAMETER_IN_BLOCKS - 1;
+
+            int localY = y - (this.y << SurfaceTrackerNode.SCALE_0_NODE_BITS);
+            return this.blockBitsets[z][x].previousClearBit(localY) + 1 + (this.y << SurfaceTrackerNode.SCALE_0_NODE_BITS);
+        }
+
+        @Override public int getSourceY() {
+            return this.y;
+        }
+    }
+
+    /**
+     * Heightmap source for a single section with a leaf for each of several heightmap types
+     */
+    static class MultiTypeHeightmapSource implements HeightmapSource {
+        final int y;
+        final SurfaceTrackerLeaf[] leaves;
+        final BitSet[][] opaqueBlocks;
+
+        MultiTypeHeightmapSource(int nodeY, int types) {
+            this.y = nodeY;
+            this.leaves = new SurfaceTrackerLeaf[types];
+            this.opaqueBlocks = new BitSet[types][WIDTH_BLOCKS * WIDTH_BLOCKS];
+            for (BitSet[] typeBlocks : this.opaqueBlocks) {
+                for (int i = 0; i < typeBlocks.length; i++) {
+                    typeBlocks[i] = new BitSet(SurfaceTrackerNode.SCALE_0_NODE_HEIGHT);
+                }
+            }
+        }
+
+        void setBlock(int x, int localY, int z, IntPredicate isOpaque) {
+            for (int type = 0; type < this.opaqueBlocks.length; type++) {
+                this.opaqueBlocks[type][x + z * WIDTH_BLOCKS].set(localY, isOpaque.test(type));
+            }
+        }
+
+        @Override public void sectionLoaded(@Nonnull SurfaceTrackerLeaf leaf, int localSectionX, int localSectionZ) {
+            this.leaves[leaf.getRawType()] = leaf;
+        }
+
+        @Override public void unloadSource(@Nonnull HeightmapStorage storage) {
+            for (int type = 0; type < this.leaves.length; type++) {
+                this.leaves[type].sourceUnloaded(0, 0, storage);
+                this.leaves[type] = null;
+            }
+        }
+
+        @Override public int getHighest(int x, int z, byte heightmapType) {
+            BitSet column = this.opaqueBlocks[heightmapType][(x & (WIDTH_BLOCKS - 1)) + (z & (WIDTH_BLOCKS - 1)) * WIDTH_BLOCKS];
+            int highestY = column.previousSetBit(column.length());
+            return highestY == -1 ? Integer.MIN_VALUE : highestY + (this.y << SurfaceTrackerNode.SCALE_0_NODE_BITS);
+        }
+
         @Override public int getSourceY() {
             return this.y;
         }
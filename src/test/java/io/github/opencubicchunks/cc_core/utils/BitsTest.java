@@ -0,0 +1,30 @@
+package io.github.opencubicchunks.cc_core.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class BitsTest {
+    @Test
+    public void testTranspose64x64() {
+        Random random = new Random(0);
+        for (int i = 0; i < 100; i++) {
+            long[] rows = new long[Long.SIZE];
+            for (int row = 0; row < rows.length; row++) {
+                rows[row] = random.nextLong();
+            }
+
+            long[] expected = new long[Long.SIZE];
+            for (int row = 0; row < Long.SIZE; row++) {
+                for (int column = 0; column < Long.SIZE; column++) {
+                    expected[column] |= ((rows[row] >>> column) & 1L) << row;
+                }
+            }
+
+            Bits.transpose64x64(rows);
+            assertArrayEquals(expected, rows);
+        }
+    }
+}
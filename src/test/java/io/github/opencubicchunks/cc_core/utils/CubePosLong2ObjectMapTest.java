@@ -0,0 +1,69 @@
+package io.github.opencubicchunks.cc_core.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import io.github.opencubicchunks.cc_core.api.CubePos;
+import org.junit.jupiter.api.Test;
+
+public class CubePosLong2ObjectMapTest {
+    @Test
+    public void testRandomOperations() {
+        Random r = new Random(123);
+        Map<Long, String> reference = new HashMap<>();
+        CubePosLong2ObjectMap<String> test = new CubePosLong2ObjectMap<>();
+        for (int i = 0; i < 100000; i++) {
+            long pos = i == 0 ? 0L : CubePos.asLong(r.nextInt(80) - 40, r.nextInt(80) - 40, r.nextInt(80) - 40);
+            switch (r.nextInt(4)) {
+                case 0, 1 -> {
+                    String value = String.valueOf(i);
+                    assertEquals(reference.put(pos, value), test.put(pos, value));
+                }
+                case 2 -> assertEquals(reference.remove(pos), test.remove(pos));
+                default -> assertEquals(reference.computeIfAbsent(pos, String::valueOf), test.computeIfAbsent(pos, String::valueOf));
+            }
+        }
+        this.ensureEqual(reference, test);
+
+        for (Iterator<Map.Entry<Long, String>> itr = reference.entrySet().iterator(); itr.hasNext(); ) { //remove some positions at random
+            Map.Entry<Long, String> entry = itr.next();
+            if (r.nextInt(4) == 0) {
+                itr.remove();
+                assertEquals(entry.getValue(), test.remove(entry.getKey()));
+            }
+        }
+        this.ensureEqual(reference, test);
+
+        // small and large boxes
+        for (int size : new int[] { 1, 5, 30, 200 }) {
+            int minX = r.nextInt(80) - 40;
+            int minY = r.nextInt(80) - 40;
+            int minZ = r.nextInt(80) - 40;
+            Map<Long, String> expected = new HashMap<>();
+            reference.forEach((pos, value) -> {
+                if (CubePos.isLongInsideInclusive(pos, minX, minY, minZ, minX + size - 1, minY + size - 1, minZ + size - 1)) {
+                    expected.put(pos, value);
+                }
+            });
+            Map<Long, String> inRange = new HashMap<>();
+            test.forEachInRange(minX, minY, minZ, minX + size - 1, minY + size - 1, minZ + size - 1, (pos, value) -> assertNull(inRange.put(pos, value)));
+            assertEquals(expected, inRange);
+        }
+
+        test.clear();
+        this.ensureEqual(new HashMap<>(), test);
+    }
+
+    protected void ensureEqual(Map<Long, String> reference, CubePosLong2ObjectMap<String> test) {
+        assertEquals(reference.size(), test.size());
+        reference.forEach((pos, value) -> assertEquals(value, test.get(pos)));
+        Map<Long, String> iterated = new HashMap<>();
+        test.forEach((pos, value) -> assertNull(iterated.put(pos, value)));
+        assertEquals(reference, iterated);
+    }
+}
@@ -0,0 +1,72 @@
+package io.github.opencubicchunks.cc_core.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.ToIntFunction;
+
+import io.github.opencubicchunks.cc_core.api.CubePos;
+import org.junit.jupiter.api.Test;
+
+public class CubePosLongSetTest {
+    @Test
+    public void test1000BigCoordinates() {
+        this.test(1000, new Random(1), r -> r.nextInt(1 << 20) - (r.nextInt(2) << 20));
+    }
+
+    @Test
+    public void test100000SmallCoordinates() {
+        this.test(100000, new Random(2), r -> r.nextInt(100) - 50);
+    }
+
+    protected void test(int nPoints, Random r, ToIntFunction<Random> rng) {
+        Set<Long> reference = new HashSet<>();
+        CubePosLongSet test = new CubePosLongSet();
+        for (int i = 0; i < nPoints; i++) { //insert some random values, including the position packed as 0
+            long pos = i == 0 ? 0L : CubePos.asLong(rng.applyAsInt(r), rng.applyAsInt(r), rng.applyAsInt(r));
+            assertEquals(reference.add(pos), test.add(pos));
+        }
+        this.ensureEqual(reference, test);
+
+        for (Iterator<Long> itr = reference.iterator(); itr.hasNext(); ) { //remove some positions at random
+            long pos = itr.next();
+            if (r.nextInt(4) == 0) {
+                itr.remove();
+                assertEquals(true, test.remove(pos));
+            }
+        }
+        this.ensureEqual(reference, test);
+
+        // small and large boxes
+        for (int size : new int[] { 1, 4, 40, 1 << 21 }) {
+            int minX = rng.applyAsInt(r);
+            int minY = rng.applyAsInt(r);
+            int minZ = rng.applyAsInt(r);
+            Set<Long> expected = new HashSet<>();
+            for (long pos : reference) {
+                if (CubePos.isLongInsideInclusive(pos, minX, minY, minZ, minX + size - 1, minY + size - 1, minZ + size - 1)) {
+                    expected.add(pos);
+                }
+            }
+            Set<Long> inRange = new HashSet<>();
+            test.forEachInRange(minX, minY, minZ, minX + size - 1, minY + size - 1, minZ + size - 1, pos -> assertEquals(true, inRange.add(pos)));
+            assertEquals(expected, inRange);
+        }
+
+        test.clear();
+        this.ensureEqual(new HashSet<>(), test);
+    }
+
+    protected void ensureEqual(Set<Long> reference, CubePosLongSet test) {
+        assertEquals(reference.size(), test.size());
+        for (long pos : reference) {
+            assertEquals(true, test.contains(pos));
+        }
+        Set<Long> iterated = new HashSet<>();
+        test.forEach(pos -> assertEquals(true, iterated.add(pos)));
+        assertEquals(reference, iterated);
+    }
+}
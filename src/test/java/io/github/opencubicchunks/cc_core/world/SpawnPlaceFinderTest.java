@@ -0,0 +1,251 @@
+package io.github.opencubicchunks.cc_core.world;
+
+import static io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerNode.MAX_SCALE;
+import static io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerNode.SCALE_0_NODE_HEIGHT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.IntPredicate;
+
+import io.github.opencubicchunks.cc_core.levelgen.heightmap.SurfaceTrackerNodesTest;
+import io.github.opencubicchunks.cc_core.minecraft.MCLevelHeightAccessor;
+import io.github.opencubicchunks.cc_core.world.heightmap.surfacetrackertree.SurfaceTrackerBranch;
+import org.junit.jupiter.api.Test;
+
+public class SpawnPlaceFinderTest {
+    private static final MCLevelHeightAccessor LEVEL = new MCLevelHeightAccessor() {
+        @Override public int getMinBuildHeight() {
+            return -10000;
+        }
+
+        @Override public int getMaxBuildHeight() {
+            return 10000;
+        }
+    };
+    private static final SpawnPlaceFinder.XYZPredicate NOT_PROBED = (x, y, z) -> fail("Block probed at " + x + " " + y + " " + z);
+
+    private final List<Runnable> heldTasks = new ArrayList<>();
+    private final Executor executor = heldTasks::add;
+
+    /**
+     * The blocks of the column at (0, 0) of {@link #createHeightmap(boolean)}: a floor, a floating island, and a single block above it
+     */
+    private static boolean isSolid(int y) {
+        return (y >= 0 && y <= 9) || (y >= 40 && y <= 44) || y == 60;
+    }
+
+    /**
+     * Tests that the ground is found in the heightmap without probing any block, going up until there's enough free space
+     */
+    @Test
+    public void testHeightmapGround() {
+        SurfaceTrackerBranch root = createHeightmap(true);
+        assertEquals(60, SpawnPlaceFinder.findGroundY(LEVEL, root, 0, 20, 0, NOT_PROBED));
+        assertEquals(60, SpawnPlaceFinder.findGroundY(LEVEL, root, 0, 5, 0, NOT_PROBED));
+        assertEquals(60, SpawnPlaceFinder.findGroundY(LEVEL, root, 0, 500, 0, NOT_PROBED));
+    }
+
+    /**
+     * Tests falling back to bisection when the heightmap has no ground below the position, or its sources don't support range queries
+     */
+    @Test
+    public void testFallbackToBisect() {
+        // solid below -150, where the heightmap has nothing loaded
+        int[] probes = new int[1];
+        SpawnPlaceFinder.XYZPredicate deepGround = (x, y, z) -> {
+            probes[0]++;
+            return !isSolid(y) && y > -150;
+        };
+        assertEquals(-150, SpawnPlaceFinder.findGroundY(LEVEL, createHeightmap(true), 0, -120, 0, deepGround));
+        assertTrue(probes[0] > 0);
+
+        probes[0] = 0;
+        assertEquals(60, SpawnPlaceFinder.findGroundY(LEVEL, createHeightmap(false), 0, 20, 0, deepGround));
+        assertTrue(probes[0] > 0);
+
+        assertEquals(60, SpawnPlaceFinder.findGroundY(LEVEL, null, 0, 20, 0, deepGround));
+    }
+
+    /**
+     * Tests bisection from above, inside and below the ground, and without any ground
+     */
+    @Test
+    public void testBisect() {
+        SpawnPlaceFinder.XYZPredicate ground = emptyUnless(y -> y < 1000);
+        assertEquals(999, SpawnPlaceFinder.bisectGroundY(LEVEL, 0, 0, 0, ground));
+        assertEquals(999, SpawnPlaceFinder.bisectGroundY(LEVEL, 0, 990, 0, ground));
+        assertEquals(999, SpawnPlaceFinder.bisectGroundY(LEVEL, 0, 5000, 0, ground));
+        assertEquals(999, SpawnPlaceFinder.bisectGroundY(LEVEL, 0, -5000, 0, ground));
+
+        // the free space above the ground must be at least 32 blocks
+        assertEquals(60, SpawnPlaceFinder.bisectGroundY(LEVEL, 0, 20, 0, emptyUnless(SpawnPlaceFinderTest::isSolid)));
+
+        assertEquals(Integer.MIN_VALUE, SpawnPlaceFinder.bisectGroundY(LEVEL, 0, 0, 0, (x, y, z) -> true));
+    }
+
+    /**
+     * Tests that the result is the first candidate with one, whatever order the searches complete in
+     */
+    @Test
+    public void testSearchInOrder() {
+        String[] results = { null, "b", "c" };
+        CompletableFuture<String> future = SpawnPlaceFinder.searchInOrder(results.length, (index, isCancelled) -> results[index], executor);
+        runHeldTask(2);
+        runHeldTask(1);
+        assertFalse(future.isDone(), "Completed before the first candidate was searched");
+        runHeldTask(0);
+        assertEquals("b", future.join());
+
+        assertNull(SpawnPlaceFinder.searchInOrder(results.length, (index, isCancelled) -> null, Runnable::run).join());
+        assertNull(SpawnPlaceFinder.searchInOrder(0, (index, isCancelled) -> fail("Searched without candidates"), Runnable::run).join());
+    }
+
+    /**
+     * Tests that candidates after the one with the result aren't searched, and that cancelling the result cancels every candidate
+     */
+    @Test
+    public void testSearchCancellation() {
+        List<Integer> searched = new ArrayList<>();
+        SpawnPlaceFinder.CandidateSearch<Integer> search = (index, isCancelled) -> {
+            searched.add(index);
+            return index == 1 ? index : null;
+        };
+        CompletableFuture<Integer> future = SpawnPlaceFinder.searchInOrder(4, search, executor);
+        runHeldTask(1);
+        assertFalse(future.isDone());
+        runHeldTask(3);
+        runHeldTask(2);
+        runHeldTask(0);
+        assertEquals(1, future.join());
+        assertEquals(List.of(1, 0), searched);
+
+        // a search that is already running sees it's cancelled
+        searched.clear();
+        heldTasks.clear();
+        boolean[] cancelledWhileSearching = new boolean[1];
+        future = SpawnPlaceFinder.searchInOrder(2, (index, isCancelled) -> {
+            searched.add(index);
+            if (index == 1) {
+                runHeldTask(0);
+                cancelledWhileSearching[0] = isCancelled.getAsBoolean();
+                throw new CancellationException();
+            }
+            return index;
+        }, executor);
+        runHeldTask(1);
+        assertTrue(cancelledWhileSearching[0]);
+        assertEquals(0, future.join());
+
+        searched.clear();
+        heldTasks.clear();
+        future = SpawnPlaceFinder.searchInOrder(3, search, executor);
+        future.cancel(false);
+        heldTasks.forEach(Runnable::run);
+        assertEquals(List.of(), searched);
+    }
+
+    /**
+     * Tests that a failed search only fails the result when no candidate before it has a result
+     */
+    @Test
+    public void testSearchFailure() {
+        RuntimeException failure = new RuntimeException("Test failure");
+        CompletableFuture<Integer> future = SpawnPlaceFinder.searchInOrder(3, (index, isCancelled) -> {
+            if (index == 2) {
+                throw failure;
+            }
+            return index == 1 ? index : null;
+        }, executor);
+        runHeldTask(2);
+        assertFalse(future.isDone(), "Failed before the candidates deciding the result were searched");
+        runHeldTask(1);
+        runHeldTask(0);
+        assertEquals(1, future.join());
+
+        heldTasks.clear();
+        future = SpawnPlaceFinder.searchInOrder(3, (index, isCancelled) -> {
+            if (index == 1) {
+                throw failure;
+            }
+            return index == 2 ? index : null;
+        }, executor);
+        runHeldTask(2);
+        runHeldTask(1);
+        assertFalse(future.isDone());
+        runHeldTask(0);
+        assertTrue(future.isCompletedExceptionally());
+        CompletionException e = assertThrows(CompletionException.class, future::join);
+        assertSame(failure, e.getCause());
+    }
+
+    /**
+     * Tests that a candidate rejected by the executor is handled like a failed search, without the rejection escaping
+     */
+    @Test
+    public void testSearchRejected() {
+        // holds the first task, rejects the others
+        Executor rejecting = task -> {
+            if (!heldTasks.isEmpty()) {
+                throw new RejectedExecutionException("Test rejection");
+            }
+            heldTasks.add(task);
+        };
+        CompletableFuture<Integer> future = SpawnPlaceFinder.searchInOrder(3, (index, isCancelled) -> index, rejecting);
+        assertFalse(future.isDone(), "Failed before the first candidate was searched");
+        runHeldTask(0);
+        assertEquals(0, future.join());
+
+        heldTasks.clear();
+        future = SpawnPlaceFinder.searchInOrder(3, (index, isCancelled) -> null, rejecting);
+        runHeldTask(0);
+        CompletionException e = assertThrows(CompletionException.class, future::join);
+        assertTrue(e.getCause() instanceof RejectedExecutionException);
+
+        future = SpawnPlaceFinder.searchInOrder(2, (index, isCancelled) -> fail("Rejected candidate searched"), task -> {
+            throw new RejectedExecutionException("Test rejection");
+        });
+        assertTrue(future.isCompletedExceptionally());
+    }
+
+    /**
+     * Runs the held task of the given candidate, the tasks are held in the order they were submitted
+     */
+    private void runHeldTask(int candidate) {
+        heldTasks.get(candidate).run();
+    }
+
+    private static SpawnPlaceFinder.XYZPredicate emptyUnless(IntPredicate isSolid) {
+        return (x, y, z) -> !isSolid.test(y);
+    }
+
+    private static SurfaceTrackerBranch createHeightmap(boolean supportsRangeQueries) {
+        SurfaceTrackerBranch root = new SurfaceTrackerBranch(MAX_SCALE, 0, null, (byte) 0);
+        SurfaceTrackerNodesTest.NullHeightmapStorage storage = new SurfaceTrackerNodesTest.NullHeightmapStorage();
+        for (int nodeY = 0; nodeY < 3; nodeY++) {
+            SurfaceTrackerNodesTest.TestHeightmapSource32 source = new SurfaceTrackerNodesTest.TestHeightmapSource32(0, nodeY, 0) {
+                @Override public boolean supportsRangeQueries() {
+                    return supportsRangeQueries;
+                }
+            };
+            root.loadSource(0, 0, storage, source);
+            for (int localY = 0; localY < SCALE_0_NODE_HEIGHT; localY++) {
+                if (isSolid(nodeY * SCALE_0_NODE_HEIGHT + localY)) {
+                    source.setBlock(0, localY, 0, true);
+                }
+            }
+        }
+        return root;
+    }
+}